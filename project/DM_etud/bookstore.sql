@@ -1,11 +1,58 @@
 connect 'jdbc:derby://localhost:1527/bookstore;create=true';
 
+create table AUTHOR
+(
+    NAME      VARCHAR(20) not null primary key,
+    BIOGRAPHY VARCHAR(400)
+);
+
+create table PUBLISHER
+(
+    ID   INTEGER not null primary key,
+    NAME VARCHAR(80)
+);
+
 create table BOOK
 (
     ISBN   VARCHAR(20) not null primary key,
     TITLE  VARCHAR(80),
     AUTHOR VARCHAR(20),
-    PRICE  DOUBLE      not null
+    PRICE  DOUBLE      not null,
+    -- heavy column, loaded lazily by the mapper
+    DESCRIPTION VARCHAR(4000),
+    -- many-to-one relationships: the author by name (books may name an author without AUTHOR row)
+    PUBLISHER_ID INTEGER references PUBLISHER (ID)
+);
+
+-- books of a publisher and of several authors, fetched in batches by the mapper
+create index BOOK_PUBLISHER on BOOK (PUBLISHER_ID);
+
+-- price range and cheapest books queries, while the in-memory price index is cold
+create index BOOK_PRICE on BOOK (PRICE);
+create index BOOK_AUTHOR_PRICE on BOOK (AUTHOR, PRICE);
+
+-- change log of the BOOK table, polled by the mappers to invalidate their caches
+-- every write is logged, even when no mapper follows the log: a running ChangeFeed deletes the changes
+-- it has read once they are older than its retention (one hour by default), otherwise the log must be
+-- purged by the operators (e.g. delete from BOOK_CHANGES where CHANGED_AT < ...)
+create table BOOK_CHANGES
+(
+    SEQ        BIGINT      not null generated always as identity primary key,
+    ISBN       VARCHAR(20) not null,
+    OPERATION  CHAR(1)     not null,
+    CHANGED_AT TIMESTAMP   default CURRENT_TIMESTAMP
 );
 
+create trigger BOOK_INSERTED after insert on BOOK
+    referencing new as N for each row
+    insert into BOOK_CHANGES (ISBN, OPERATION) values (N.ISBN, 'I');
+
+create trigger BOOK_UPDATED after update on BOOK
+    referencing new as N for each row
+    insert into BOOK_CHANGES (ISBN, OPERATION) values (N.ISBN, 'U');
+
+create trigger BOOK_DELETED after delete on BOOK
+    referencing old as O for each row
+    insert into BOOK_CHANGES (ISBN, OPERATION) values (O.ISBN, 'D');
+
 exit;
\ No newline at end of file
@@ -1,33 +1,112 @@
 package dm;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Implements common code to map an object to a row in a relational table
  */
-public abstract class AbstractMapper {
+public abstract class AbstractMapper implements LazyLoader {
     // object cache implemented by a map<key,object>
     protected Registry<Object, Object> loadedMap;
+    // identifiers recently looked up and not found in database
+    protected NegativeCache<Object> missCache;
+    // ids returned by the recent find many queries
+    protected QueryCache queryCache;
+    // membership filter over all the identifiers stored in database (loaded on first use)
+    protected volatile KeyFilter keyFilter;
+    // true while the change feed is followed: only then does the key filter see the inserts of the other
+    // processes, and can a key it does not contain be reported missing without a query
+    private volatile boolean followingChanges = false;
+    // true while the key filter is rebuilt in the background
+    private final AtomicBoolean keyFilterRebuilding = new AtomicBoolean(false);
+    // wanted false positive rate of the key filter
+    private static final double KEY_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    // minimum number of keys the key filter is sized for
+    private static final int KEY_FILTER_MIN_KEYS = 10000;
+    // number of rows fetched at once when scanning the keys
+    private static final int KEY_SCAN_FETCH_SIZE = 1000;
+    // most read keys, pinned in the identity map (null until enabled)
+    private volatile HotKeys hotKeys;
+    // background reloader of stale objects (created with the first expiring cache policy)
+    private volatile CacheRefresher refresher;
     // database object
     protected final DB db;
+    // name of the database object
+    private final String dbName;
+    // consistent hash ring when the objects are sharded over several databases (null otherwise)
+    private volatile ShardRing shardRing;
+    // writes share this lock, a shard rebalancing takes it exclusively
+    private final ReentrantReadWriteLock shardLock = new ReentrantReadWriteLock();
+    // runs the per-shard queries of a scatter-gather (created with the first shard)
+    private ExecutorService shardExecutor;
+    // number of objects moved at once by a rebalancing
+    private static final int REBALANCE_BATCH_SIZE = 100;
+    // maximum number of ids in an IN list
+    private static final int FIND_BY_IDS_BATCH_SIZE = 100;
+    // number of rows sent at once by a batch insert
+    private static final int INSERT_BATCH_SIZE = 500;
+    // feeds of the changes made by all the processes (one per shard)
+    private final List<ChangeFeed> changeFeeds = new ArrayList<>();
 
     /**
      * Init the cache and the database
      * @param dbName
      */
     public AbstractMapper(String dbName) {
+        this(dbName, new String[0]);
+    }
+
+    /**
+     * Init the cache and the database with read-only replicas
+     * @param dbName primary database name
+     * @param replicaNames replica database names
+     */
+    public AbstractMapper(String dbName, String... replicaNames) {
         try {
             this.loadedMap = new Registry<>();
-            this.db = DB.createDB(dbName);
+            this.missCache = new NegativeCache<>();
+            this.queryCache = new QueryCache();
+            this.db = DB.createDB(dbName, replicaNames);
+            this.dbName = dbName;
         } catch (Exception e) {
             throw new RuntimeException("AbstractMapper:: Failed to initialize database access: " + e.getMessage());
         }
     }
 
+    /**
+     * Init the cache on the database of another mapper, for the mapper of a related table:
+     * both mappers share the connections (and the transactions) of the database
+     * @param owner mapper whose (primary) database is used
+     */
+    protected AbstractMapper(AbstractMapper owner) {
+        this.loadedMap = new Registry<>();
+        this.missCache = new NegativeCache<>();
+        this.queryCache = new QueryCache();
+        this.db = owner.db;
+        this.dbName = owner.dbName;
+    }
+
     /**
      * Returns SQL insert string for domain object
      *
@@ -62,6 +141,69 @@ public abstract class AbstractMapper {
      */
     protected abstract String deleteAllStatement();
 
+    /**
+     * Returns SQL find string for several domain objects
+     *
+     * @param idCount number of ids in the IN list
+     * @return SQL find string with idCount parameters
+     */
+    protected abstract String findByIdsStatement(int idCount);
+
+    /**
+     * Returns SQL select string of all the object identifiers (first column)
+     *
+     * @return SQL key scan string
+     */
+    protected abstract String keyScanStatement();
+
+    /**
+     * Returns SQL string counting all the objects
+     *
+     * @return SQL count string
+     */
+    protected abstract String countStatement();
+
+    /**
+     * Returns SQL select string of a lazy column group, with the object id as parameter
+     *
+     * @param group lazy column group name
+     * @return SQL select string, or null for an unknown group
+     */
+    protected abstract String lazyGroupStatement(String group);
+
+    /**
+     * Create a ghost: a domain object only knowing its id, whose fields are loaded on first access.
+     * Mappers whose objects have no ghost keep this implementation.
+     *
+     * @param id object identifier
+     * @return ghost domain object
+     * @throws MapperException if the mapper has no ghost
+     */
+    protected DomainObject createGhost(Object id) throws MapperException {
+        throw new MapperException("AbstractMapper:: Ghosts are not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Fill a ghost from a SQL result set of the find statement
+     *
+     * @param ghost ghost domain object
+     * @param rs SQL result set
+     * @throws MapperException if something goes wrong, or if the mapper has no ghost
+     */
+    protected void doLoadGhost(DomainObject ghost, ResultSet rs) throws MapperException {
+        throw new MapperException("AbstractMapper:: Ghosts are not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Fill a lazy column group from a SQL result set of the group statement
+     *
+     * @param subject partially loaded domain object
+     * @param group lazy column group name
+     * @param rs SQL result set
+     * @throws MapperException if something goes wrong...
+     */
+    protected abstract void doLoadGroup(DomainObject subject, String group, ResultSet rs) throws MapperException;
+
     /**
      * Configure SQL insert PreparedStatement for domain object
      *
@@ -105,22 +247,229 @@ public abstract class AbstractMapper {
             if (subjectId == null) {
                 throw new MapperException("AbstractMapper:: Insert failed because id is null...");
             } else {
+                // the filter may contain the id: check it before letting the database reject the insert
+                if (keyFilter().mightContain(subjectId) && abstractFind(subjectId) != null)
+                    throw new MapperException("AbstractMapper:: Insert failed because id " + subjectId + " already exists...");
+                DB.Call call = dbFor(subjectId).startCall(ConcurrencyLimiter.Priority.WRITE);
+                shardLock.readLock().lock();
                 try {
-                    // create a prepared sql statement
-                    PreparedStatement insertStatement = db.prepare(insertStatement());
+                    // create a prepared sql statement on the database owning the id
+                    PreparedStatement insertStatement = dbFor(subjectId).prepareWrite(insertStatement());
+                    call.watch(insertStatement);
                     // set values into sql statement
                     doInsert(object, insertStatement);
                     // execute insert statement
                     insertStatement.execute();
+                    // the id now exists in database
+                    keyFilter.add(subjectId);
+                    checkKeyFilter();
+                    written(subjectId);
+                    queriesWritten(object);
                 } catch (SQLException e) {
                     // transform exception type
-                    throw new MapperException(e.getMessage());
+                    throw call.failure(e);
+                } finally {
+                    shardLock.readLock().unlock();
+                    call.end();
+                    // the id may exist now (even on failure, e.g. duplicate key), it is no longer a known miss
+                    missCache.invalidate(subjectId);
                 }
             }
             return subjectId;
         }
     }
 
+    /**
+     * Insert several domain objects in database with batched statements.
+     * The objects are sent on a pooled connection, so several batch inserts can run in parallel.
+     *
+     * @param objects domain objects
+     * @return number of inserted objects
+     * @throws MapperException if something goes wrong...
+     */
+    protected int abstractInsertAll(Collection<? extends DomainObject> objects) throws MapperException {
+        if (objects == null)
+            throw new MapperException("AbstractMapper:: Insert failed because objects are null...");
+
+        // check the ids the filter may contain with a single query instead of failing in the middle of a batch
+        List<Object> maybeExisting = new ArrayList<>();
+        for (DomainObject object : objects) {
+            if (object == null || object.getId() == null)
+                throw new MapperException("AbstractMapper:: Insert failed because an object or its id is null...");
+            if (keyFilter().mightContain(object.getId()))
+                maybeExisting.add(object.getId());
+        }
+        if (!maybeExisting.isEmpty()) {
+            Set<Object> existing = abstractFindByIdsOnPrimary(maybeExisting).keySet();
+            if (!existing.isEmpty())
+                throw new MapperException("AbstractMapper:: Insert failed because ids " + existing + " already exist...");
+        }
+
+        shardLock.readLock().lock();
+        try {
+            // group the objects by owning database
+            Map<DB, List<DomainObject>> objectsByShard = new HashMap<>();
+            for (DomainObject object : objects) {
+                DB shard = dbFor(object.getId());
+                List<DomainObject> shardObjects = objectsByShard.get(shard);
+                if (shardObjects == null) {
+                    shardObjects = new ArrayList<>();
+                    objectsByShard.put(shard, shardObjects);
+                }
+                shardObjects.add(object);
+                // registered before the insert: a failed batch leaves a false positive, never a false negative
+                keyFilter.add(object.getId());
+                missCache.invalidate(object.getId());
+                written(object.getId());
+            }
+            checkKeyFilter();
+
+            for (Map.Entry<DB, List<DomainObject>> entry : objectsByShard.entrySet()) {
+                DB.Call call = entry.getKey().startCall(ConcurrencyLimiter.Priority.WRITE);
+                Connection connection = entry.getKey().acquireConnection();
+                try (PreparedStatement insertStatement = connection.prepareStatement(insertStatement())) {
+                    call.watch(insertStatement);
+                    int pending = 0;
+                    for (DomainObject object : entry.getValue()) {
+                        doInsert(object, insertStatement);
+                        insertStatement.addBatch();
+                        if (++pending == INSERT_BATCH_SIZE) {
+                            insertStatement.executeBatch();
+                            pending = 0;
+                        }
+                    }
+                    if (pending > 0)
+                        insertStatement.executeBatch();
+                } catch (SQLException e) {
+                    throw call.failure(e);
+                } finally {
+                    entry.getKey().releaseConnection(connection);
+                    call.end();
+                    // once the rows are written (even partly): a result read before must not be cached
+                    for (DomainObject object : entry.getValue())
+                        queriesWritten(object);
+                }
+            }
+            return objects.size();
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write several objects in database, updating the existing rows and inserting the others,
+     * with batched statements committed at once on each database (used to apply delayed writes,
+     * so writing the same object twice is harmless). The key filter must already know the ids.
+     *
+     * @param objects domain objects
+     * @throws MapperException if something goes wrong...
+     */
+    protected void abstractUpsertAll(Collection<? extends DomainObject> objects) throws MapperException {
+        if (objects == null)
+            throw new MapperException("AbstractMapper:: Write failed because objects are null...");
+        shardLock.readLock().lock();
+        try {
+            Map<DB, List<DomainObject>> objectsByShard = new HashMap<>();
+            for (DomainObject object : objects) {
+                DB shard = dbFor(object.getId());
+                List<DomainObject> shardObjects = objectsByShard.get(shard);
+                if (shardObjects == null) {
+                    shardObjects = new ArrayList<>();
+                    objectsByShard.put(shard, shardObjects);
+                }
+                shardObjects.add(object);
+            }
+
+            for (Map.Entry<DB, List<DomainObject>> entry : objectsByShard.entrySet()) {
+                upsertOn(entry.getKey(), entry.getValue());
+                // the results read before the write may miss these objects
+                for (DomainObject object : entry.getValue())
+                    invalidateQueries(object);
+            }
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage(), e);
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    // update the existing rows of a database and insert the missing ones, in one transaction
+    private void upsertOn(DB shard, List<DomainObject> objects) throws MapperException, SQLException {
+        DB.Call call = shard.startCall(ConcurrencyLimiter.Priority.WRITE);
+        Connection connection = shard.acquireConnection();
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(false);
+            List<DomainObject> missing = new ArrayList<>();
+            try (PreparedStatement updateStatement = connection.prepareStatement(updateStatement())) {
+                call.watch(updateStatement);
+                for (DomainObject object : objects) {
+                    doUpdate(object, updateStatement);
+                    updateStatement.addBatch();
+                }
+                int[] counts = updateStatement.executeBatch();
+                // the objects whose row was not updated do not exist yet
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == 0)
+                        missing.add(objects.get(i));
+                }
+            }
+            if (!missing.isEmpty()) {
+                try (PreparedStatement insertStatement = connection.prepareStatement(insertStatement())) {
+                    call.watch(insertStatement);
+                    for (DomainObject object : missing) {
+                        doInsert(object, insertStatement);
+                        insertStatement.addBatch();
+                    }
+                    insertStatement.executeBatch();
+                }
+            }
+            if (autoCommit)
+                connection.commit();
+        } catch (SQLException e) {
+            if (autoCommit)
+                connection.rollback();
+            throw call.failure(e);
+        } catch (QueryTimeoutException e) {
+            // out of time between the update and the insert: do not commit the update alone
+            if (autoCommit)
+                connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+            shard.releaseConnection(connection);
+            call.end();
+        }
+    }
+
+    /**
+     * Make an object written with a delay visible at once: it is cached and its id is known to exist
+     * @param object written object
+     * @param inserted true for a new object, false for an update of an existing one
+     * @throws MapperException if the key filter cannot be loaded
+     */
+    protected void cacheWritten(DomainObject object, boolean inserted) throws MapperException {
+        if (inserted) {
+            keyFilter().add(object.getId());
+            checkKeyFilter();
+        }
+        missCache.invalidate(object.getId());
+        loadedMap.addObject(object.getId(), object);
+        invalidateQueries(object);
+    }
+
+    /**
+     * Undo cacheWritten for an object whose delayed write was rejected by the database:
+     * the next reads of its id go to the database
+     * @param object rejected object
+     */
+    protected void forgetWritten(DomainObject object) {
+        loadedMap.removeObject(object.getId(), object);
+        invalidateQueries(object);
+    }
+
     /**
      * Find an object with its oid
      * @param id object identifier
@@ -128,30 +477,172 @@ public abstract class AbstractMapper {
      * @throws MapperException if something goes wrong...
      */
     protected DomainObject abstractFind(Object id) throws MapperException {
-        if (id == null) {
+        if (id == null)
             throw new MapperException("AbstractMapper:: Find failed because id is null...");
+        HotKeys hot = hotKeys;
+        if (hot != null)
+            hot.record(id);
+        if (dbFor(id).currentTransaction() != null) {
+            return findInTransaction(dbFor(id).currentTransaction(), id);
         } else {
+            // check the cache first: the hits do not go through the key filter nor the miss cache
+            DomainObject cached = (DomainObject) loadedMap.getObject(id);
+            if (cached == null) {
+                // this id is not in database or was recently looked up without result, no need to query it
+                if (knownMissing(id) || missCache.isMissing(id))
+                    return null;
+            } else {
+                switch (loadedMap.getFreshness(id)) {
+                    case FRESH:
+                        return cached;
+                    case STALE:
+                        // serve the stale object while it is reloaded in the background
+                        if (refresher != null)
+                            refresher.requestRefresh(id);
+                        return cached;
+                    default:
+                        // a hot object is served while it is reloaded, its readers would all wait for the reload
+                        if (refresher != null && loadedMap.isPinned(id)) {
+                            refresher.requestRefresh(id);
+                            return cached;
+                        }
+                        // too old to be served, reload it now
+                        loadedMap.removeObject(id, cached);
+                }
+            }
+            DB owner = dbFor(id);
+            DB.Call call;
+            try {
+                call = owner.startCall(ConcurrencyLimiter.Priority.READ);
+            } catch (OverloadException e) {
+                // an expired object is a better answer than none when the database is overloaded
+                if (cached != null)
+                    return cached;
+                throw e;
+            }
+            // an insert committed while the query runs must not be hidden by its miss
+            long missVersion = missCache.version();
+            PreparedStatement findStatement = null;
             try {
-                // create a prepared SQL statement
-                PreparedStatement findStatement = db.prepare(findStatement());
+                // create a prepared SQL statement, routed to a replica when there are some
+                findStatement = owner.prepareRead(findStatement());
+                call.watch(findStatement);
 
                 // set id value into SQL statement
                 findStatement.setObject(1, id);
 
                 // execute select statement
                 ResultSet rs = findStatement.executeQuery();
+                // a replica which may lag behind the latest write answers this session only
+                boolean shared = owner.isUpToDate(findStatement);
 
                 // if there is one result
                 if (rs.next()) {
                     // build and return the object
-                    return load(rs);
+                    return shared ? load(rs) : doLoad(rs);
                 } else {
+                    // remember the miss for the next lookups
+                    if (shared)
+                        missCache.addMiss(id, missVersion);
                     return null;
                 }
             } catch (SQLException e) {
                 // transform SQL exception into domain exception
-                throw new MapperException(e.getMessage());
+                throw call.failure(e);
+            } finally {
+                owner.release(findStatement);
+                call.end();
+            }
+        }
+    }
+
+    // find an object within a transaction, which must see its own (uncommitted) writes
+    private DomainObject findInTransaction(Transaction transaction, Object id) throws MapperException {
+        DomainObject object = transaction.getCached(this, id);
+        if (object != null)
+            return object;
+        // the shared cache only holds committed state, it is fine for the ids not written by the transaction
+        if (!transaction.hasWritten(this, id)) {
+            object = (DomainObject) loadedMap.getObject(id);
+            if (object != null && loadedMap.getFreshness(id) != Registry.Freshness.EXPIRED)
+                return object;
+        }
+        // not limited in a transaction, but still bounded by the timeouts and the deadline
+        DB.Call call = transaction.getDb().startCall(ConcurrencyLimiter.Priority.READ);
+        PreparedStatement findStatement = null;
+        try {
+            // the statement runs on the connection of the transaction
+            findStatement = transaction.getDb().prepareRead(findStatement());
+            call.watch(findStatement);
+            findStatement.setObject(1, id);
+            ResultSet rs = findStatement.executeQuery();
+            // a miss is not remembered: the transaction may be rolled back
+            if (!rs.next())
+                return null;
+            object = doLoad(rs);
+            transaction.cache(this, id, object);
+            return object;
+        } catch (SQLException e) {
+            throw call.failure(e);
+        } finally {
+            transaction.getDb().release(findStatement);
+            call.end();
+        }
+    }
+
+    /**
+     * Get an object without querying the database: the cached object if there is one,
+     * a ghost otherwise, which is loaded on first access to its fields
+     * @param id object identifier
+     * @return cached object or ghost
+     * @throws MapperException if something goes wrong...
+     */
+    protected DomainObject abstractGhost(Object id) throws MapperException {
+        if (id == null)
+            throw new MapperException("AbstractMapper:: Ghost creation failed because id is null...");
+        DomainObject cached = (DomainObject) loadedMap.getObject(id);
+        if (cached != null)
+            return cached;
+        DomainObject ghost = createGhost(id);
+        Object previous = loadedMap.addObjectIfAbsent(id, ghost);
+        return previous == null ? ghost : (DomainObject) previous;
+    }
+
+    /**
+     * Load the missing fields of a ghost or a lazy column group of an object
+     * @param subject partially loaded domain object
+     * @param group lazy column group name, null to load a ghost
+     * @throws MapperException if something goes wrong...
+     */
+    @Override
+    public void loadLazy(DomainObject subject, String group) throws MapperException {
+        Object id = subject.getId();
+        String statement = group == null ? findStatement() : lazyGroupStatement(group);
+        if (statement == null)
+            throw new MapperException("AbstractMapper:: Lazy load failed because group " + group + " is unknown...");
+        DB owner = dbFor(id);
+        DB.Call call = owner.startCall(ConcurrencyLimiter.Priority.READ);
+        PreparedStatement lazyStatement = null;
+        try {
+            // the object may be shared through the cache: a replica must not fill it with data older than the latest write
+            lazyStatement = owner.replicasMayLag() ? owner.prepare(statement) : owner.prepareRead(statement);
+            call.watch(lazyStatement);
+            lazyStatement.setObject(1, id);
+            ResultSet rs = lazyStatement.executeQuery();
+            if (!rs.next()) {
+                // the ghost of a missing object must not stay in the cache
+                loadedMap.removeObject(id, subject);
+                throw new MapperException("AbstractMapper:: Lazy load failed because object " + id + " was not found");
             }
+            if (group == null)
+                doLoadGhost(subject, rs);
+            else
+                doLoadGroup(subject, group, rs);
+        } catch (SQLException e) {
+            throw call.failure(e);
+        } finally {
+            owner.release(lazyStatement);
+            call.end();
         }
     }
 
@@ -166,31 +657,171 @@ public abstract class AbstractMapper {
             throws MapperException {
         if (criterion == null && findManyPattern == null) {
             throw new MapperException("AbstractMapper:: Find failed because criterion and/or findManyPattern is/are null...");
+        }
+        // a transaction sees its own writes, the cached results only hold committed data
+        boolean cacheable = db.currentTransaction() == null;
+        if (cacheable) {
+            List<Object> cachedIds = queryCache.get(findManyPattern, criterion);
+            if (cachedIds != null)
+                return new HashSet<>(abstractFindOrdered(cachedIds));
+        }
+        // the result of a replica which may lag behind the latest write is not cached
+        cacheable = cacheable && !replicasMayLag();
+        long version = queryCache.version();
+        Set<DomainObject> result = findManyUncached(criterion, findManyPattern);
+        if (cacheable) {
+            List<Object> ids = new ArrayList<>(result.size());
+            for (DomainObject object : result)
+                ids.add(object.getId());
+            queryCache.put(findManyPattern, criterion, ids, version);
+        }
+        return result;
+    }
+
+    // run a find many query on all the shards
+    private Set<DomainObject> findManyUncached(Object criterion, String findManyPattern) throws MapperException {
+        if (shardRing == null) {
+            return findManyOn(db, criterion, findManyPattern);
         } else {
-            try {
-                // the set used to store the resulting loaded objects
-                Set<DomainObject> result = new HashSet<>();
+            // scatter the query over all the shards and gather the results
+            List<Callable<Set<DomainObject>>> queries = new ArrayList<>();
+            for (final DB shard : shardRing.getShards()) {
+                final Object shardCriterion = criterion;
+                final String shardPattern = findManyPattern;
+                queries.add(new Callable<Set<DomainObject>>() {
+                    @Override
+                    public Set<DomainObject> call() throws MapperException {
+                        return findManyOn(shard, shardCriterion, shardPattern);
+                    }
+                });
+            }
+            Set<DomainObject> result = new HashSet<>();
+            for (Set<DomainObject> shardResult : scatter(queries))
+                result.addAll(shardResult);
+            return result;
+        }
+    }
+
+    // run a find many query on one database
+    private Set<DomainObject> findManyOn(DB shard, Object criterion, String findManyPattern)
+            throws MapperException {
+        DB.Call call = shard.startCall(ConcurrencyLimiter.Priority.READ);
+        PreparedStatement findManyStatement = null;
+        try {
+            // the set used to store the resulting loaded objects
+            Set<DomainObject> result = new HashSet<>();
 
-                // creating a prepared statement
-                PreparedStatement findManyStatement = db.prepare(findManyPattern);
+            // creating a prepared statement, routed to a replica when there are some
+            findManyStatement = shard.prepareRead(findManyPattern);
+            call.watch(findManyStatement);
 
-                // set criterion value into SQL statement
-                findManyStatement.setObject(1, criterion);
+            // set criterion value into SQL statement
+            findManyStatement.setObject(1, criterion);
 
-                // executing the query
-                ResultSet rs = findManyStatement.executeQuery();
+            // executing the query
+            ResultSet rs = findManyStatement.executeQuery();
 
-                // loading the resultsand adding them to the cache
-                while (rs.next()) {
-                    loadedMap.objectMap.put(rs.getString(1), rs);
-                    result.add(load(rs));
+            // loading the results and adding them to the cache
+            while (rs.next())
+                result.add(load(rs));
+
+            // returning the results
+            return result;
+
+        } catch (SQLException e) {
+            throw call.failure(e);
+        } finally {
+            shard.release(findManyStatement);
+            call.end();
+        }
+    }
+
+    /**
+     * Run a query and project its rows into lightweight values.
+     * The rows are neither loaded as domain objects nor added to the cache.
+     * @param criterion the query parameter, or an Object[] of parameters
+     * @param projectionPattern SQL SELECT pattern with the parameters
+     * @param projection builds a value from a row
+     * @param <T> type of the projected values
+     * @return the projected values (in query order for a single database)
+     * @throws MapperException if something goes wrong...
+     */
+    protected <T> List<T> abstractProject(final Object criterion, final String projectionPattern,
+                                          final Projection<T> projection) throws MapperException {
+        if (projectionPattern == null || projection == null)
+            throw new MapperException("AbstractMapper:: Projection failed because pattern and/or projection is/are null...");
+        if (shardRing == null)
+            return projectOn(db, criterion, projectionPattern, projection);
+
+        // scatter the query over all the shards and gather the results
+        List<Callable<List<T>>> queries = new ArrayList<>();
+        for (final DB shard : shardRing.getShards()) {
+            queries.add(new Callable<List<T>>() {
+                @Override
+                public List<T> call() throws MapperException {
+                    return projectOn(shard, criterion, projectionPattern, projection);
                 }
+            });
+        }
+        List<T> result = new ArrayList<>();
+        for (List<T> shardResult : scatter(queries))
+            result.addAll(shardResult);
+        return result;
+    }
 
-                // returning the results
-                return result;
+    // run a projection query on one database
+    private <T> List<T> projectOn(DB shard, Object criterion, String projectionPattern, Projection<T> projection)
+            throws MapperException {
+        DB.Call call = shard.startCall(ConcurrencyLimiter.Priority.READ);
+        PreparedStatement projectionStatement = null;
+        try {
+            projectionStatement = shard.prepareRead(projectionPattern);
+            call.watch(projectionStatement);
+            if (criterion instanceof Object[]) {
+                Object[] criteria = (Object[]) criterion;
+                for (int i = 0; i < criteria.length; i++)
+                    projectionStatement.setObject(i + 1, criteria[i]);
+            } else if (criterion != null) {
+                projectionStatement.setObject(1, criterion);
+            }
+            ResultSet rs = projectionStatement.executeQuery();
+            List<T> result = new ArrayList<>();
+            while (rs.next())
+                result.add(projection.map(rs));
+            return result;
+        } catch (SQLException e) {
+            throw call.failure(e);
+        } finally {
+            shard.release(projectionStatement);
+            call.end();
+        }
+    }
 
+    /**
+     * Stream all the rows of a query over all the shards through a projection, without keeping them.
+     * The projection is called for its side effects (e.g. to feed an index) and its results are dropped.
+     * @param scanPattern SQL query without parameters
+     * @param visitor called for each row
+     * @throws MapperException if something goes wrong...
+     */
+    protected void abstractScan(String scanPattern, Projection<?> visitor) throws MapperException {
+        if (scanPattern == null || visitor == null)
+            throw new MapperException("AbstractMapper:: Scan failed because pattern and/or visitor is/are null...");
+        for (DB shard : shards()) {
+            Connection connection = null;
+            try {
+                connection = shard.acquireConnection();
+                try (PreparedStatement scanStatement = connection.prepareStatement(scanPattern)) {
+                    scanStatement.setFetchSize(KEY_SCAN_FETCH_SIZE);
+                    try (ResultSet rs = scanStatement.executeQuery()) {
+                        while (rs.next())
+                            visitor.map(rs);
+                    }
+                }
             } catch (SQLException e) {
                 throw new MapperException(e.getMessage());
+            } finally {
+                shard.releaseConnection(connection);
             }
         }
     }
@@ -205,29 +836,41 @@ public abstract class AbstractMapper {
         if (updatedObject == null) {
             throw new MapperException("AbstractMapper:: Find failed because specified object is null...");
         } else {
+            // admitted before anything is changed: a rejected update leaves the cache as is
+            DB.Call call = dbFor(updatedObject.getId()).startCall(ConcurrencyLimiter.Priority.WRITE);
+            shardLock.readLock().lock();
             try {
                 // we catch the ID of the specified object
                 Object id = updatedObject.getId();
 
                 // if an object corresponding is present in cache, we delete it
-                if (loadedMap.objectMap.containsKey(id))
-                    loadedMap.objectMap.remove(id);
+                loadedMap.removeObject(id);
+                written(id);
 
-                // creation of a prepared update statement
-                PreparedStatement updateStatement = db.prepare(updateStatement());
+                // creation of a prepared update statement on the database owning the id
+                PreparedStatement updateStatement = dbFor(id).prepareWrite(updateStatement());
+                call.watch(updateStatement);
 
                 // set id value into SQL statement
                 doUpdate(updatedObject, updateStatement);
 
                 // executing the statement
                 int numRowAffected = updateStatement.executeUpdate();
+                // once the row is written: the old row read meanwhile (by a find or a refresh) must not stay
+                // cached, nor a result read before
+                loadedMap.removeObject(id);
+                queriesWritten(updatedObject);
 
                 // if the number of row affected by the querry equals 0, then we throw an error
                 if (numRowAffected == 0)
                     throw new MapperException("AbstractMapper:: Update failed because no corresponding objects were found");
 
+                reloadIfHot(id);
             } catch (SQLException e) {
-                throw new MapperException(e.getMessage());
+                throw call.failure(e);
+            } finally {
+                shardLock.readLock().unlock();
+                call.end();
             }
         }
     }
@@ -241,27 +884,41 @@ public abstract class AbstractMapper {
         if (subject == null) {
             throw new MapperException("AbstractMapper:: Delete failed because specified object is null...");
         } else {
+            DB.Call call = dbFor(subject.getId()).startCall(ConcurrencyLimiter.Priority.WRITE);
+            shardLock.readLock().lock();
             try {
-                PreparedStatement deleteStatement = db.prepare(deleteStatement());
-
                 // catching the ID of the specified object
                 Object id = subject.getId();
 
+                PreparedStatement deleteStatement = dbFor(id).prepareWrite(deleteStatement());
+                call.watch(deleteStatement);
+
                 // set id value into SQL statement
                 deleteStatement.setObject(1, id);
 
                 // if the object is already present in the cache we delete it
-                if (loadedMap.objectMap.containsKey(id))
-                    loadedMap.objectMap.remove(id);
+                loadedMap.removeObject(id);
+                written(id);
 
                 // we execute the request
                 int numRowAffected = deleteStatement.executeUpdate();
+                // the row read meanwhile (by a find or a refresh) must not stay cached
+                loadedMap.removeObject(id);
+                queriesWritten(subject);
 
                 if (numRowAffected == 0)
                     throw new MapperException("AbstractMapper:: Delete failed because no corresponding objects were found");
 
+                // the id no longer exists in database: it stays in the filter as a false positive
+                // until the filter is rebuilt
+                keyFilter().deleted();
+                checkKeyFilter();
+
             } catch (SQLException e) {
-                throw new MapperException(e.getMessage());
+                throw call.failure(e);
+            } finally {
+                shardLock.readLock().unlock();
+                call.end();
             }
         }
     }
@@ -271,21 +928,925 @@ public abstract class AbstractMapper {
      * @throws MapperException if something goes wrong...
      */
     protected void abstractDeleteAll() throws MapperException {
+        shardLock.readLock().lock();
         try {
             // first we clear the content of the cache
-            loadedMap.objectMap.clear();
+            loadedMap.removeAll();
+            queryCache.clear();
+            Transaction transaction = db.currentTransaction();
+            if (transaction != null)
+                transaction.writtenAll(this);
+
+            for (DB shard : shards()) {
+                // then we create à deleteAll request
+                PreparedStatement deleteAllStatement = shard.prepareWrite(deleteAllStatement());
+
+                // we execute the satement
+                deleteAllStatement.executeUpdate();
+            }
+
+            // there is no more id in database
+            if (keyFilter != null && transaction == null)
+                keyFilter.clear();
+
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find several objects with their oids, always reading the database.
+     * The objects are built with doLoad and are not added to the cache.
+     * @param ids object identifiers
+     * @return the loaded objects by id (missing ids are absent from the map)
+     * @throws MapperException if something goes wrong...
+     */
+    protected Map<Object, DomainObject> abstractFindByIds(Collection<?> ids) throws MapperException {
+        return findByIds(ids, false);
+    }
+
+    /**
+     * Find several objects with their oids on the primary databases, which hold all the writes:
+     * used to refresh the structures shared by all the sessions (caches, snapshots).
+     * The objects are built with doLoad and are not added to the cache.
+     * @param ids object identifiers
+     * @return the loaded objects by id (missing ids are absent from the map)
+     * @throws MapperException if something goes wrong...
+     */
+    protected Map<Object, DomainObject> abstractFindByIdsOnPrimary(Collection<?> ids) throws MapperException {
+        return findByIds(ids, true);
+    }
+
+    private Map<Object, DomainObject> findByIds(Collection<?> ids, final boolean primary) throws MapperException {
+        if (ids == null)
+            throw new MapperException("AbstractMapper:: Find failed because ids are null...");
+        if (shardRing == null)
+            return findByIdsOn(db, ids, primary);
+
+        // group the ids by shard and query the shards in parallel
+        Map<DB, List<Object>> idsByShard = new HashMap<>();
+        for (Object id : ids) {
+            DB shard = dbFor(id);
+            List<Object> shardIds = idsByShard.get(shard);
+            if (shardIds == null) {
+                shardIds = new ArrayList<>();
+                idsByShard.put(shard, shardIds);
+            }
+            shardIds.add(id);
+        }
+        List<Callable<Map<Object, DomainObject>>> queries = new ArrayList<>();
+        for (final Map.Entry<DB, List<Object>> entry : idsByShard.entrySet()) {
+            queries.add(new Callable<Map<Object, DomainObject>>() {
+                @Override
+                public Map<Object, DomainObject> call() throws MapperException {
+                    return findByIdsOn(entry.getKey(), entry.getValue(), primary);
+                }
+            });
+        }
+        Map<Object, DomainObject> result = new HashMap<>();
+        for (Map<Object, DomainObject> shardResult : scatter(queries))
+            result.putAll(shardResult);
+        return result;
+    }
+
+    /**
+     * Find several objects with their oids, keeping the order of the oids.
+     * Cached objects are reused, the others are read with one query per shard and cached.
+     * @param ids object identifiers
+     * @return the found objects, in the order of the ids (missing ids are skipped)
+     * @throws MapperException if something goes wrong...
+     */
+    protected List<DomainObject> abstractFindOrdered(List<?> ids) throws MapperException {
+        Map<Object, DomainObject> found = new HashMap<>();
+        List<Object> missing = new ArrayList<>();
+        for (Object id : ids) {
+            DomainObject cached = (DomainObject) loadedMap.getObject(id);
+            if (cached != null && loadedMap.getFreshness(id) != Registry.Freshness.EXPIRED) {
+                found.put(id, cached);
+            } else {
+                if (cached != null)
+                    loadedMap.removeObject(id, cached);
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            // the objects read from a replica which may lag behind the latest write are not cached
+            boolean shared = !replicasMayLag();
+            for (Map.Entry<Object, DomainObject> entry : abstractFindByIds(missing).entrySet()) {
+                // an object cached meanwhile wins, so there is still one instance per id
+                Object cached = shared ? loadedMap.addObjectIfAbsent(entry.getKey(), entry.getValue()) : null;
+                found.put(entry.getKey(), cached != null ? (DomainObject) cached : entry.getValue());
+            }
+        }
+        List<DomainObject> result = new ArrayList<>(found.size());
+        for (Object id : ids) {
+            DomainObject object = found.get(id);
+            if (object != null)
+                result.add(object);
+        }
+        return result;
+    }
+
+    // find several objects on one database, on its replicas unless primary is true
+    private Map<Object, DomainObject> findByIdsOn(DB shard, Collection<?> ids, boolean primary) throws MapperException {
+        Map<Object, DomainObject> result = new HashMap<>();
+        List<Object> remaining = new ArrayList<>(ids);
+        // bounded IN lists
+        for (int from = 0; from < remaining.size(); from += FIND_BY_IDS_BATCH_SIZE) {
+            List<Object> batch = remaining.subList(from, Math.min(from + FIND_BY_IDS_BATCH_SIZE, remaining.size()));
+            DB.Call call = shard.startCall(ConcurrencyLimiter.Priority.READ);
+            PreparedStatement findStatement = null;
+            try {
+                String statement = findByIdsStatement(batch.size());
+                findStatement = primary ? shard.prepare(statement) : shard.prepareRead(statement);
+                call.watch(findStatement);
+                int index = 1;
+                for (Object id : batch)
+                    findStatement.setObject(index++, id);
+                ResultSet rs = findStatement.executeQuery();
+                while (rs.next()) {
+                    DomainObject object = doLoad(rs);
+                    result.put(object.getId(), object);
+                }
+            } catch (SQLException e) {
+                throw call.failure(e);
+            } finally {
+                shard.release(findStatement);
+                call.end();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reload cached objects from the database (used by the background refresher).
+     * A cached object is replaced only if it has not been invalidated in the meantime.
+     * @param ids identifiers of the objects to reload
+     * @throws MapperException if something goes wrong...
+     */
+    protected void refresh(Collection<?> ids) throws MapperException {
+        // capture the cached objects before reading: an object invalidated or reloaded
+        // during the query must not be overwritten with older data
+        Map<Object, Object> expected = new HashMap<>();
+        for (Object id : ids) {
+            Object cached = loadedMap.getObject(id);
+            if (cached != null)
+                expected.put(id, cached);
+        }
+        // a replica may not have received the write which made the object stale
+        Map<Object, DomainObject> reloaded = abstractFindByIdsOnPrimary(expected.keySet());
+        replaceCached(expected, reloaded);
+    }
+
+    // replace the cached objects by their reloaded state, unless they changed meanwhile
+    private void replaceCached(Map<Object, Object> expected, Map<Object, DomainObject> reloaded) {
+        for (Map.Entry<Object, Object> entry : expected.entrySet()) {
+            Object id = entry.getKey();
+            Object cached = entry.getValue();
+            DomainObject fresh = reloaded.get(id);
+            if (fresh != null)
+                loadedMap.replaceObject(id, cached, fresh);
+            else
+                // deleted by someone else
+                loadedMap.removeObject(id, cached);
+        }
+    }
+
+    /**
+     * Limit the concurrent calls of this mapper to each of its databases (and of the mappers sharing them).
+     * A call over the limit fails at once with an OverloadException, except a read of an expired cached
+     * object, which is then served as is; the cache hits never count. The scans which load the in-memory
+     * indexes and the calls made in a transaction are not limited. Call it once the shards are attached.
+     * @param initialLimit initial number of concurrent calls per database
+     * @param maxLimit maximum number of concurrent calls per database
+     */
+    public void enableConcurrencyLimit(int initialLimit, int maxLimit) {
+        for (DB shard : shards())
+            shard.setConcurrencyLimiter(new ConcurrencyLimiter(initialLimit, maxLimit));
+    }
+
+    /**
+     * Remove the limit of the concurrent calls
+     */
+    public void disableConcurrencyLimit() {
+        for (DB shard : shards())
+            shard.setConcurrencyLimiter(null);
+    }
+
+    /**
+     * @return the limiter of the primary database (its limit and metrics), or null when not limited
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return db.getConcurrencyLimiter();
+    }
+
+    /**
+     * Bound the time of the queries of this mapper (and of the mappers sharing its databases): a query running
+     * longer is stopped by the database and fails with a QueryTimeoutException. A Deadline of the session
+     * may shorten it. The timeouts are rounded up to whole seconds.
+     * The scans which load the in-memory indexes and deleteAll are not bounded.
+     * @param readMillis timeout of the reads in milliseconds (0 for none)
+     * @param writeMillis timeout of the writes in milliseconds (0 for none)
+     */
+    public void setOperationTimeouts(long readMillis, long writeMillis) {
+        for (DB shard : shards())
+            shard.setOperationTimeouts(readMillis, writeMillis);
+    }
+
+    /**
+     * @return number of queries cancelled because they ran out of time, over all the shards
+     */
+    public long getTimedOutCount() {
+        long count = 0;
+        for (DB shard : shards())
+            count += shard.getTimedOutCount();
+        return count;
+    }
+
+    /**
+     * @return number of calls cancelled by their caller (see Deadline.cancel), over all the shards
+     */
+    public long getCancelledCount() {
+        long count = 0;
+        for (DB shard : shards())
+            count += shard.getCancelledCount();
+        return count;
+    }
+
+    /**
+     * @return number of calls not run because their deadline was already exceeded, over all the shards
+     */
+    public long getExpiredCount() {
+        long count = 0;
+        for (DB shard : shards())
+            count += shard.getExpiredCount();
+        return count;
+    }
+
+    /**
+     * Track the most read keys: the reads by id feed a frequency sketch whose estimates age over time,
+     * and the objects of the hot keys are pinned in the identity map (never expired) and reloaded
+     * right after their updates, so that their readers do not all miss at once
+     * @param capacity maximum number of hot keys
+     */
+    public synchronized void enableHotKeys(int capacity) {
+        if (hotKeys != null)
+            hotKeys.clear();
+        hotKeys = new HotKeys(capacity, loadedMap);
+    }
+
+    /**
+     * Stop tracking the most read keys and unpin them
+     */
+    public synchronized void disableHotKeys() {
+        if (hotKeys != null)
+            hotKeys.clear();
+        hotKeys = null;
+    }
+
+    /**
+     * @return the hot keys and their estimated number of recent reads, the most read first (empty when disabled)
+     */
+    public Map<Object, Integer> getHotKeys() {
+        HotKeys hot = hotKeys;
+        return hot == null ? new LinkedHashMap<Object, Integer>() : hot.report();
+    }
+
+    /**
+     * Make keys hot, e.g. the hot keys saved by a previous run, and load their objects
+     * @param frequencies known number of recent reads of each key
+     * @throws MapperException if the hot keys are not tracked or the objects cannot be loaded
+     */
+    protected void warmUp(Map<?, Integer> frequencies) throws MapperException {
+        HotKeys hot = hotKeys;
+        if (hot == null)
+            throw new MapperException("AbstractMapper:: Hot keys are not tracked");
+        for (Map.Entry<?, Integer> entry : frequencies.entrySet())
+            hot.seed(entry.getKey(), entry.getValue());
+        abstractFindOrdered(new ArrayList<>(frequencies.keySet()));
+    }
+
+    // the updated object of a hot key is cached again once the update is committed
+    private void reloadIfHot(final Object id) throws MapperException {
+        HotKeys hot = hotKeys;
+        if (hot == null || !hot.isHot(id))
+            return;
+        afterCommit(new Transaction.Action() {
+            @Override
+            public void run() throws MapperException {
+                abstractFind(id);
+            }
+        });
+    }
+
+    /**
+     * Set the expiration policy of the cached objects
+     * @param policy cache policy (null means never expire)
+     */
+    public synchronized void setCachePolicy(CachePolicy policy) {
+        loadedMap.setPolicy(policy);
+        if (refresher == null && loadedMap.getPolicy().expires())
+            refresher = new CacheRefresher(this);
+    }
+
+    /**
+     * Build the '?' list of an IN clause
+     * @param count number of parameters
+     * @return "?, ?, ..., ?"
+     */
+    protected static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder(count * 3);
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                builder.append(", ");
+            builder.append('?');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Begin a transaction on the database of this mapper, bound to the current thread.
+     * Until it ends, the writes of this thread are only visible to itself and the objects it reads
+     * are kept in the identity map of the transaction.
+     * @return the transaction, to use with try-with-resources
+     * @throws MapperException if the mapper is sharded or a transaction is already active
+     */
+    public Transaction begin() throws MapperException {
+        if (shardRing != null)
+            throw new MapperException("AbstractMapper:: Transactions are not supported over several shards");
+        try {
+            return db.begin();
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        }
+    }
+
+    /**
+     * Run a small transaction with group commit (see DB.submit)
+     * @param work work using this mapper
+     * @return future completed once the work is committed
+     * @throws MapperException if the mapper is sharded
+     */
+    public Future<Void> submitTransaction(Transaction.Action work) throws MapperException {
+        if (shardRing != null)
+            throw new MapperException("AbstractMapper:: Transactions are not supported over several shards");
+        return db.submit(work);
+    }
+
+    /**
+     * Run an action now, or once the current transaction is committed
+     * @param action action depending on committed data (e.g. maintenance of an in-memory index)
+     * @throws MapperException if the action fails
+     */
+    protected void afterCommit(Transaction.Action action) throws MapperException {
+        Transaction transaction = db.currentTransaction();
+        if (transaction != null)
+            transaction.onCommit(action);
+        else
+            action.run();
+    }
+
+    /**
+     * Invalidate the cached query results a written object may change: the results holding it.
+     * Subclasses also invalidate the results of the queries the object matches.
+     * @param written inserted, updated or deleted object
+     */
+    protected void invalidateQueries(DomainObject written) {
+        queryCache.invalidateId(written.getId());
+    }
+
+    // invalidate the query results now, and once the current transaction (if any) is committed
+    private void queriesWritten(final DomainObject written) {
+        invalidateQueries(written);
+        Transaction transaction = db.currentTransaction();
+        if (transaction != null) {
+            transaction.onCommit(new Transaction.Action() {
+                @Override
+                public void run() {
+                    invalidateQueries(written);
+                }
+            });
+        }
+    }
+
+    // record a write of the current transaction, if any
+    private void written(Object id) {
+        Transaction transaction = db.currentTransaction();
+        if (transaction != null)
+            transaction.written(this, id);
+    }
+
+    /**
+     * Called when a transaction which wrote objects of this mapper ends: the shared caches
+     * may hold states of these objects read during the transaction, they are invalidated
+     * @param ids ids written by the transaction
+     * @param all true if the transaction deleted all the objects
+     * @param committed true if the transaction has been committed
+     */
+    void afterTransaction(Set<Object> ids, boolean all, boolean committed) {
+        if (all) {
+            loadedMap.removeAll();
+            queryCache.clear();
+        }
+        for (Object id : ids) {
+            loadedMap.removeObject(id);
+            queryCache.invalidateId(id);
+            // other sessions may have missed an id inserted by the transaction
+            if (committed)
+                missCache.invalidate(id);
+        }
+    }
+
+    /**
+     * Start following the change log of each database, so that writes made by other
+     * processes invalidate or refresh the cached objects
+     * @param changeTable name of the change log table
+     * @param periodMillis delay between two polls of the change log in milliseconds
+     * @throws MapperException if a change log cannot be read
+     */
+    protected synchronized void startChangeFeed(String changeTable, long periodMillis) throws MapperException {
+        if (!changeFeeds.isEmpty())
+            throw new MapperException("AbstractMapper:: Change feed is already started...");
+        ChangeListener listener = new ChangeListener() {
+            @Override
+            public void onChanges(List<ChangeEvent> changes) {
+                applyChanges(changes);
+            }
+        };
+        for (DB shard : shards()) {
+            ChangeFeed feed = new ChangeFeed(shard, changeTable);
+            feed.subscribe(listener);
+            feed.start(periodMillis);
+            changeFeeds.add(feed);
+        }
+        // the inserts made before the feeds started were not seen: the filter is scanned again
+        // (the keys added meanwhile are forwarded to the new one)
+        if (keyFilter != null)
+            keyFilter = loadKeyFilter(keyFilter);
+        followingChanges = true;
+    }
+
+    /**
+     * Stop following the change logs
+     */
+    public synchronized void stopChangeFeed() {
+        followingChanges = false;
+        for (ChangeFeed feed : changeFeeds)
+            feed.stop();
+        changeFeeds.clear();
+    }
+
+    /**
+     * Update the caches with changes read from a change log (including the changes of this mapper):
+     * the inserted and updated objects are read again, to reload the cached ones and to invalidate
+     * the query results they may change
+     * @param changes changes in sequence order
+     * @return the inserted and updated objects read again (the ids missing were deleted meanwhile),
+     * or null if they cannot be read
+     */
+    protected Map<Object, DomainObject> applyChanges(List<ChangeEvent> changes) {
+        // ids of the inserted and updated objects
+        Set<Object> changed = new LinkedHashSet<>();
+        for (ChangeEvent change : changes) {
+            Object id = change.getId();
+            switch (change.getOperation()) {
+                case INSERT:
+                    missCache.invalidate(id);
+                    // only the unknown ids are counted: this mapper already added its own inserts
+                    KeyFilter filter = keyFilter;
+                    if (filter != null && !filter.mightContain(id))
+                        filter.add(id);
+                    changed.add(id);
+                    break;
+                case UPDATE:
+                    changed.add(id);
+                    break;
+                case DELETE:
+                    // the id stays in the key filter as a false positive until the filter is rebuilt
+                    KeyFilter keys = keyFilter;
+                    if (keys != null)
+                        keys.deleted();
+                    loadedMap.removeObject(id);
+                    queryCache.invalidateId(id);
+                    changed.remove(id);
+                    break;
+            }
+        }
+        checkKeyFilter();
+        if (changed.isEmpty())
+            return new HashMap<>();
+        // capture the cached objects before reading, see refresh
+        Map<Object, Object> expected = new HashMap<>();
+        for (Object id : changed) {
+            Object cached = loadedMap.getObject(id);
+            if (cached != null)
+                expected.put(id, cached);
+        }
+        Map<Object, DomainObject> reloaded;
+        try {
+            reloaded = abstractFindByIdsOnPrimary(changed);
+        } catch (MapperException e) {
+            // the queries the objects match now are unknown and they cannot be reloaded:
+            // make sure they are not served anymore
+            queryCache.clear();
+            for (Object id : expected.keySet())
+                loadedMap.removeObject(id);
+            return null;
+        }
+        replaceCached(expected, reloaded);
+        for (Object id : changed) {
+            DomainObject fresh = reloaded.get(id);
+            if (fresh != null)
+                // the results holding the object and the queries it matches now
+                invalidateQueries(fresh);
+            else
+                queryCache.invalidateId(id);
+        }
+        return reloaded;
+    }
+
+    /**
+     * Returns the database storing an object
+     * @param id object identifier
+     * @return the shard owning the id, or the single database when the mapper is not sharded
+     */
+    protected DB dbFor(Object id) {
+        ShardRing ring = shardRing;
+        return ring == null ? db : ring.route(id);
+    }
+
+    // true if a replica of a shard may not have received the latest write yet
+    private boolean replicasMayLag() {
+        for (DB shard : shards()) {
+            if (shard.replicasMayLag())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return all the databases storing objects of this mapper
+     */
+    protected List<DB> shards() {
+        ShardRing ring = shardRing;
+        return ring == null ? Collections.singletonList(db) : ring.getShards();
+    }
+
+    /**
+     * Add a shard without moving any object (used to build a sharded mapper over empty or pre-partitioned databases)
+     * @param shardName database name (or JDBC URL)
+     * @throws MapperException if the database cannot be reached
+     */
+    protected void attachShard(String shardName) throws MapperException {
+        shardLock.writeLock().lock();
+        try {
+            shardRing = ringWith(shardName);
+        } finally {
+            shardLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add a shard and move to it the objects it now owns.
+     * Reads keep being served by the previous owners during the copy; writes wait for the end of the rebalancing.
+     * The rebalancing can be resumed: if the copy fails, the ring is left unchanged and the copy is written
+     * again (over the rows already copied) by the next call; if the previous owners fail to drop their copies,
+     * the new shard already serves its objects and calling addShard again with the same name finishes the clean up.
+     * @param shardName database name (or JDBC URL)
+     * @throws MapperException if something goes wrong...
+     */
+    public void addShard(String shardName) throws MapperException {
+        shardLock.writeLock().lock();
+        try {
+            ShardRing oldRing = shardRing == null ? new ShardRing(dbName, db) : shardRing;
+            if (oldRing.getShardNames().contains(shardName)) {
+                // the shard was added but the previous owners may still hold its objects
+                for (DB shard : oldRing.getShards())
+                    dropNotOwned(shard, oldRing);
+                return;
+            }
+            ShardRing newRing = ringWith(shardName);
+            DB newShard = newRing.getShards().get(newRing.getShards().size() - 1);
+
+            // find the objects owned by the new shard
+            Map<DB, List<Object>> moved = new HashMap<>();
+            Set<Object> movedIds = new HashSet<>();
+            for (DB shard : oldRing.getShards()) {
+                List<Object> shardIds = new ArrayList<>();
+                for (Object id : scanKeys(shard)) {
+                    if (newRing.route(id) == newShard)
+                        shardIds.add(id);
+                }
+                moved.put(shard, shardIds);
+                movedIds.addAll(shardIds);
+            }
+
+            // an interrupted rebalancing may have left rows deleted since then
+            List<Object> stale = new ArrayList<>();
+            for (Object id : scanKeys(newShard)) {
+                if (!movedIds.contains(id))
+                    stale.add(id);
+            }
+            deleteOn(newShard, stale);
+
+            // copy the objects, the rows copied by an interrupted rebalancing are overwritten
+            for (Map.Entry<DB, List<Object>> entry : moved.entrySet()) {
+                List<Object> shardIds = entry.getValue();
+                for (int from = 0; from < shardIds.size(); from += REBALANCE_BATCH_SIZE) {
+                    List<Object> batch = shardIds.subList(from, Math.min(from + REBALANCE_BATCH_SIZE, shardIds.size()));
+                    upsertOn(newShard, new ArrayList<DomainObject>(findByIdsOn(entry.getKey(), batch, true).values()));
+                }
+            }
+
+            // from now on the new shard serves its objects
+            shardRing = newRing;
+
+            // the previous owners can drop their copies
+            for (Map.Entry<DB, List<Object>> entry : moved.entrySet()) {
+                try {
+                    deleteOn(entry.getKey(), entry.getValue());
+                } catch (SQLException e) {
+                    throw new MapperException("AbstractMapper:: Shard " + shardName + " added but the previous owners still hold"
+                            + " its objects, call addShard again to finish the rebalancing: " + e.getMessage());
+                }
+            }
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        } finally {
+            shardLock.writeLock().unlock();
+        }
+    }
 
-            // then we create à deleteAll request
-            PreparedStatement deleteAllStatement = db.prepare(deleteAllStatement());
+    // delete from a database the rows it does not own in a ring
+    private void dropNotOwned(DB shard, ShardRing ring) throws SQLException {
+        List<Object> ids = new ArrayList<>();
+        for (Object id : scanKeys(shard)) {
+            if (ring.route(id) != shard)
+                ids.add(id);
+        }
+        deleteOn(shard, ids);
+    }
 
-            // we execute the satement
-            deleteAllStatement.executeUpdate();
+    // all the keys of a database
+    private List<Object> scanKeys(DB shard) throws SQLException {
+        List<Object> ids = new ArrayList<>();
+        try (PreparedStatement scanStatement = shard.prepare(keyScanStatement())) {
+            scanStatement.setFetchSize(KEY_SCAN_FETCH_SIZE);
+            try (ResultSet rs = scanStatement.executeQuery()) {
+                while (rs.next())
+                    ids.add(rs.getString(1));
+            }
+        }
+        return ids;
+    }
 
+    // delete rows from a database with a batch committed at once
+    private void deleteOn(DB shard, List<Object> ids) throws SQLException {
+        if (ids.isEmpty())
+            return;
+        Connection connection = shard.acquireConnection();
+        boolean autoCommit = connection.getAutoCommit();
+        try (PreparedStatement deleteStatement = connection.prepareStatement(deleteStatement())) {
+            connection.setAutoCommit(false);
+            for (Object id : ids) {
+                deleteStatement.setObject(1, id);
+                deleteStatement.addBatch();
+            }
+            deleteStatement.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+            shard.releaseConnection(connection);
+        }
+    }
+
+    // build the current ring extended with a new database
+    private ShardRing ringWith(String shardName) throws MapperException {
+        if (shardName == null || "".equals(shardName))
+            throw new MapperException("AbstractMapper:: Shard name is null or empty...");
+        try {
+            DB shard = DB.createDB(shardName);
+            ShardRing ring = shardRing == null ? new ShardRing(dbName, db) : shardRing;
+            if (shardExecutor == null)
+                shardExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "shard-query");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            return ring.with(shardName, shard);
+        } catch (IllegalArgumentException e) {
+            throw new MapperException(e.getMessage());
+        } catch (Exception e) {
+            throw new MapperException("AbstractMapper:: Failed to initialize shard access: " + e.getMessage());
+        }
+    }
+
+    // run queries in parallel (one per shard) and wait for all the results
+    private <T> List<T> scatter(List<Callable<T>> queries) throws MapperException {
+        // the queries run in other threads under the deadline of the session
+        final Deadline deadline = Deadline.current();
+        List<Callable<T>> bound = new ArrayList<>();
+        for (final Callable<T> query : queries) {
+            bound.add(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    Deadline previous = Deadline.bind(deadline);
+                    try {
+                        return query.call();
+                    } finally {
+                        Deadline.bind(previous);
+                    }
+                }
+            });
+        }
+        try {
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : shardExecutor.invokeAll(bound))
+                results.add(future.get());
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MapperException("AbstractMapper:: Interrupted while querying shards");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MapperException)
+                throw (MapperException) e.getCause();
+            throw new MapperException(String.valueOf(e.getCause()));
+        }
+    }
+
+    /**
+     * Check if an object exists in database.
+     * The cache answers the hits, the key filter the definite misses (while the change feed is followed)
+     * and the database the other cases.
+     * @param id object identifier
+     * @return true if an object with this id exists
+     * @throws MapperException if something goes wrong...
+     */
+    protected boolean abstractExists(Object id) throws MapperException {
+        if (id == null)
+            throw new MapperException("AbstractMapper:: Exists failed because id is null...");
+        if (loadedMap.containsObject(id))
+            return true;
+        if (knownMissing(id))
+            return false;
+        return abstractFind(id) != null;
+    }
+
+    // a key the filter does not contain is missing, as long as the filter sees the inserts of the other processes
+    private boolean knownMissing(Object id) throws MapperException {
+        return followingChanges && !keyFilter().mightContain(id);
+    }
+
+    /**
+     * Returns the key filter, loading it with a streaming scan of all the ids on first use.
+     * It holds the writes of this mapper and, while the change feed is followed, the ones of the other
+     * processes: without the feed it is only used to skip the checks for duplicates before the inserts.
+     * Once loaded, it is read without locking.
+     * @return the key filter
+     * @throws MapperException if the scan fails
+     */
+    protected KeyFilter keyFilter() throws MapperException {
+        KeyFilter filter = keyFilter;
+        if (filter != null)
+            return filter;
+        synchronized (this) {
+            if (keyFilter == null)
+                keyFilter = loadKeyFilter(null);
+            return keyFilter;
+        }
+    }
+
+    // build a filter of all the ids in database; the ids added meanwhile to the previous filter are forwarded to it
+    private KeyFilter loadKeyFilter(KeyFilter previous) throws MapperException {
+        try {
+            // size the filter for the current number of keys with room to grow
+            int count = 0;
+            for (DB shard : shards()) {
+                try (PreparedStatement countStatement = shard.prepare(countStatement());
+                     ResultSet countResult = countStatement.executeQuery()) {
+                    count += countResult.next() ? countResult.getInt(1) : 0;
+                }
+            }
+            final KeyFilter filter = newKeyFilter(count);
+            if (previous != null)
+                previous.rebuildInto(filter);
+
+            // stream the keys instead of loading the objects
+            abstractScan(keyScanStatement(), new Projection<Void>() {
+                @Override
+                public Void map(ResultSet rs) throws SQLException {
+                    filter.add(rs.getObject(1));
+                    return null;
+                }
+            });
+            return filter;
         } catch (SQLException e) {
             throw new MapperException(e.getMessage());
         }
     }
 
+    // rebuild the key filter in the background once it holds too many keys or too many deleted ones
+    private void checkKeyFilter() {
+        final KeyFilter filter = keyFilter;
+        if (filter == null || !filter.needsRebuild() || !keyFilterRebuilding.compareAndSet(false, true))
+            return;
+        Thread rebuilder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    KeyFilter rebuilt = loadKeyFilter(filter);
+                    synchronized (AbstractMapper.this) {
+                        // unless it was replaced meanwhile (deleteAll, staged reload)
+                        if (keyFilter == filter)
+                            keyFilter = rebuilt;
+                    }
+                } catch (MapperException e) {
+                    // the current filter stays valid, only less selective: retried on the next write
+                } finally {
+                    keyFilterRebuilding.set(false);
+                }
+            }
+        }, "key-filter-rebuild");
+        rebuilder.setDaemon(true);
+        rebuilder.start();
+    }
+
+    /**
+     * Create an empty key filter sized for a number of keys, with room to grow
+     * @param count current number of keys
+     * @return key filter
+     */
+    protected static KeyFilter newKeyFilter(int count) {
+        return new KeyFilter(Math.max(KEY_FILTER_MIN_KEYS, count * 2), KEY_FILTER_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * @return true if the objects are distributed over several databases
+     */
+    protected boolean isSharded() {
+        return shardRing != null;
+    }
+
+    /**
+     * Install the key filter of a table about to replace the current one (see tableReplaced)
+     * @param filter filter holding all the keys of the new table
+     */
+    protected synchronized void replaceKeyFilter(KeyFilter filter) {
+        keyFilter = filter;
+    }
+
+    /**
+     * Bring the caches up to date once the whole table has been replaced by a staged reload.
+     * The cached objects are not dropped, which would send all the readers to the database at once:
+     * they keep being served while they are reloaded in the background from the new table
+     * (a cached object written meanwhile is not overwritten), then reloadDerived is run.
+     */
+    protected void tableReplaced() {
+        missCache.clear();
+        queryCache.clear();
+        final List<Object> ids = new ArrayList<>();
+        for (Object cached : loadedMap.objects())
+            ids.add(((DomainObject) cached).getId());
+        Thread reloader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int from = 0; from < ids.size(); from += FIND_BY_IDS_BATCH_SIZE) {
+                    List<Object> batch = ids.subList(from, Math.min(from + FIND_BY_IDS_BATCH_SIZE, ids.size()));
+                    try {
+                        refresh(batch);
+                    } catch (MapperException e) {
+                        // not reloaded: these objects must not be served from the old table anymore
+                        for (Object id : batch)
+                            loadedMap.removeObject(id);
+                    }
+                }
+                try {
+                    reloadDerived();
+                } catch (MapperException e) {
+                    // the subclass disables what it could not rebuild
+                }
+            }
+        }, "reload-refresher");
+        reloader.setDaemon(true);
+        reloader.start();
+    }
+
+    /**
+     * Rebuild the in-memory structures derived from the table (indexes, snapshots...) after it has been
+     * replaced, in the background thread of tableReplaced. Does nothing by default.
+     * @throws MapperException if something goes wrong...
+     */
+    protected void reloadDerived() throws MapperException {
+    }
+
     /**
      * Load all the objects from a result set of SQL SELECT query.
      * For each object the load method (below) will be called.
@@ -319,20 +1880,107 @@ public abstract class AbstractMapper {
      */
     protected DomainObject load(ResultSet rs) throws MapperException {
         try {
-            String id = new String(rs.getString(1)); // catching the id from the result
+            Object id = rs.getObject(1); // catching the id from the result
 
             // if the object is already loaded in the cache we return it
-            if (loadedMap.objectMap.containsKey(id))
-                return (DomainObject) loadedMap.objectMap.get(id);
+            DomainObject cached = (DomainObject) loadedMap.getObject(id);
+            if (cached != null)
+                return cached;
 
             // if the objecct has been loaded yet, we load it up, add it to the cache and return it
             DomainObject result = doLoad(rs);
-            loadedMap.objectMap.put(id, result);
+            // unless it was read from a replica which may lag behind the latest write
+            if (dbFor(id).isUpToDate(rs.getStatement()))
+                loadedMap.addObject(id, result);
             return result;
         } catch (SQLException e) {
             throw new MapperException(e.getMessage());
         }
     }
 
+    /**
+     * Load a related domain object from the columns of a join, starting at a given column
+     * (its id first), through the cache so that there is still one instance per id.
+     *
+     * @param rs result set of a join query
+     * @param firstColumn index of the id column of the related object
+     * @return a domain object, or null when the outer join found no related row
+     * @throws MapperException if something goes wrong...
+     */
+    protected DomainObject loadJoined(ResultSet rs, int firstColumn) throws MapperException {
+        try {
+            Object id = rs.getObject(firstColumn);
+            if (id == null)
+                return null;
+            DomainObject cached = (DomainObject) loadedMap.getObject(id);
+            if (cached != null && loadedMap.getFreshness(id) != Registry.Freshness.EXPIRED)
+                return cached;
+            DomainObject loaded = doLoadJoined(rs, firstColumn);
+            // a replica which may lag behind the latest write answers this session only
+            if (!dbFor(id).isUpToDate(rs.getStatement()))
+                return loaded;
+            Object previous = loadedMap.addObjectIfAbsent(id, loaded);
+            return previous != null ? (DomainObject) previous : loaded;
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        }
+    }
+
+    /**
+     * Build a domain object from the columns of a join, starting at a given column.
+     * The columns follow the order of the find statement; mappers used as the target
+     * of a join fetch override it.
+     *
+     * @param rs SQL result set
+     * @param firstColumn index of the id column
+     * @return domain object
+     * @throws MapperException if the mapper cannot be joined
+     */
+    protected DomainObject doLoadJoined(ResultSet rs, int firstColumn) throws MapperException {
+        if (firstColumn != 1)
+            throw new MapperException("AbstractMapper:: Join fetch is not supported by " + getClass().getSimpleName());
+        return doLoad(rs);
+    }
+
+    /**
+     * Find the objects related to several criterion values (e.g. the children of several parents)
+     * with bounded IN queries instead of one query per value; the objects are loaded through the cache
+     *
+     * @param criteria values of the IN list
+     * @param findManyPattern SQL SELECT pattern, whose IN list is written "(%s)"
+     * @return the domain objects of all the values
+     * @throws MapperException if something goes wrong...
+     */
+    protected List<DomainObject> abstractFindManyIn(Collection<?> criteria, String findManyPattern)
+            throws MapperException {
+        if (criteria == null || findManyPattern == null)
+            throw new MapperException("AbstractMapper:: Find failed because criteria and/or findManyPattern is/are null...");
+        List<DomainObject> result = new ArrayList<>();
+        List<Object> values = new ArrayList<>(new LinkedHashSet<Object>(criteria));
+        for (DB shard : shards()) {
+            for (int from = 0; from < values.size(); from += FIND_BY_IDS_BATCH_SIZE) {
+                List<Object> batch = values.subList(from, Math.min(from + FIND_BY_IDS_BATCH_SIZE, values.size()));
+                DB.Call call = shard.startCall(ConcurrencyLimiter.Priority.READ);
+                PreparedStatement findManyStatement = null;
+                try {
+                    findManyStatement = shard.prepareRead(String.format(findManyPattern, placeholders(batch.size())));
+                    call.watch(findManyStatement);
+                    int index = 1;
+                    for (Object value : batch)
+                        findManyStatement.setObject(index++, value);
+                    ResultSet rs = findManyStatement.executeQuery();
+                    while (rs.next())
+                        result.add(load(rs));
+                } catch (SQLException e) {
+                    throw call.failure(e);
+                } finally {
+                    shard.release(findManyStatement);
+                    call.end();
+                }
+            }
+        }
+        return result;
+    }
+
 }
 
@@ -0,0 +1,95 @@
+package dm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Domain class representing an author, identified by the name used in the AUTHOR column of the books.
+ * The books of an author (one-to-many relationship) are loaded on first access, or fetched for
+ * many authors at once by the book mapper.
+ */
+public class Author implements DomainObject {
+    // name of the lazy group of the author's books
+    public static final String BOOKS = "books";
+
+    // Variables
+    private String name;
+    private String biography;
+
+    // lazy loading state
+    private LazyLoader loader;
+    private List<Book> books;
+
+    // Constructor
+    public Author(String name, String biography) throws IllegalArgumentException {
+        if (name == null)
+            throw new IllegalArgumentException("Cannot use null name");
+        this.name = name;
+        this.biography = biography;
+    }
+
+    // Accessors
+    @Override
+    public Object getId() {
+        return name;
+    }
+
+    @Override
+    public void setId(Object id) throws IllegalArgumentException {
+        if (id == null)
+            throw new IllegalArgumentException("Cannot use null name");
+        this.name = (String) id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getBiography() {
+        return biography;
+    }
+
+    public void setBiography(String biography) {
+        this.biography = biography;
+    }
+
+    /**
+     * @return the books of this author, loaded on first access (empty if the author was not loaded by a mapper)
+     */
+    public synchronized List<Book> getBooks() {
+        if (books == null && loader != null) {
+            try {
+                loader.loadLazy(this, BOOKS);
+            } catch (MapperException e) {
+                throw new IllegalStateException("Author:: Lazy loading of the books of " + name + " failed: " + e.getMessage());
+            }
+        }
+        return books == null ? Collections.<Book>emptyList() : books;
+    }
+
+    public synchronized boolean isBooksLoaded() {
+        return books != null;
+    }
+
+    // Lazy loading, used by the mappers
+
+    // the books will be loaded on first access
+    synchronized void setBooksLoader(LazyLoader loader) {
+        this.loader = loader;
+    }
+
+    // fill the books
+    synchronized void loadBooks(Collection<Book> p_books) {
+        this.books = Collections.unmodifiableList(new ArrayList<>(p_books));
+    }
+
+    @Override
+    public String toString() {
+        return "Author{" +
+                "name='" + name + '\'' +
+                ", biography='" + biography + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,163 @@
+package dm;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the authors to the AUTHOR table, on the database of a book mapper.
+ * The books of an author are loaded on first access through the book mapper.
+ */
+public class AuthorMapper extends AbstractMapper {
+    // mapper of the books, for the one-to-many relationship
+    private final BookMapper bookMapper;
+
+    // Constructor: created by the book mapper, see BookMapper.authors()
+    AuthorMapper(BookMapper bookMapper) {
+        super(bookMapper);
+        this.bookMapper = bookMapper;
+    }
+
+    // AbstractMapper inherited methods override
+    @Override
+    protected String insertStatement() {
+        return "INSERT INTO AUTHOR (name, biography) VALUES (?, ?)";
+    }
+
+    @Override
+    protected String findStatement() {
+        return "SELECT name, biography FROM AUTHOR WHERE name = ?";
+    }
+
+    @Override
+    protected String updateStatement() {
+        return "UPDATE AUTHOR SET name=?, biography=? WHERE name=?";
+    }
+
+    @Override
+    protected String deleteStatement() {
+        return "DELETE FROM AUTHOR WHERE name=?";
+    }
+
+    @Override
+    protected String deleteAllStatement() {
+        return "DELETE FROM AUTHOR WHERE 1=1";
+    }
+
+    @Override
+    protected String findByIdsStatement(int idCount) {
+        return "SELECT name, biography FROM AUTHOR WHERE name IN (" + placeholders(idCount) + ")";
+    }
+
+    @Override
+    protected String keyScanStatement() {
+        return "SELECT name FROM AUTHOR";
+    }
+
+    @Override
+    protected String countStatement() {
+        return "SELECT COUNT(*) FROM AUTHOR";
+    }
+
+    @Override
+    protected String lazyGroupStatement(String group) {
+        // the books are loaded by the book mapper
+        return null;
+    }
+
+    @Override
+    protected void doLoadGroup(DomainObject subject, String group, ResultSet rs) throws MapperException {
+        throw new MapperException("AuthorMapper:: Unknown lazy group " + group);
+    }
+
+    @Override
+    protected void doInsert(DomainObject subject, PreparedStatement ps) throws MapperException {
+        try {
+            ps.setString(1, (String) subject.getId());
+            ps.setString(2, ((Author) subject).getBiography());
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        }
+    }
+
+    @Override
+    protected DomainObject doLoad(ResultSet rs) throws MapperException {
+        return doLoadJoined(rs, 1);
+    }
+
+    @Override
+    protected DomainObject doLoadJoined(ResultSet rs, int firstColumn) throws MapperException {
+        try {
+            Author author = new Author(rs.getString(firstColumn), rs.getString(firstColumn + 1));
+            author.setBooksLoader(this);
+            return author;
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        }
+    }
+
+    @Override
+    protected void doUpdate(DomainObject subject, PreparedStatement ps) throws MapperException {
+        try {
+            ps.setString(1, (String) subject.getId());
+            ps.setString(2, ((Author) subject).getBiography());
+            ps.setString(3, (String) subject.getId());
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        }
+    }
+
+    /**
+     * Load the books of an author (one-to-many relationship)
+     * @param subject author
+     * @param group Author.BOOKS
+     * @throws MapperException if something goes wrong...
+     */
+    @Override
+    public void loadLazy(DomainObject subject, String group) throws MapperException {
+        if (!Author.BOOKS.equals(group)) {
+            super.loadLazy(subject, group);
+            return;
+        }
+        Author author = (Author) subject;
+        author.loadBooks(bookMapper.findManyByAuthor(author.getName()));
+    }
+
+    // Operations on the authors
+
+    public String insert(Author author) throws MapperException {
+        return (String) super.abstractInsert(author);
+    }
+
+    public Author find(String name) throws MapperException {
+        return (Author) super.abstractFind(name);
+    }
+
+    /**
+     * Find several authors with one query per batch of names, reusing the cached ones
+     * @param names author names
+     * @return the found authors by name (missing names are absent from the map)
+     * @throws MapperException if something goes wrong...
+     */
+    public Map<String, Author> findAll(List<String> names) throws MapperException {
+        Map<String, Author> authors = new HashMap<>();
+        for (DomainObject author : super.abstractFindOrdered(names))
+            authors.put((String) author.getId(), (Author) author);
+        return authors;
+    }
+
+    public void update(Author author) throws MapperException {
+        super.abstractUpdate(author);
+    }
+
+    public void delete(Author author) throws MapperException {
+        super.abstractDelete(author);
+    }
+
+    public void deleteAll() throws MapperException {
+        super.abstractDeleteAll();
+    }
+}
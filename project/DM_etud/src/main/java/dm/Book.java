@@ -1,17 +1,58 @@
 package dm;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
 /**
  * Domain class representing a book
+ * A book may be partially loaded: a ghost only knows its ID, and the details
+ * (heavy columns) of a book loaded by a listing query are loaded on first access.
+ * The author and the publisher (many-to-one relationships) are loaded on first access,
+ * unless the mapper fetched them with the book (join) or for many books at once (batch).
+ * A cached book may be compacted: its author name is shared with the other books of the
+ * author and its title is kept as Latin-1 (or UTF-8) bytes.
  */
 public class Book implements DomainObject {
+    // name of the lazy group of heavy columns
+    public static final String DETAILS = "details";
+    // names of the lazy groups of the related objects
+    public static final String AUTHOR_RELATION = "author";
+    public static final String PUBLISHER_RELATION = "publisher";
+
     // Variables
     private String ID;
     private String title;
+    // title of a compacted book (title is then null)
+    private byte[] compactTitle;
+    private boolean titleUtf8;
     private String author;
     private float price;
+    private String description;
+    private Integer publisherId;
+
+    // related objects, null until fetched
+    private Author authorEntity;
+    private Publisher publisher;
+
+    // lazy loading state
+    private LazyLoader loader;
+    private boolean ghost = false;
+    private boolean detailsLoaded = true;
+    private boolean authorFetched = false;
+    private boolean publisherFetched = false;
 
     // Constructor
     public Book(String ID, String p_title, String p_author, float p_price) throws IllegalArgumentException {
+        this(ID, p_title, p_author, p_price, null);
+    }
+
+    public Book(String ID, String p_title, String p_author, float p_price, String p_description) throws IllegalArgumentException {
+        this(ID, p_title, p_author, p_price, p_description, null);
+    }
+
+    public Book(String ID, String p_title, String p_author, float p_price, String p_description, Integer p_publisherId)
+            throws IllegalArgumentException {
         if (ID != null)
             this.ID = ID;
         else
@@ -20,10 +61,37 @@ public class Book implements DomainObject {
         this.title = p_title;
         this.author = p_author;
         this.price = p_price;
+        this.description = p_description;
+        this.publisherId = p_publisherId;
     }
 
     public Book(Book p_book) {
-        this(p_book.getId().toString(), p_book.getTitle().toString(), p_book.getAuthor().toString(), Float.parseFloat(p_book.getPrice().toString()));
+        this(p_book.getId().toString(), p_book.getTitle().toString(), p_book.getAuthor().toString(), Float.parseFloat(p_book.getPrice().toString()),
+                (String) p_book.getDescription(), p_book.getPublisherId());
+    }
+
+    /**
+     * Copy sharing no mutable state with this book (unlike the copy constructor, it handles compacted
+     * books and does not load the details: a copy of a book whose details are not loaded yet loads them
+     * on first access, as the related objects)
+     * @return copy of this book
+     */
+    synchronized Book copy() {
+        ensureLoaded(null);
+        Book copy = new Book(ID, titleString(), author, price, description, publisherId);
+        if (loader != null) {
+            copy.loader = loader;
+            copy.detailsLoaded = detailsLoaded;
+        }
+        return copy;
+    }
+
+    // Ghost constructor: only the ID is known, the other fields are loaded on first access
+    Book(String ID, LazyLoader loader) {
+        this(ID, null, null, 0f, null);
+        this.loader = loader;
+        this.ghost = true;
+        this.detailsLoaded = false;
     }
 
     // Accessors
@@ -32,11 +100,46 @@ public class Book implements DomainObject {
         return this.ID;
     }
 
-    public Object getTitle() { return title; }
+    public Object getTitle() {
+        ensureLoaded(null);
+        return titleString();
+    }
 
-    public Object getAuthor() { return author; }
+    public Object getAuthor() {
+        ensureLoaded(null);
+        return author;
+    }
 
-    public Object getPrice() { return this.price; }
+    public Object getPrice() {
+        ensureLoaded(null);
+        return this.price;
+    }
+
+    public Object getDescription() {
+        ensureLoaded(DETAILS);
+        return description;
+    }
+
+    public Integer getPublisherId() {
+        ensureLoaded(null);
+        return publisherId;
+    }
+
+    /**
+     * @return the author of this book, or null if it has no AUTHOR row (or the book was not loaded by a mapper)
+     */
+    public Author getAuthorEntity() {
+        ensureLoaded(AUTHOR_RELATION);
+        return authorEntity;
+    }
+
+    /**
+     * @return the publisher of this book, or null if it has none (or the book was not loaded by a mapper)
+     */
+    public Publisher getPublisher() {
+        ensureLoaded(PUBLISHER_RELATION);
+        return publisher;
+    }
 
     @Override
     public void setId (Object p_ID) throws IllegalArgumentException {
@@ -46,17 +149,150 @@ public class Book implements DomainObject {
             throw new IllegalArgumentException("Cannot use null ID");
     }
 
-    public void setTitle(String title) { this.title = title; }
+    public synchronized void setTitle(String title) {
+        ensureLoaded(null);
+        this.title = title;
+        this.compactTitle = null;
+    }
+
+    public synchronized void setAuthor(String author) {
+        ensureLoaded(null);
+        this.author = author;
+        // the related author is loaded again on next access
+        this.authorEntity = null;
+        this.authorFetched = false;
+    }
+
+    public void setPrice (float p_price) {
+        ensureLoaded(null);
+        this.price = p_price;
+    }
+
+    public synchronized void setDescription(String description) {
+        this.description = description;
+        this.detailsLoaded = true;
+    }
+
+    public synchronized void setPublisherId(Integer publisherId) {
+        ensureLoaded(null);
+        this.publisherId = publisherId;
+        // the related publisher is loaded again on next access
+        this.publisher = null;
+        this.publisherFetched = false;
+    }
+
+    public synchronized boolean isGhost() { return ghost; }
+
+    public synchronized boolean isDetailsLoaded() { return detailsLoaded; }
+
+    // Lazy loading, used by the mapper
+
+    // the details will be loaded on first access
+    synchronized void setDetailsLoader(LazyLoader loader) {
+        this.loader = loader;
+        this.detailsLoaded = false;
+    }
+
+    // the related objects will be loaded on first access
+    synchronized void setRelationsLoader(LazyLoader loader) {
+        this.loader = loader;
+    }
+
+    // fill the light fields of a ghost
+    synchronized void loadFields(String p_title, String p_author, float p_price, Integer p_publisherId) {
+        this.title = p_title;
+        this.author = p_author;
+        this.price = p_price;
+        this.publisherId = p_publisherId;
+        this.ghost = false;
+    }
 
-    public void setAuthor(String author) { this.author = author; }
+    // fill the details
+    synchronized void loadDetails(String p_description) {
+        this.description = p_description;
+        this.detailsLoaded = true;
+    }
 
-    public void setPrice (float p_price) { this.price = p_price; }
+    // set the related author, fetched with the book or loaded on first access
+    synchronized void loadAuthor(Author p_author) {
+        this.authorEntity = p_author;
+        this.authorFetched = true;
+    }
+
+    // set the related publisher, fetched with the book or loaded on first access
+    synchronized void loadPublisher(Publisher p_publisher) {
+        this.publisher = p_publisher;
+        this.publisherFetched = true;
+    }
+
+    // share the author name through a pool and keep the title as bytes
+    synchronized void compact(StringPool authors) {
+        this.author = authors.intern(author);
+        if (title != null) {
+            boolean latin1 = true;
+            for (int i = 0; i < title.length() && latin1; i++)
+                latin1 = title.charAt(i) <= 0xFF;
+            this.titleUtf8 = !latin1;
+            this.compactTitle = title.getBytes(titleCharset());
+            this.title = null;
+        }
+    }
+
+    /**
+     * Estimated heap size of this book and of the strings it holds; its author name is only
+     * counted if it is not in seenStrings yet (the name may be shared by several books)
+     * @param seenStrings identity set of the strings already counted
+     * @return size in bytes
+     */
+    synchronized long estimatedSize(Set<Object> seenStrings) {
+        // 9 references, the price and 5 flags
+        long size = MemoryEstimator.object(9 * MemoryEstimator.REFERENCE + 4 + 5)
+                + MemoryEstimator.string(ID)
+                + MemoryEstimator.string(title)
+                + MemoryEstimator.bytes(compactTitle)
+                + MemoryEstimator.string(description)
+                + (publisherId == null ? 0 : MemoryEstimator.BOXED);
+        if (author != null && seenStrings.add(author))
+            size += MemoryEstimator.string(author);
+        return size;
+    }
+
+    private synchronized String titleString() {
+        return compactTitle == null ? title : new String(compactTitle, titleCharset());
+    }
+
+    private Charset titleCharset() {
+        return titleUtf8 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+    }
+
+    synchronized boolean isAuthorFetched() { return authorFetched; }
+
+    synchronized boolean isPublisherFetched() { return publisherFetched; }
+
+    private synchronized void ensureLoaded(String group) {
+        boolean missing;
+        if (group == null)
+            missing = ghost;
+        else if (AUTHOR_RELATION.equals(group))
+            missing = !authorFetched;
+        else if (PUBLISHER_RELATION.equals(group))
+            missing = !publisherFetched;
+        else
+            missing = !detailsLoaded;
+        if (!missing || loader == null)
+            return;
+        try {
+            loader.loadLazy(this, group);
+        } catch (MapperException e) {
+            throw new IllegalStateException("Book:: Lazy loading of " + ID + " failed: " + e.getMessage());
+        }
+    }
 
     @Override
     public String toString() {
         return "Book{" +
                 "ID='" + ID + '\'' +
-                ", title='" + title + '\'' +
+                ", title='" + titleString() + '\'' +
                 ", author='" + author + '\'' +
                 ", price=" + price +
                 '}';
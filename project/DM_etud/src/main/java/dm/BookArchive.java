@@ -0,0 +1,376 @@
+package dm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulk export and import of the BOOK table to a columnar binary file.
+ * The export splits the table in ISBN ranges which are read in parallel on pooled connections.
+ * Each range is written as blocks of rows, each block storing its columns one after the other:
+ * <pre>
+ * file  := MAGIC version:int block*
+ * block := rowCount:int bodyLength:int isbn[rowCount] title[rowCount] author[rowCount] description[rowCount]
+ *          price:float[rowCount] publisherId:int[rowCount] (Integer.MIN_VALUE for null)
+ * text  := length:int (-1 for null) utf8Bytes[length]
+ * </pre>
+ * Blocks of different ranges are interleaved in the file, so the rows are not sorted.
+ * The archives of the first format (LEGACY_MAGIC, no version, no description nor publisher) can still be imported.
+ */
+public class BookArchive {
+    private static final byte[] MAGIC = {'B', 'O', 'O', 'K', 'C', 'O', 'L', 'S'};
+    private static final byte[] LEGACY_MAGIC = {'B', 'O', 'O', 'K', 'C', 'O', 'L', '1'};
+    // version of the written format, the legacy archives are version 1
+    public static final int FORMAT_VERSION = 2;
+    private static final int NULL_PUBLISHER = Integer.MIN_VALUE;
+    // number of rows of a block
+    public static final int BLOCK_ROWS = 8192;
+    // size of the read buffer of the import
+    private static final int READ_BUFFER_SIZE = 4 * 1024 * 1024;
+    // number of rows fetched at once by a range scan
+    private static final int SCAN_FETCH_SIZE = 1000;
+    private static final String BOUNDARY_STATEMENT = "SELECT isbn FROM BOOK ORDER BY isbn OFFSET ? ROWS FETCH NEXT 1 ROWS ONLY";
+
+    private final BookMapper mapper;
+    private final int parallelism;
+
+    /**
+     * @param mapper mapper of the exported or imported books
+     * @param parallelism number of ranges per database and of parallel workers
+     */
+    public BookArchive(BookMapper mapper, int parallelism) {
+        if (mapper == null || parallelism <= 0)
+            throw new IllegalArgumentException("BookArchive:: Invalid mapper or parallelism");
+        this.mapper = mapper;
+        this.parallelism = parallelism;
+    }
+
+    public BookArchive(BookMapper mapper) {
+        this(mapper, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Export all the books to a file
+     * @param file destination file (replaced if it exists)
+     * @return number of exported books
+     * @throws BookMapperException if something goes wrong...
+     */
+    public long exportTo(Path file) throws BookMapperException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4);
+            header.put(MAGIC).putInt(FORMAT_VERSION);
+            header.flip();
+            writeFully(channel, header, 0);
+            // next free position of the file, blocks reserve their space here
+            final AtomicLong position = new AtomicLong(header.capacity());
+
+            List<Callable<Long>> tasks = new ArrayList<>();
+            for (final DB shard : mapper.shards()) {
+                final List<String> boundaries = boundaries(shard);
+                for (int i = 0; i <= boundaries.size(); i++) {
+                    final String lower = i == 0 ? null : boundaries.get(i - 1);
+                    final String upper = i == boundaries.size() ? null : boundaries.get(i);
+                    tasks.add(new Callable<Long>() {
+                        @Override
+                        public Long call() throws Exception {
+                            return exportRange(shard, lower, upper, channel, position);
+                        }
+                    });
+                }
+            }
+
+            long total = 0;
+            for (Future<Long> result : executor.invokeAll(tasks))
+                total += result.get();
+            channel.force(false);
+            return total;
+        } catch (IOException | SQLException e) {
+            throw new BookMapperException("BookArchive: Export failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BookMapperException("BookArchive: Export interrupted");
+        } catch (ExecutionException e) {
+            throw new BookMapperException("BookArchive: Export failed: " + e.getCause().getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Import the books of a file with the batch insert of the mapper
+     * @param file file written by exportTo
+     * @return number of imported books
+     * @throws BookMapperException if something goes wrong...
+     */
+    public long importFrom(Path file) throws BookMapperException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        // bounds the decoded blocks waiting for an insert worker
+        final Semaphore inFlight = new Semaphore(parallelism * 2);
+        List<Future<Integer>> results = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            buffer.flip();
+
+            byte[] magic = new byte[MAGIC.length];
+            ByteBuffer header = fill(channel, buffer, MAGIC.length);
+            if (header == null)
+                throw new BookMapperException("BookArchive: Import failed: not a book archive");
+            header.get(magic);
+            final int version;
+            if (Arrays.equals(magic, LEGACY_MAGIC)) {
+                version = 1;
+            } else if (Arrays.equals(magic, MAGIC) && fill(channel, buffer, 4) != null) {
+                version = buffer.getInt();
+                if (version < 2 || version > FORMAT_VERSION)
+                    throw new BookMapperException("BookArchive: Import failed: unsupported archive version " + version);
+            } else {
+                throw new BookMapperException("BookArchive: Import failed: not a book archive");
+            }
+
+            while (fill(channel, buffer, 8) != null) {
+                int rowCount = buffer.getInt();
+                int bodyLength = buffer.getInt();
+                ByteBuffer body = bodyLength <= buffer.capacity()
+                        ? fill(channel, buffer, bodyLength) : readLarge(channel, buffer, bodyLength);
+                if (body == null)
+                    throw new BookMapperException("BookArchive: Import failed: truncated block");
+                final List<Book> books = decodeBlock(body, rowCount, version);
+
+                inFlight.acquire();
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws BookMapperException {
+                        try {
+                            return mapper.insertAll(books);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                }));
+            }
+
+            long total = 0;
+            for (Future<Integer> result : results)
+                total += result.get();
+            return total;
+        } catch (IOException e) {
+            throw new BookMapperException("BookArchive: Import failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BookMapperException("BookArchive: Import interrupted");
+        } catch (ExecutionException e) {
+            throw new BookMapperException("BookArchive: Import failed: " + e.getCause().getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // ISBNs splitting the table of a database in ranges of equal size
+    private List<String> boundaries(DB shard) throws SQLException {
+        List<String> boundaries = new ArrayList<>();
+        Connection connection = shard.acquireConnection();
+        try {
+            int count;
+            try (PreparedStatement countStatement = connection.prepareStatement(mapper.countStatement());
+                 ResultSet rs = countStatement.executeQuery()) {
+                count = rs.next() ? rs.getInt(1) : 0;
+            }
+            try (PreparedStatement boundaryStatement = connection.prepareStatement(BOUNDARY_STATEMENT)) {
+                for (int i = 1; i < parallelism && count >= parallelism; i++) {
+                    boundaryStatement.setInt(1, (int) ((long) count * i / parallelism));
+                    try (ResultSet rs = boundaryStatement.executeQuery()) {
+                        if (rs.next() && (boundaries.isEmpty() || !boundaries.get(boundaries.size() - 1).equals(rs.getString(1))))
+                            boundaries.add(rs.getString(1));
+                    }
+                }
+            }
+        } finally {
+            shard.releaseConnection(connection);
+        }
+        return boundaries;
+    }
+
+    // read the books of an isbn range [lower, upper[ (null bounds are open) and write them by blocks
+    private long exportRange(DB shard, String lower, String upper, FileChannel channel, AtomicLong position)
+            throws SQLException, IOException {
+        String sql = "SELECT isbn, title, author, price, description, publisher_id FROM BOOK";
+        if (lower != null && upper != null)
+            sql += " WHERE isbn >= ? AND isbn < ?";
+        else if (lower != null)
+            sql += " WHERE isbn >= ?";
+        else if (upper != null)
+            sql += " WHERE isbn < ?";
+
+        long exported = 0;
+        Connection connection = shard.acquireConnection();
+        try (PreparedStatement scanStatement = connection.prepareStatement(sql)) {
+            int index = 1;
+            if (lower != null)
+                scanStatement.setString(index++, lower);
+            if (upper != null)
+                scanStatement.setString(index, upper);
+            scanStatement.setFetchSize(SCAN_FETCH_SIZE);
+
+            List<Book> block = new ArrayList<>(BLOCK_ROWS);
+            try (ResultSet rs = scanStatement.executeQuery()) {
+                while (rs.next()) {
+                    block.add(new Book(rs.getString(1), rs.getString(2), rs.getString(3), rs.getFloat(4),
+                            rs.getString(5), (Integer) rs.getObject(6)));
+                    if (block.size() == BLOCK_ROWS) {
+                        writeBlock(block, channel, position);
+                        exported += block.size();
+                        block.clear();
+                    }
+                }
+            }
+            if (!block.isEmpty()) {
+                writeBlock(block, channel, position);
+                exported += block.size();
+            }
+        } finally {
+            shard.releaseConnection(connection);
+        }
+        return exported;
+    }
+
+    // encode a block column by column and write it at a reserved position of the file
+    private static void writeBlock(List<Book> block, FileChannel channel, AtomicLong position) throws IOException {
+        int rows = block.size();
+        byte[][] isbns = new byte[rows][];
+        byte[][] titles = new byte[rows][];
+        byte[][] authors = new byte[rows][];
+        byte[][] descriptions = new byte[rows][];
+        // price and publisher id
+        int bodyLength = rows * (4 + 4);
+        for (int i = 0; i < rows; i++) {
+            Book book = block.get(i);
+            isbns[i] = encode(book.getId());
+            titles[i] = encode(book.getTitle());
+            authors[i] = encode(book.getAuthor());
+            descriptions[i] = encode(book.getDescription());
+            bodyLength += textLength(isbns[i]) + textLength(titles[i]) + textLength(authors[i]) + textLength(descriptions[i]);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(8 + bodyLength);
+        buffer.putInt(rows).putInt(bodyLength);
+        putColumn(buffer, isbns);
+        putColumn(buffer, titles);
+        putColumn(buffer, authors);
+        putColumn(buffer, descriptions);
+        for (Book book : block)
+            buffer.putFloat((Float) book.getPrice());
+        for (Book book : block) {
+            Integer publisherId = book.getPublisherId();
+            buffer.putInt(publisherId == null ? NULL_PUBLISHER : publisherId);
+        }
+        buffer.flip();
+
+        writeFully(channel, buffer, position.getAndAdd(buffer.remaining()));
+    }
+
+    private static List<Book> decodeBlock(ByteBuffer body, int rows, int version) {
+        String[] isbns = getColumn(body, rows);
+        String[] titles = getColumn(body, rows);
+        String[] authors = getColumn(body, rows);
+        if (version == 1) {
+            List<Book> books = new ArrayList<>(rows);
+            for (int i = 0; i < rows; i++)
+                books.add(new Book(isbns[i], titles[i], authors[i], body.getFloat()));
+            return books;
+        }
+        String[] descriptions = getColumn(body, rows);
+        float[] prices = new float[rows];
+        for (int i = 0; i < rows; i++)
+            prices[i] = body.getFloat();
+        List<Book> books = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            int publisherId = body.getInt();
+            books.add(new Book(isbns[i], titles[i], authors[i], prices[i], descriptions[i],
+                    publisherId == NULL_PUBLISHER ? null : publisherId));
+        }
+        return books;
+    }
+
+    private static byte[] encode(Object text) {
+        return text == null ? null : text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int textLength(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putColumn(ByteBuffer buffer, byte[][] column) {
+        for (byte[] bytes : column) {
+            if (bytes == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+        }
+    }
+
+    private static String[] getColumn(ByteBuffer buffer, int rows) {
+        String[] column = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            int length = buffer.getInt();
+            if (length < 0)
+                continue;
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            column[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return column;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    // make sure the buffer holds at least count bytes, returns null at the end of the file
+    private static ByteBuffer fill(FileChannel channel, ByteBuffer buffer, int count) throws IOException {
+        if (buffer.remaining() < count) {
+            buffer.compact();
+            while (buffer.position() < count) {
+                if (channel.read(buffer) < 0)
+                    break;
+            }
+            buffer.flip();
+            if (buffer.remaining() < count)
+                return null;
+        }
+        return buffer;
+    }
+
+    // a block larger than the read buffer gets its own buffer
+    private static ByteBuffer readLarge(FileChannel channel, ByteBuffer buffer, int count) throws IOException {
+        ByteBuffer large = ByteBuffer.allocate(count);
+        large.put(buffer);
+        while (large.hasRemaining()) {
+            if (channel.read(large) < 0)
+                return null;
+        }
+        large.flip();
+        return large;
+    }
+}
@@ -0,0 +1,441 @@
+package dm;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bulk loader of books from a CSV file (isbn,title,author,price, optionally quoted with "").
+ * The file is memory-mapped chunk by chunk; parser threads decode the mapped bytes directly
+ * into Book objects (without copying the chunk nor allocating strings for the fields other than
+ * the texts of the books) and hand them by batches, through a bounded queue, to insert workers using
+ * the batch insert of the mapper (each worker on its own pooled connection).
+ * Completed chunks are recorded in a checkpoint file so that an interrupted load can be resumed.
+ */
+public class BookCsvLoader {
+    // nominal size of a chunk of the file
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    // number of books inserted by one batch
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    // longest line supported (a line starting in a chunk may end in the next one)
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    // number of batches waiting for an insert worker
+    private static final int QUEUE_CAPACITY = 64;
+    // delay between two throughput reports (in seconds)
+    private static final int REPORT_PERIOD_SECONDS = 5;
+    // delay between two checks of a failure while the queue is full (in milliseconds)
+    private static final int OFFER_TIMEOUT_MILLIS = 100;
+    private static final String CHECKPOINT_HEADER = "chunkSize=";
+
+    private final BookMapper mapper;
+    private final int parserThreads;
+    private final int insertWorkers;
+    private final int batchSize;
+    private final int chunkSize;
+    private final boolean hasHeader;
+    private final PrintStream report;
+
+    /**
+     * A batch of books parsed from a chunk
+     */
+    private static class Batch {
+        private final int chunk;
+        private final List<Book> books;
+
+        private Batch(int chunk, List<Book> books) {
+            this.chunk = chunk;
+            this.books = books;
+        }
+    }
+
+    // tells an insert worker to stop
+    private static final Batch END = new Batch(-1, null);
+
+    /**
+     * Fields of a parsed line, reused from one line to the next
+     */
+    static final class Line {
+        String isbn;
+        String title;
+        String author;
+        float price;
+        // characters of the text field being decoded
+        private char[] chars = new char[128];
+    }
+
+    /**
+     * @param mapper mapper used to insert the books
+     * @param parserThreads number of parser threads
+     * @param insertWorkers number of insert workers (and of database connections)
+     * @param hasHeader true if the first line of the file is a header
+     * @param report stream receiving throughput reports (null for none)
+     */
+    public BookCsvLoader(BookMapper mapper, int parserThreads, int insertWorkers, boolean hasHeader, PrintStream report) {
+        this(mapper, parserThreads, insertWorkers, DEFAULT_BATCH_SIZE, DEFAULT_CHUNK_SIZE, hasHeader, report);
+    }
+
+    public BookCsvLoader(BookMapper mapper, int parserThreads, int insertWorkers, int batchSize, int chunkSize,
+                         boolean hasHeader, PrintStream report) {
+        if (mapper == null || parserThreads <= 0 || insertWorkers <= 0 || batchSize <= 0 || chunkSize <= 0)
+            throw new IllegalArgumentException("BookCsvLoader:: Invalid loader parameters");
+        this.mapper = mapper;
+        this.parserThreads = parserThreads;
+        this.insertWorkers = insertWorkers;
+        this.batchSize = batchSize;
+        this.chunkSize = chunkSize;
+        this.hasHeader = hasHeader;
+        this.report = report;
+    }
+
+    /**
+     * Load a CSV file
+     * @param csv CSV file of books
+     * @param checkpoint checkpoint file (created if missing, completed chunks are skipped if present)
+     * @return number of inserted books
+     * @throws BookMapperException if something goes wrong...
+     */
+    public long load(Path csv, final Path checkpoint) throws BookMapperException {
+        final long start = System.nanoTime();
+        final AtomicLong inserted = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        ExecutorService parsers = Executors.newFixedThreadPool(parserThreads);
+        ExecutorService workers = Executors.newFixedThreadPool(insertWorkers);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+
+        try (final FileChannel channel = FileChannel.open(csv, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final int chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+            // a chunk not completed by a previous run may have been partly inserted
+            final boolean resuming = Files.exists(checkpoint);
+            final Set<Integer> done = readCheckpoint(checkpoint);
+            // per chunk: batches not yet inserted, +1 while the chunk is being parsed
+            final AtomicInteger[] pending = new AtomicInteger[chunkCount];
+
+            if (report != null) {
+                reporter.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        report(inserted.get(), start);
+                    }
+                }, REPORT_PERIOD_SECONDS, REPORT_PERIOD_SECONDS, TimeUnit.SECONDS);
+            }
+
+            // insert stage
+            for (int i = 0; i < insertWorkers; i++) {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Batch batch;
+                            while ((batch = queue.take()) != END) {
+                                // after a failure the queue is only drained
+                                if (failure.get() != null)
+                                    continue;
+                                try {
+                                    List<Book> books = resuming ? withoutExisting(batch.books) : batch.books;
+                                    inserted.addAndGet(mapper.insertAll(books));
+                                    if (pending[batch.chunk].decrementAndGet() == 0)
+                                        recordChunk(checkpoint, batch.chunk);
+                                } catch (Exception e) {
+                                    failure.compareAndSet(null, e);
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } catch (Error e) {
+                            // the parsers must not wait for a worker which is gone
+                            failure.compareAndSet(null, e);
+                            throw e;
+                        }
+                    }
+                });
+            }
+
+            // parse stage
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                if (done.contains(chunk))
+                    continue;
+                pending[chunk] = new AtomicInteger(1);
+                final int currentChunk = chunk;
+                parsers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            parseChunk(channel, size, currentChunk, queue, pending[currentChunk], failure);
+                            if (pending[currentChunk].decrementAndGet() == 0)
+                                recordChunk(checkpoint, currentChunk);
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+            }
+
+            parsers.shutdown();
+            parsers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            for (int i = 0; i < insertWorkers; i++) {
+                if (!offer(queue, END, failure))
+                    break;
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (IOException e) {
+            throw new BookMapperException("BookCsvLoader: Load failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BookMapperException("BookCsvLoader: Load interrupted");
+        } finally {
+            parsers.shutdownNow();
+            workers.shutdownNow();
+            reporter.shutdownNow();
+        }
+
+        if (failure.get() != null)
+            throw new BookMapperException("BookCsvLoader: Load failed (resume with the same checkpoint): "
+                    + failure.get().getMessage());
+        if (report != null)
+            report(inserted.get(), start);
+        return inserted.get();
+    }
+
+    private void report(long rows, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        report.printf("BookCsvLoader: %d books inserted in %.1f s (%.0f books/s)%n", rows, seconds, rows / Math.max(seconds, 1e-3));
+    }
+
+    // parse the lines starting in a chunk and queue them by batches
+    private void parseChunk(FileChannel channel, long size, int chunk, BlockingQueue<Batch> queue,
+                            AtomicInteger pending, AtomicReference<Throwable> failure)
+            throws IOException, InterruptedException {
+        long chunkStart = (long) chunk * chunkSize;
+        long chunkEnd = Math.min(chunkStart + chunkSize, size);
+        // map the chunk and enough of the next one to finish its last line
+        long mapEnd = Math.min(chunkEnd + MAX_LINE_LENGTH, size);
+        MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, mapEnd - chunkStart);
+        int limit = (int) (chunkEnd - chunkStart);
+
+        int pos = 0;
+        // the line cut by the chunk start belongs to the previous chunk
+        if ((chunk > 0 && !endsLine(channel, chunkStart)) || (chunk == 0 && hasHeader))
+            pos = nextLine(bytes, 0);
+
+        List<Book> books = new ArrayList<>(batchSize);
+        Line line = new Line();
+        while (pos < limit && pos < bytes.limit()) {
+            if (failure.get() != null)
+                return;
+            pos = parseLine(bytes, pos, line);
+            if (line.isbn != null)
+                books.add(new Book(line.isbn, line.title, line.author, line.price));
+            if (books.size() == batchSize) {
+                pending.incrementAndGet();
+                if (!offer(queue, new Batch(chunk, books), failure))
+                    return;
+                books = new ArrayList<>(batchSize);
+            }
+        }
+        if (!books.isEmpty()) {
+            pending.incrementAndGet();
+            offer(queue, new Batch(chunk, books), failure);
+        }
+    }
+
+    // queue a batch, unless the load failed: the workers may then be gone and never drain the queue
+    private static boolean offer(BlockingQueue<Batch> queue, Batch batch, AtomicReference<Throwable> failure)
+            throws InterruptedException {
+        while (!queue.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (failure.get() != null)
+                return false;
+        }
+        return true;
+    }
+
+    // true if the byte just before a position is a line end
+    private static boolean endsLine(FileChannel channel, long position) throws IOException {
+        ByteBuffer previous = ByteBuffer.allocate(1);
+        channel.read(previous, position - 1);
+        return previous.get(0) == '\n';
+    }
+
+    private static int nextLine(ByteBuffer bytes, int pos) {
+        while (pos < bytes.limit() && bytes.get(pos) != '\n')
+            pos++;
+        return pos + 1;
+    }
+
+    /**
+     * Decode the fields of a line (isbn,title,author,price) directly from the bytes
+     * @param bytes buffer holding the line, read with absolute gets up to its limit
+     * @param pos start of the line
+     * @param line fields of the line (a missing field is null, or 0 for the price)
+     * @return start of the next line
+     */
+    static int parseLine(ByteBuffer bytes, int pos, Line line) {
+        int end = bytes.limit();
+        line.isbn = null;
+        line.title = null;
+        line.author = null;
+        line.price = 0f;
+        int field = 0;
+        while (pos < end && bytes.get(pos) != '\n') {
+            int start;
+            int stop;
+            boolean quoted = bytes.get(pos) == '"';
+            if (quoted) {
+                // quoted field, "" is an escaped quote
+                start = ++pos;
+                while (pos < end && !(bytes.get(pos) == '"' && (pos + 1 >= end || bytes.get(pos + 1) != '"'))) {
+                    if (bytes.get(pos) == '"')
+                        pos++;
+                    pos++;
+                }
+                stop = pos++;
+            } else {
+                start = pos;
+                while (pos < end && bytes.get(pos) != ',' && bytes.get(pos) != '\n')
+                    pos++;
+                stop = pos;
+                if (stop > start && bytes.get(stop - 1) == '\r')
+                    stop--;
+            }
+            if (quoted || stop > start) {
+                switch (field) {
+                    case 0:
+                        line.isbn = text(bytes, start, stop, quoted, line);
+                        break;
+                    case 1:
+                        line.title = text(bytes, start, stop, quoted, line);
+                        break;
+                    case 2:
+                        line.author = text(bytes, start, stop, quoted, line);
+                        break;
+                    case 3:
+                        line.price = parsePrice(bytes, start, stop);
+                        break;
+                    default:
+                        // extra fields are ignored
+                }
+            }
+            if (pos < end && bytes.get(pos) == ',')
+                pos++;
+            field++;
+        }
+        return pos + 1;
+    }
+
+    // decode a text field, ASCII bytes go straight to the characters of the string
+    private static String text(ByteBuffer bytes, int start, int end, boolean quoted, Line line) {
+        if (line.chars.length < end - start)
+            line.chars = new char[end - start];
+        char[] chars = line.chars;
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = bytes.get(i);
+            if (b < 0)
+                return decode(bytes, start, end, quoted);
+            chars[length++] = (char) b;
+            if (quoted && b == '"')
+                i++;
+        }
+        return new String(chars, 0, length);
+    }
+
+    // decode a field holding multi-byte UTF-8 characters
+    private static String decode(ByteBuffer bytes, int start, int end, boolean quoted) {
+        ByteBuffer field = bytes.duplicate();
+        field.limit(end);
+        field.position(start);
+        String value = StandardCharsets.UTF_8.decode(field).toString();
+        return quoted ? value.replace("\"\"", "\"") : value;
+    }
+
+    /**
+     * Parse a decimal price like 37.49 directly from the bytes (other notations fall back to Float.parseFloat)
+     * @param bytes buffer holding the price
+     * @param start first byte of the price
+     * @param end end of the price (exclusive)
+     * @return price (0 for an empty field)
+     * @throws NumberFormatException if the field is not a number
+     */
+    static float parsePrice(ByteBuffer bytes, int start, int end) {
+        long digits = 0;
+        int scale = -1;
+        boolean negative = false;
+        for (int i = start; i < end; i++) {
+            byte c = bytes.get(i);
+            if (c >= '0' && c <= '9' && digits < Long.MAX_VALUE / 10) {
+                digits = digits * 10 + (c - '0');
+                if (scale >= 0)
+                    scale++;
+            } else if (c == '.' && scale < 0) {
+                scale = 0;
+            } else if (c == '-' && i == start) {
+                negative = true;
+            } else {
+                return Float.parseFloat(decode(bytes, start, end, false).trim());
+            }
+        }
+        double value = digits / Math.pow(10, Math.max(scale, 0));
+        return (float) (negative ? -value : value);
+    }
+
+    // remove the books inserted by a previous run of the load
+    private List<Book> withoutExisting(List<Book> books) throws MapperException {
+        List<Object> ids = new ArrayList<>(books.size());
+        for (Book book : books)
+            ids.add(book.getId());
+        Set<Object> existing = mapper.abstractFindByIdsOnPrimary(ids).keySet();
+        if (existing.isEmpty())
+            return books;
+        List<Book> missing = new ArrayList<>(books);
+        for (Iterator<Book> it = missing.iterator(); it.hasNext(); ) {
+            if (existing.contains(it.next().getId()))
+                it.remove();
+        }
+        return missing;
+    }
+
+    private Set<Integer> readCheckpoint(Path checkpoint) throws IOException, BookMapperException {
+        Set<Integer> done = new HashSet<>();
+        if (!Files.exists(checkpoint)) {
+            Files.write(checkpoint, (CHECKPOINT_HEADER + chunkSize + "\n").getBytes(StandardCharsets.UTF_8));
+            return done;
+        }
+        List<String> lines = Files.readAllLines(checkpoint, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(CHECKPOINT_HEADER + chunkSize))
+            throw new BookMapperException("BookCsvLoader: Checkpoint was written with another chunk size");
+        for (String line : lines.subList(1, lines.size())) {
+            if (!line.isEmpty())
+                done.add(Integer.valueOf(line.trim()));
+        }
+        return done;
+    }
+
+    private synchronized void recordChunk(Path checkpoint, int chunk) throws IOException {
+        try (FileChannel out = FileChannel.open(checkpoint, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            out.write(ByteBuffer.wrap((chunk + "\n").getBytes(StandardCharsets.UTF_8)));
+            out.force(false);
+        }
+    }
+}
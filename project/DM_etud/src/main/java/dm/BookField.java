@@ -0,0 +1,63 @@
+package dm;
+
+/**
+ * Column of the BOOK table usable in a BookQuery, typed by the values it holds
+ * @param <T> type of the values of the column
+ */
+public abstract class BookField<T extends Comparable<? super T>> {
+    public static final BookField<String> ISBN = new BookField<String>("ISBN", 0) {
+        @Override
+        String valueOf(Book book) {
+            return (String) book.getId();
+        }
+    };
+    public static final BookField<String> TITLE = new BookField<String>("TITLE", 1) {
+        @Override
+        String valueOf(Book book) {
+            return (String) book.getTitle();
+        }
+    };
+    public static final BookField<String> AUTHOR = new BookField<String>("AUTHOR", 2) {
+        @Override
+        String valueOf(Book book) {
+            return (String) book.getAuthor();
+        }
+    };
+    public static final BookField<Float> PRICE = new BookField<Float>("PRICE", 3) {
+        @Override
+        Float valueOf(Book book) {
+            return (Float) book.getPrice();
+        }
+    };
+    public static final BookField<Integer> PUBLISHER_ID = new BookField<Integer>("PUBLISHER_ID", 4) {
+        @Override
+        Integer valueOf(Book book) {
+            return book.getPublisherId();
+        }
+    };
+
+    private final String column;
+    // short code of the field in the shape of a query
+    private final int code;
+
+    private BookField(String column, int code) {
+        this.column = column;
+        this.code = code;
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    int getCode() {
+        return code;
+    }
+
+    // value of the column for a loaded book, to merge the sorted results of several shards
+    abstract T valueOf(Book book);
+
+    @Override
+    public String toString() {
+        return column;
+    }
+}
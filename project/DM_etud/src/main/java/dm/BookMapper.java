@@ -1,17 +1,89 @@
 package dm;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class BookMapper extends AbstractMapper implements BookMapperOps {
+    // default time during which the cached price aggregates are served (in milliseconds)
+    public static final long DEFAULT_STATS_MAX_AGE_MILLIS = 10000;
 
     private static BookMapper instance = null;
+    // columns of the book rows: the listing queries select the light ones, the find statements also
+    // the description, so the publisher id is always the 5th column and the description the 6th and last one
+    private static final String LIGHT_COLUMNS = "isbn, title, author, price, publisher_id";
+    private static final String DETAIL_COLUMNS = LIGHT_COLUMNS + ", description";
+    private static final int PUBLISHER_COLUMN = 5;
+    private static final int DESCRIPTION_COLUMN = 6;
+    // mappers of the related tables (created on first use)
+    private AuthorMapper authorMapper;
+    private PublisherMapper publisherMapper;
+    // shared author names of the compacted books (null when the cached books are not compacted)
+    private volatile StringPool authorPool;
+    // number of author names the pool can share
+    private static final int AUTHOR_POOL_SIZE = 4096;
+    // immutable snapshot of the whole catalog serving the reads (null when disabled)
+    private volatile CatalogSnapshot snapshot;
+    // serializes the publications of a new snapshot
+    private final Object snapshotLock = new Object();
+    // inverted index over the titles (null until enabled)
+    private volatile TitleIndex titleIndex;
+    // sorted index of the prices (null until enabled)
+    private volatile PriceIndex priceIndex;
+    // delayed writes of the inserts and updates (null when the writes are synchronous)
+    private volatile BookWriteBehind writeBehind;
+    // cached price aggregates, maintained from the writes of this mapper (null when not cached); the writes of
+    // the other processes are only seen through the change feed, or once the aggregates are older than their max age
+    private final Object statsLock = new Object();
+    private PriceStats totalStats;
+    private Map<String, PriceStats> authorStats;
+    // date (System.nanoTime) at which the cached aggregates were read from the database
+    private long totalStatsAt;
+    private long authorStatsAt;
+    private volatile long statsMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STATS_MAX_AGE_MILLIS);
+    // incremented by every write: an aggregate read during a write is not cached
+    private long statsVersion;
+    // compiled templates of the ad-hoc queries, by shape
+    private final ConcurrentHashMap<String, BookQuery.Template> queryTemplates = new ConcurrentHashMap<>();
+    // number of query shapes kept compiled (the others are compiled on each run)
+    private static final int MAX_QUERY_TEMPLATES = 256;
+    // loads the books of a query through the identity map
+    private final Projection<Book> bookLoader = new Projection<Book>() {
+        @Override
+        public Book map(ResultSet rs) throws SQLException {
+            try {
+                return (Book) load(rs);
+            } catch (MapperException e) {
+                throw new SQLException(e.getMessage(), e);
+            }
+        }
+    };
 
     // Constructor
-    private BookMapper(String dbName) {
-        super(dbName);
+    private BookMapper(String dbName, String... replicaNames) {
+        super(dbName, replicaNames);
+        // the books are cached by normalised isbn
+        this.loadedMap = new IsbnRegistry();
     }
 
     // Accessor
@@ -23,19 +95,48 @@ public class BookMapper extends AbstractMapper implements BookMapperOps {
         return instance;
     }
 
+    /**
+     * Create a mapper on another database, with optional read-only replicas
+     * @param dbName primary database name (or JDBC URL)
+     * @param replicaNames replica database names (or JDBC URLs)
+     * @return a new book mapper
+     */
+    public static BookMapper createMapper(String dbName, String... replicaNames) {
+        return new BookMapper(dbName, replicaNames);
+    }
+
+    /**
+     * Create a mapper distributing the books over several databases by consistent hash of their isbn
+     * @param shardNames database names (or JDBC URLs), all holding a BOOK table
+     * @return a new sharded book mapper
+     * @throws BookMapperException if a shard cannot be reached
+     */
+    public static BookMapper createShardedMapper(String... shardNames) throws BookMapperException {
+        if (shardNames.length == 0)
+            throw new BookMapperException("BookMapper: At least one shard is needed");
+        BookMapper mapper = new BookMapper(shardNames[0]);
+        try {
+            for (int i = 1; i < shardNames.length; i++)
+                mapper.attachShard(shardNames[i]);
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+        return mapper;
+    }
+
     // AbstractMapper inherited methods override
     @Override
     protected String insertStatement() {
-        return "INSERT INTO BOOK (isbn, title, author, price) VALUES (?, ?, ?, ?)";
+        return "INSERT INTO BOOK (isbn, title, author, price, description, publisher_id) VALUES (?, ?, ?, ?, ?, ?)";
     }
 
     @Override
     protected String findStatement() {
-        return "SELECT * from BOOK where isbn = ?";
+        return "SELECT " + DETAIL_COLUMNS + " FROM BOOK WHERE isbn = ?";
     }
 
     @Override
-    protected String updateStatement() { return "UPDATE BOOK VALUES isbn=?, title=?, author=?, price=? WHERE isbn=?"; }
+    protected String updateStatement() { return "UPDATE BOOK SET isbn=?, title=?, author=?, price=?, description=?, publisher_id=? WHERE isbn=?"; }
 
     @Override
     protected String deleteStatement() {
@@ -47,6 +148,55 @@ public class BookMapper extends AbstractMapper implements BookMapperOps {
         return "DELETE FROM BOOK WHERE 1=1";
     }
 
+    @Override
+    protected String findByIdsStatement(int idCount) {
+        return "SELECT " + DETAIL_COLUMNS + " FROM BOOK WHERE isbn IN (" + placeholders(idCount) + ")";
+    }
+
+    @Override
+    protected String keyScanStatement() {
+        return "SELECT isbn FROM BOOK";
+    }
+
+    @Override
+    protected String countStatement() {
+        return "SELECT COUNT(*) FROM BOOK";
+    }
+
+    @Override
+    protected String lazyGroupStatement(String group) {
+        if (Book.DETAILS.equals(group))
+            return "SELECT description FROM BOOK WHERE isbn = ?";
+        return null;
+    }
+
+    @Override
+    protected DomainObject createGhost(Object id) {
+        return new Book((String) id, this);
+    }
+
+    @Override
+    protected void doLoadGhost(DomainObject ghost, ResultSet rs) throws MapperException {
+        try {
+            ((Book) ghost).loadFields(rs.getString(2), rs.getString(3), rs.getFloat(4), (Integer) rs.getObject(PUBLISHER_COLUMN));
+            ((Book) ghost).loadDetails(rs.getString(DESCRIPTION_COLUMN));
+            StringPool pool = authorPool;
+            if (pool != null)
+                ((Book) ghost).compact(pool);
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        }
+    }
+
+    @Override
+    protected void doLoadGroup(DomainObject subject, String group, ResultSet rs) throws MapperException {
+        try {
+            ((Book) subject).loadDetails(rs.getString(1));
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        }
+    }
+
     @Override
     protected void doInsert(DomainObject subject, PreparedStatement ps) throws MapperException {
         try {
@@ -54,6 +204,8 @@ public class BookMapper extends AbstractMapper implements BookMapperOps {
             ps.setString(2, (String) ((Book) subject).getTitle());
             ps.setString(3, (String) ((Book) subject).getAuthor());
             ps.setFloat(4, (float) ((Book) subject).getPrice());
+            ps.setString(5, (String) ((Book) subject).getDescription());
+            setPublisherId(ps, 6, ((Book) subject).getPublisherId());
         } catch (SQLException e) {
             throw new BookMapperException(e.getMessage());
         }
@@ -66,13 +218,31 @@ public class BookMapper extends AbstractMapper implements BookMapperOps {
             String title = rs.getString(2);
             String author = rs.getString(3);
             float price = rs.getFloat(4);
+            Integer publisherId = (Integer) rs.getObject(PUBLISHER_COLUMN);
 
-            return new Book(ID, title, author, price);
+            // listing queries only select the light columns, the details are loaded on first access
+            boolean details = rs.getMetaData().getColumnCount() == DESCRIPTION_COLUMN;
+            Book book = new Book(ID, title, author, price, details ? rs.getString(DESCRIPTION_COLUMN) : null, publisherId);
+            if (!details)
+                book.setDetailsLoader(this);
+            else
+                book.setRelationsLoader(this);
+            StringPool pool = authorPool;
+            if (pool != null)
+                book.compact(pool);
+            return book;
         } catch (SQLException e) {
             throw new MapperException(e.getMessage());
         }
     }
 
+    private static void setPublisherId(PreparedStatement ps, int index, Integer publisherId) throws SQLException {
+        if (publisherId == null)
+            ps.setNull(index, Types.INTEGER);
+        else
+            ps.setInt(index, publisherId);
+    }
+
     @Override
     protected void doUpdate(DomainObject subject, PreparedStatement ps) throws MapperException {
         try {
@@ -83,66 +253,1081 @@ public class BookMapper extends AbstractMapper implements BookMapperOps {
             ps.setString(2, (String) ((Book) subject).getTitle());
             ps.setString(3, (String) ((Book) subject).getAuthor());
             ps.setFloat(4, (float) ((Book) subject).getPrice());
-            ps.setString(5, (String) subject.getId());
+            ps.setString(5, (String) ((Book) subject).getDescription());
+            setPublisherId(ps, 6, ((Book) subject).getPublisherId());
+            ps.setString(7, (String) subject.getId());
         } catch (SQLException e) {
             throw new BookMapperException(e.getMessage());
         }
     }
 
+    /**
+     * Load the related author or publisher of a book on first access (one query per book:
+     * use fetchAuthors / fetchPublishers or a fetch strategy to load them for many books at once)
+     * @param subject partially loaded book
+     * @param group lazy group name
+     * @throws MapperException if something goes wrong...
+     */
+    @Override
+    public void loadLazy(DomainObject subject, String group) throws MapperException {
+        Book book = (Book) subject;
+        if (Book.AUTHOR_RELATION.equals(group)) {
+            String name = (String) book.getAuthor();
+            book.loadAuthor(name == null ? null : authors().find(name));
+        } else if (Book.PUBLISHER_RELATION.equals(group)) {
+            Integer publisherId = book.getPublisherId();
+            book.loadPublisher(publisherId == null ? null : publishers().find(publisherId));
+        } else {
+            super.loadLazy(subject, group);
+        }
+    }
+
+    /**
+     * Compact the books loaded from now on: the author names are shared through a bounded pool
+     * and the titles are kept as bytes (decoded on each getTitle)
+     * @param compact true to compact the loaded books, false to load them as plain objects
+     */
+    public void setCompactCache(boolean compact) {
+        authorPool = compact ? new StringPool(AUTHOR_POOL_SIZE) : null;
+    }
+
+    /**
+     * Estimate the heap used by the book cache: the cached books, the strings they hold
+     * (a shared author name is counted once) and the registry itself
+     * @return estimated size in bytes
+     */
+    public long estimateCacheMemory() {
+        long size = loadedMap.estimateOverhead();
+        Set<Object> seenStrings = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        for (Object cached : loadedMap.objects())
+            size += ((Book) cached).estimatedSize(seenStrings);
+        return size;
+    }
+
+    /**
+     * @return the mapper of the authors, on the database of this mapper
+     */
+    public synchronized AuthorMapper authors() {
+        if (authorMapper == null)
+            authorMapper = new AuthorMapper(this);
+        return authorMapper;
+    }
+
+    /**
+     * @return the mapper of the publishers, on the database of this mapper
+     */
+    public synchronized PublisherMapper publishers() {
+        if (publisherMapper == null)
+            publisherMapper = new PublisherMapper(this);
+        return publisherMapper;
+    }
+
+    /**
+     * Follow the BOOK_CHANGES log filled by the triggers of bookstore.sql, so that the
+     * books cached by this mapper see the writes made by the other processes
+     * @param periodMillis delay between two polls in milliseconds
+     * @throws BookMapperException if the change log cannot be read
+     */
+    public void startChangeFeed(long periodMillis) throws BookMapperException {
+        try {
+            super.startChangeFeed("BOOK_CHANGES", periodMillis);
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    /**
+     * Save the current hot isbns and their frequency, to warm the cache up at the next start
+     * @param file hot set file (replaced atomically)
+     * @throws BookMapperException if the file cannot be written
+     */
+    public void saveHotKeys(Path file) throws BookMapperException {
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<Object, Integer> entry : getHotKeys().entrySet())
+            lines.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+        try {
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temporary, lines.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new BookMapperException("BookMapper: Hot keys cannot be saved: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Load and pin the books of the hot set saved by a previous run (see saveHotKeys); enableHotKeys must
+     * be called first. Nothing is loaded when the file does not exist.
+     * @param file hot set file
+     * @throws BookMapperException if the file or the books cannot be read
+     */
+    public void warmUp(Path file) throws BookMapperException {
+        if (!Files.exists(file))
+            return;
+        try {
+            Map<String, Integer> frequencies = new LinkedHashMap<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab > 0)
+                    frequencies.put(line.substring(0, tab), Integer.valueOf(line.substring(tab + 1).trim()));
+            }
+            super.warmUp(frequencies);
+        } catch (IOException | NumberFormatException | MapperException e) {
+            throw new BookMapperException("BookMapper: Warmup failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Enable the title index stored in a local directory. An empty index is built by streaming the
+     * BOOK table; afterwards it is kept up to date by the writes of this mapper.
+     * Delete the directory to rebuild it when the table was changed by other processes meanwhile.
+     * The searches fail until the index is built; the writes made meanwhile are indexed.
+     * @param directory index directory
+     * @throws BookMapperException if the index cannot be read or built
+     */
+    public void enableTitleIndex(Path directory) throws BookMapperException {
+        TitleIndex index;
+        try {
+            synchronized (this) {
+                if (titleIndex != null)
+                    return;
+                index = new TitleIndex(directory);
+                if (!index.isEmpty()) {
+                    titleIndex = index;
+                    return;
+                }
+                index.startLoad();
+                // published before the load so that the writes made meanwhile are not lost
+                titleIndex = index;
+            }
+        } catch (IOException e) {
+            throw new BookMapperException("BookMapper: Title index failed: " + e.getMessage());
+        }
+        try {
+            fillTitleIndex(index);
+        } catch (MapperException | IOException e) {
+            synchronized (this) {
+                if (titleIndex == index)
+                    titleIndex = null;
+            }
+            throw new BookMapperException("BookMapper: Title index failed: " + e.getMessage());
+        }
+    }
+
+    // stream the titles of the BOOK table into an index being loaded
+    private void fillTitleIndex(final TitleIndex index) throws MapperException, IOException {
+        super.abstractScan("SELECT isbn, title FROM BOOK", new Projection<Void>() {
+            @Override
+            public Void map(ResultSet rs) throws SQLException {
+                try {
+                    index.load(rs.getString(1), rs.getString(2));
+                } catch (IOException e) {
+                    throw new SQLException(e.getMessage(), e);
+                }
+                return null;
+            }
+        });
+        index.loaded();
+        index.flush();
+    }
+
+    /**
+     * Enable the snapshot mode: the whole catalog is loaded in an immutable in-memory snapshot which
+     * serves find, exists, findManyByAuthor and the price queries without locking nor querying.
+     * Each committed write of this mapper publishes a new snapshot sharing the unchanged parts;
+     * start the change feed to follow the writes of the other processes. Transactions still read
+     * the database, to see their own writes.
+     * @throws BookMapperException if the BOOK table cannot be read
+     */
+    public void enableSnapshot() throws BookMapperException {
+        // the writes committed meanwhile wait for the snapshot to be published, then apply to it
+        synchronized (snapshotLock) {
+            if (snapshot != null)
+                return;
+            try {
+                snapshot = loadSnapshot();
+            } catch (MapperException e) {
+                throw new BookMapperException("BookMapper: Snapshot failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // read the whole BOOK table into a new snapshot
+    private CatalogSnapshot loadSnapshot() throws MapperException {
+        final List<Book> books = new ArrayList<>();
+        super.abstractScan("SELECT " + LIGHT_COLUMNS + " FROM BOOK", new Projection<Void>() {
+            @Override
+            public Void map(ResultSet rs) throws SQLException {
+                try {
+                    books.add((Book) doLoad(rs));
+                } catch (MapperException e) {
+                    throw new SQLException(e.getMessage(), e);
+                }
+                return null;
+            }
+        });
+        return CatalogSnapshot.build(books);
+    }
+
+    /**
+     * Go back to reading through the cache and the database
+     */
+    public void disableSnapshot() {
+        synchronized (snapshotLock) {
+            snapshot = null;
+        }
+    }
+
+    // the snapshot if it can serve the current read
+    private CatalogSnapshot readSnapshot() {
+        CatalogSnapshot catalog = snapshot;
+        return catalog != null && db.currentTransaction() == null ? catalog : null;
+    }
+
+    private void snapshotWritten(Book book) {
+        synchronized (snapshotLock) {
+            if (snapshot != null)
+                snapshot = snapshot.with(book);
+        }
+    }
+
+    private void snapshotDeleted(String isbn) {
+        synchronized (snapshotLock) {
+            if (snapshot != null)
+                snapshot = snapshot.without(isbn);
+        }
+    }
+
+    /**
+     * Begin a staged reload of the whole catalog: the new books are loaded into a shadow table,
+     * which replaces the BOOK table at once when the reload is committed (see BookReload)
+     * @return the reload, to use with try-with-resources
+     * @throws BookMapperException if the mapper is sharded, a transaction is active or the shadow table cannot be created
+     */
+    public BookReload beginReload() throws BookMapperException {
+        if (isSharded())
+            throw new BookMapperException("BookMapper: Staged reloads are not supported over several shards");
+        if (db.currentTransaction() != null)
+            throw new BookMapperException("BookMapper: Staged reloads cannot run in a transaction");
+        return new BookReload(this, db);
+    }
+
+    /**
+     * The cached aggregates are dropped at once, the snapshot and the indexes are rebuilt after the cached books
+     */
+    @Override
+    protected void tableReplaced() {
+        changeStats(null, null, true);
+        super.tableReplaced();
+    }
+
+    /**
+     * Rebuild the snapshot and the indexes from the new table; the ones which cannot be rebuilt are disabled
+     * @throws MapperException if one of them cannot be rebuilt
+     */
+    @Override
+    protected void reloadDerived() throws MapperException {
+        MapperException failure = null;
+        synchronized (snapshotLock) {
+            if (snapshot != null) {
+                try {
+                    // the old snapshot keeps serving the readers while the new one is loaded
+                    snapshot = loadSnapshot();
+                } catch (MapperException e) {
+                    snapshot = null;
+                    failure = e;
+                }
+            }
+        }
+        boolean priceIndexed;
+        synchronized (this) {
+            priceIndexed = priceIndex != null;
+            // the price queries use SQL range scans until the new one is loaded
+            priceIndex = null;
+        }
+        if (priceIndexed) {
+            try {
+                enablePriceIndex();
+            } catch (BookMapperException e) {
+                failure = e;
+            }
+        }
+        TitleIndex index = titleIndex;
+        if (index != null) {
+            try {
+                index.startLoad();
+                fillTitleIndex(index);
+            } catch (MapperException | IOException e) {
+                titleIndex = null;
+                failure = new BookMapperException("BookMapper: Title index failed: " + e.getMessage());
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Enable the write-behind mode: inserts and updates are cached at once, journaled in a local
+     * file and written to the database in the background. The books of the journal left by a
+     * previous run are written first. Reads by isbn see the pending writes, queries only see them
+     * once written. Writes made in a transaction stay synchronous.
+     * @param journalFile local journal file
+     * @param flushIntervalMillis delay between two background writes in milliseconds
+     * @throws BookMapperException if the journal cannot be replayed
+     */
+    public synchronized void enableWriteBehind(Path journalFile, long flushIntervalMillis) throws BookMapperException {
+        if (writeBehind != null)
+            return;
+        try {
+            writeBehind = new BookWriteBehind(this, journalFile, flushIntervalMillis);
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    /**
+     * Write the pending books to the database
+     * @throws BookMapperException if the books cannot be written (they stay pending)
+     */
+    public void flushWriteBehind() throws BookMapperException {
+        BookWriteBehind pendingWrites = writeBehind;
+        if (pendingWrites == null)
+            return;
+        try {
+            pendingWrites.flush();
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    /**
+     * @return the books of the write-behind mode rejected by the database (e.g. a value too long),
+     * which are not written; empty if the mode is not enabled
+     * @throws BookMapperException if the rejected file cannot be read
+     */
+    public List<Book> getRejectedWrites() throws BookMapperException {
+        BookWriteBehind pendingWrites = writeBehind;
+        if (pendingWrites == null)
+            return new ArrayList<>();
+        try {
+            return pendingWrites.rejected();
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    /**
+     * Write the pending books and go back to synchronous writes
+     * @throws BookMapperException if the books cannot be written (they stay in the journal)
+     */
+    public synchronized void disableWriteBehind() throws BookMapperException {
+        BookWriteBehind pendingWrites = writeBehind;
+        if (pendingWrites == null)
+            return;
+        writeBehind = null;
+        try {
+            pendingWrites.close();
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    // the write-behind mode if it applies to the current write
+    private BookWriteBehind delayedWrites() {
+        BookWriteBehind pendingWrites = writeBehind;
+        return pendingWrites != null && db.currentTransaction() == null ? pendingWrites : null;
+    }
+
+    /**
+     * Write the recent entries of the title index to disk and stop maintaining it
+     * @throws BookMapperException if the index cannot be written
+     */
+    public synchronized void closeTitleIndex() throws BookMapperException {
+        TitleIndex index = titleIndex;
+        if (index == null)
+            return;
+        titleIndex = null;
+        try {
+            index.flush();
+        } catch (IOException e) {
+            throw new BookMapperException("BookMapper: Title index failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Load the price index with a scan of BOOK, on the caller's thread; the price queries of the other
+     * threads use SQL range scans until it is loaded
+     * @throws BookMapperException if the BOOK table cannot be read
+     */
+    public void enablePriceIndex() throws BookMapperException {
+        final PriceIndex index = new PriceIndex();
+        synchronized (this) {
+            if (priceIndex != null)
+                return;
+            // published before the load so that the writes made meanwhile are not lost
+            priceIndex = index;
+        }
+        try {
+            super.abstractScan("SELECT isbn, author, price FROM BOOK", new Projection<Void>() {
+                @Override
+                public Void map(ResultSet rs) throws SQLException {
+                    index.load(rs.getString(1), rs.getString(2), rs.getFloat(3));
+                    return null;
+                }
+            });
+            index.loaded();
+        } catch (MapperException e) {
+            priceIndex = null;
+            throw new BookMapperException("BookMapper: Price index failed: " + e.getMessage());
+        }
+    }
+
+    // keep the indexes in line with a successful write
+    private void indexBook(Book book) throws BookMapperException {
+        PriceIndex prices = priceIndex;
+        if (prices != null)
+            prices.put((String) book.getId(), (String) book.getAuthor(), (float) book.getPrice());
+        TitleIndex index = titleIndex;
+        if (index == null)
+            return;
+        try {
+            index.put((String) book.getId(), (String) book.getTitle());
+        } catch (IOException e) {
+            throw new BookMapperException("BookMapper: Title index update failed: " + e.getMessage());
+        }
+    }
+
+    private void unindexBook(String isbn) throws BookMapperException {
+        PriceIndex prices = priceIndex;
+        if (prices != null)
+            prices.remove(isbn);
+        TitleIndex index = titleIndex;
+        if (index == null)
+            return;
+        try {
+            index.remove(isbn);
+        } catch (IOException e) {
+            throw new BookMapperException("BookMapper: Title index update failed: " + e.getMessage());
+        }
+    }
+
+    // run a price query on all the shards, keeping the cheapest books
+    private List<Book> findCheapest(String pricePattern, Object criteria, int limit) throws BookMapperException {
+        if (limit <= 0)
+            return new ArrayList<>();
+        try {
+            List<Map.Entry<String, Float>> prices = super.abstractProject(criteria, pricePattern,
+                    new Projection<Map.Entry<String, Float>>() {
+                        @Override
+                        public Map.Entry<String, Float> map(ResultSet rs) throws SQLException {
+                            return new AbstractMap.SimpleImmutableEntry<>(rs.getString(1), rs.getFloat(2));
+                        }
+                    });
+            // each shard is sorted, the merged result must be sorted again
+            Collections.sort(prices, new Comparator<Map.Entry<String, Float>>() {
+                @Override
+                public int compare(Map.Entry<String, Float> a, Map.Entry<String, Float> b) {
+                    int result = Float.compare(a.getValue(), b.getValue());
+                    return result != 0 ? result : a.getKey().compareTo(b.getKey());
+                }
+            });
+            List<String> isbns = new ArrayList<>();
+            for (Map.Entry<String, Float> price : prices.subList(0, Math.min(limit, prices.size())))
+                isbns.add(price.getKey());
+            return resolve(isbns);
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    // load books in the order of their isbns, through the cache
+    private List<Book> resolve(List<String> isbns) throws BookMapperException {
+        try {
+            return (List) super.abstractFindOrdered(isbns);
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    // the author and price of a book before a write, from the price index, the snapshot or the cache (null if unknown)
+    private Book previousBook(Book written) {
+        String isbn = (String) written.getId();
+        PriceIndex prices = priceIndex;
+        Book indexed = prices == null ? null : prices.find(isbn);
+        if (indexed != null)
+            return indexed;
+        CatalogSnapshot catalog = snapshot;
+        Book snapshotted = catalog == null ? null : catalog.find(isbn);
+        if (snapshotted != null && snapshotted != written)
+            return snapshotted;
+        Object cached = loadedMap.getObject(isbn);
+        // a cached book modified in place does not know its previous values anymore
+        if (!(cached instanceof Book) || cached == written || ((Book) cached).isGhost())
+            return null;
+        return (Book) cached;
+    }
+
+    // apply a write to the cached aggregates, or drop them when the previous values are unknown
+    private void changeStats(Book removed, Book added, boolean unknown) {
+        synchronized (statsLock) {
+            statsVersion++;
+            if (unknown) {
+                totalStats = null;
+                authorStats = null;
+                return;
+            }
+            if (removed != null) {
+                float price = (float) removed.getPrice();
+                if (totalStats != null)
+                    totalStats = totalStats.minus(price);
+                if (authorStats != null) {
+                    String author = (String) removed.getAuthor();
+                    PriceStats stats = authorStats.get(author);
+                    PriceStats remaining = stats == null ? null : stats.minus(price);
+                    if (remaining == null)
+                        authorStats = null;
+                    else if (remaining.getCount() == 0)
+                        authorStats.remove(author);
+                    else
+                        authorStats.put(author, remaining);
+                }
+            }
+            if (added != null) {
+                float price = (float) added.getPrice();
+                if (totalStats != null)
+                    totalStats = totalStats.plus(price);
+                if (authorStats != null) {
+                    String author = (String) added.getAuthor();
+                    PriceStats stats = authorStats.get(author);
+                    authorStats.put(author, (stats == null ? PriceStats.EMPTY : stats).plus(price));
+                }
+            }
+        }
+    }
+
+    // The aggregates and the indexes only follow committed writes
+
+    private void afterInsert(final Book inserted) throws BookMapperException {
+        runAfterCommit(new Transaction.Action() {
+            @Override
+            public void run() throws MapperException {
+                changeStats(null, inserted, false);
+                snapshotWritten(inserted);
+                indexBook(inserted);
+            }
+        });
+    }
+
+    private void afterUpdate(final Book previous, final Book updated) throws BookMapperException {
+        runAfterCommit(new Transaction.Action() {
+            @Override
+            public void run() throws MapperException {
+                changeStats(previous, updated, previous == null);
+                snapshotWritten(updated);
+                indexBook(updated);
+            }
+        });
+    }
+
+    private void afterDelete(final Book previous, final String isbn) throws BookMapperException {
+        runAfterCommit(new Transaction.Action() {
+            @Override
+            public void run() throws MapperException {
+                changeStats(previous, null, previous == null);
+                snapshotDeleted(isbn);
+                unindexBook(isbn);
+            }
+        });
+    }
+
+    private void runAfterCommit(Transaction.Action action) throws BookMapperException {
+        try {
+            super.afterCommit(action);
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    @Override
+    protected void invalidateQueries(DomainObject written) {
+        super.invalidateQueries(written);
+        // the book now matches the queries on its author (a ghost being deleted matches nothing new)
+        Book book = (Book) written;
+        if (!book.isGhost())
+            queryCache.invalidateCriterion(book.getAuthor());
+    }
+
+    /**
+     * The changes read from the change log may come from other processes: the cached aggregates are dropped
+     * and the changed books read again are applied to the snapshot and the indexes
+     * @param changes changes in sequence order
+     * @return the inserted and updated books read again, or null if they cannot be read
+     */
+    @Override
+    protected Map<Object, DomainObject> applyChanges(List<ChangeEvent> changes) {
+        changeStats(null, null, true);
+        // a local write cannot reach the snapshot between the read of the books and their application
+        synchronized (snapshotLock) {
+            Map<Object, DomainObject> books = super.applyChanges(changes);
+            if (snapshot == null && priceIndex == null && titleIndex == null)
+                return books;
+            if (books == null) {
+                // the snapshot and the indexes cannot follow anymore: read the database until they are enabled again
+                snapshot = null;
+                priceIndex = null;
+                titleIndex = null;
+                return null;
+            }
+            Set<Object> isbns = new LinkedHashSet<>();
+            for (ChangeEvent change : changes)
+                isbns.add(change.getId());
+            if (snapshot != null) {
+                CatalogSnapshot catalog = snapshot;
+                for (Object isbn : isbns) {
+                    Book book = (Book) books.get(isbn);
+                    catalog = book != null ? catalog.with(book) : catalog.without((String) isbn);
+                }
+                snapshot = catalog;
+            }
+            try {
+                for (Object isbn : isbns) {
+                    Book book = (Book) books.get(isbn);
+                    if (book != null)
+                        indexBook(book);
+                    else
+                        unindexBook((String) isbn);
+                }
+            } catch (BookMapperException e) {
+                // only the title index writes to disk
+                titleIndex = null;
+            }
+            return books;
+        }
+    }
+
     // Implementation of the methods from BookMapperOps
 
     @Override
     public String insert(Book obj) throws BookMapperException {
         try {
-            super.abstractInsert(obj);
+            BookWriteBehind pendingWrites = delayedWrites();
+            if (pendingWrites != null) {
+                if (obj == null || obj.getId() == null)
+                    throw new BookMapperException("BookMapper: Insert failed because book and/or isbn is/are null");
+                if (find((String) obj.getId()) != null)
+                    throw new BookMapperException("BookMapper: Insert failed because isbn " + obj.getId() + " already exists");
+                pendingWrites.write(obj);
+                super.cacheWritten(obj, true);
+            } else {
+                super.abstractInsert(obj);
+            }
         } catch (MapperException e) {
-            throw new BookMapperException(e.getMessage());
+            throw new BookMapperException(e);
         }
+        afterInsert(obj);
         return (String) obj.getId();
     }
 
+    @Override
+    public int insertAll(Collection<Book> books) throws BookMapperException {
+        try {
+            int inserted = super.abstractInsertAll(books);
+            for (Book book : books)
+                afterInsert(book);
+            return inserted;
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
     @Override
     public Book find(String isbn) throws BookMapperException {
+        // a pending write is the latest state of the book
+        BookWriteBehind pendingWrites = writeBehind;
+        Book pending = pendingWrites == null || isbn == null ? null : pendingWrites.pending(isbn);
+        if (pending != null)
+            return pending;
+        CatalogSnapshot catalog = readSnapshot();
+        if (catalog != null && isbn != null)
+            return catalog.find(isbn);
         try {
             return (Book) super.abstractFind(isbn);
         } catch (MapperException e) {
-            throw new BookMapperException(e.getMessage());
+            throw new BookMapperException(e);
+        }
+    }
+
+    @Override
+    public Book ghost(String isbn) throws BookMapperException {
+        try {
+            return (Book) super.abstractGhost(isbn);
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    @Override
+    public boolean exists(String isbn) throws BookMapperException {
+        CatalogSnapshot catalog = readSnapshot();
+        if (catalog != null && isbn != null)
+            return catalog.find(isbn) != null;
+        try {
+            return super.abstractExists(isbn);
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
         }
     }
 
     @Override
     public Set<Book> findManyByAuthor(String authorName) throws BookMapperException {
+        CatalogSnapshot catalog = readSnapshot();
+        if (catalog != null)
+            return catalog.findByAuthor(authorName);
         try {
-            return (Set) super.abstractFindMany(authorName, "SELECT * FROM BOOK WHERE AUTHOR=?");
+            return (Set) super.abstractFindMany(authorName, "SELECT " + LIGHT_COLUMNS + " FROM BOOK WHERE AUTHOR=?");
         } catch (MapperException e) {
-            throw new BookMapperException(e.getMessage());
+            throw new BookMapperException(e);
+        }
+    }
+
+    @Override
+    public List<Book> findByQuery(BookQuery query) throws BookMapperException {
+        if (query == null)
+            throw new BookMapperException("BookMapper: Cannot run a null query");
+        if (query.matchesNothing())
+            return new ArrayList<>();
+        String shape = query.shape();
+        BookQuery.Template template = queryTemplates.get(shape);
+        if (template == null) {
+            template = query.compile();
+            if (queryTemplates.size() < MAX_QUERY_TEMPLATES)
+                queryTemplates.putIfAbsent(shape, template);
+        }
+        try {
+            List<Book> books = super.abstractProject(query.parameters(), template.getSql(), bookLoader);
+            if (isSharded()) {
+                // each shard is sorted and limited, the merged result must be sorted and limited again
+                Collections.sort(books, template.getOrder());
+                if (query.getLimit() >= 0 && books.size() > query.getLimit())
+                    books = new ArrayList<>(books.subList(0, query.getLimit()));
+            }
+            return books;
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    @Override
+    public List<Book> findByPublisher(int publisherId, FetchStrategy strategy) throws BookMapperException {
+        try {
+            if (strategy == FetchStrategy.JOIN) {
+                // one query: the related rows are read from the same result set, through the identity maps
+                final AuthorMapper authors = authors();
+                final PublisherMapper publishers = publishers();
+                return super.abstractProject(publisherId,
+                        "SELECT B.isbn, B.title, B.author, B.price, B.publisher_id, A.name, A.biography, P.id, P.name"
+                                + " FROM BOOK B LEFT JOIN AUTHOR A ON A.name = B.author"
+                                + " LEFT JOIN PUBLISHER P ON P.id = B.publisher_id WHERE B.publisher_id = ? ORDER BY B.isbn",
+                        new Projection<Book>() {
+                            @Override
+                            public Book map(ResultSet rs) throws SQLException {
+                                try {
+                                    Book book = (Book) load(rs);
+                                    book.loadAuthor((Author) authors.loadJoined(rs, 6));
+                                    book.loadPublisher((Publisher) publishers.loadJoined(rs, 8));
+                                    return book;
+                                } catch (MapperException e) {
+                                    throw new SQLException(e.getMessage(), e);
+                                }
+                            }
+                        });
+            }
+            List<Book> books = super.abstractProject(publisherId,
+                    "SELECT " + LIGHT_COLUMNS + " FROM BOOK WHERE publisher_id = ? ORDER BY isbn", bookLoader);
+            if (strategy == FetchStrategy.BATCH) {
+                fetchAuthors(books);
+                fetchPublishers(books);
+            }
+            return books;
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    @Override
+    public void fetchAuthors(Collection<Book> books) throws BookMapperException {
+        Set<String> missing = new LinkedHashSet<>();
+        for (Book book : books) {
+            if (!book.isAuthorFetched() && book.getAuthor() != null)
+                missing.add((String) book.getAuthor());
+        }
+        if (missing.isEmpty())
+            return;
+        try {
+            Map<String, Author> authors = authors().findAll(new ArrayList<>(missing));
+            for (Book book : books) {
+                if (!book.isAuthorFetched() && book.getAuthor() != null)
+                    book.loadAuthor(authors.get(book.getAuthor()));
+            }
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    @Override
+    public void fetchPublishers(Collection<Book> books) throws BookMapperException {
+        Set<Integer> missing = new LinkedHashSet<>();
+        for (Book book : books) {
+            if (!book.isPublisherFetched() && book.getPublisherId() != null)
+                missing.add(book.getPublisherId());
+        }
+        if (missing.isEmpty())
+            return;
+        try {
+            Map<Integer, Publisher> publishers = publishers().findAll(new ArrayList<>(missing));
+            for (Book book : books) {
+                if (!book.isPublisherFetched() && book.getPublisherId() != null)
+                    book.loadPublisher(publishers.get(book.getPublisherId()));
+            }
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    @Override
+    public void fetchBooks(Collection<Author> authors) throws BookMapperException {
+        Map<String, List<Book>> booksByAuthor = new HashMap<>();
+        for (Author author : authors)
+            booksByAuthor.put(author.getName(), new ArrayList<Book>());
+        if (booksByAuthor.isEmpty())
+            return;
+        try {
+            for (DomainObject book : super.abstractFindManyIn(booksByAuthor.keySet(),
+                    "SELECT " + LIGHT_COLUMNS + " FROM BOOK WHERE AUTHOR IN (%s)")) {
+                // a cached book may have been given another author in place
+                List<Book> books = booksByAuthor.get(((Book) book).getAuthor());
+                if (books != null)
+                    books.add((Book) book);
+            }
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+        for (Author author : authors)
+            author.loadBooks(booksByAuthor.get(author.getName()));
+    }
+
+    @Override
+    public List<BookSummary> findSummariesByAuthor(String authorName) throws BookMapperException {
+        try {
+            return super.abstractProject(authorName, "SELECT isbn, title FROM BOOK WHERE AUTHOR=?", BookSummary.PROJECTION);
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    @Override
+    public List<Book> searchByTitle(String query, int limit) throws BookMapperException {
+        TitleIndex index = titleIndex;
+        if (index == null || !index.isReady())
+            throw new BookMapperException("BookMapper: Title index is not enabled or not built yet");
+        // resolve the isbns through the cache with one query for the others, keeping the ranking
+        return resolve(index.search(query, limit));
+    }
+
+    @Override
+    public List<Book> findByPriceRange(float minPrice, float maxPrice, int limit) throws BookMapperException {
+        CatalogSnapshot catalog = readSnapshot();
+        if (catalog != null)
+            return catalog.findByPriceRange(minPrice, maxPrice, limit);
+        PriceIndex index = priceIndex;
+        if (index != null && index.isReady())
+            return resolve(index.findByPriceRange(minPrice, maxPrice, limit));
+        // cold index: range scan of the BOOK_PRICE index
+        // the limit is bound, so that there is one statement for all the limits
+        return findCheapest("SELECT isbn, price FROM BOOK WHERE PRICE >= ? AND PRICE <= ? ORDER BY PRICE, ISBN"
+                + " FETCH FIRST ? ROWS ONLY", new Object[] {minPrice, maxPrice, limit}, limit);
+    }
+
+    @Override
+    public List<Book> findCheapestByAuthor(String authorName, int count) throws BookMapperException {
+        CatalogSnapshot catalog = readSnapshot();
+        if (catalog != null)
+            return catalog.findCheapestByAuthor(authorName, count);
+        PriceIndex index = priceIndex;
+        if (index != null && index.isReady())
+            return resolve(index.findCheapestByAuthor(authorName, count));
+        // cold index: range scan of the BOOK_AUTHOR_PRICE index
+        return findCheapest("SELECT isbn, price FROM BOOK WHERE AUTHOR = ? ORDER BY PRICE, ISBN"
+                + " FETCH FIRST ? ROWS ONLY", new Object[] {authorName, count}, count);
+    }
+
+    /**
+     * Set how long the cached price aggregates are served before being read again: they follow the writes
+     * of this mapper, but those of the other processes only with the change feed (see startChangeFeed)
+     * @param maxAgeMillis maximum age of the cached aggregates in milliseconds
+     */
+    public void setPriceStatsMaxAge(long maxAgeMillis) {
+        if (maxAgeMillis <= 0)
+            throw new IllegalArgumentException("BookMapper: The max age of the aggregates must be positive");
+        statsMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    @Override
+    public PriceStats getPriceStats() throws BookMapperException {
+        long version;
+        // a transaction sees its own writes, the cache only holds committed data
+        boolean cacheable = db.currentTransaction() == null;
+        synchronized (statsLock) {
+            if (totalStats != null && cacheable && System.nanoTime() - totalStatsAt < statsMaxAgeNanos)
+                return totalStats;
+            version = statsVersion;
+        }
+        long readAt = System.nanoTime();
+        try {
+            // one aggregate per shard
+            List<PriceStats> partials = super.abstractProject(null,
+                    "SELECT COUNT(*), SUM(PRICE), MIN(PRICE), MAX(PRICE) FROM BOOK", new Projection<PriceStats>() {
+                        @Override
+                        public PriceStats map(ResultSet rs) throws SQLException {
+                            return PriceStats.fromRow(rs, 1);
+                        }
+                    });
+            PriceStats stats = PriceStats.EMPTY;
+            for (PriceStats partial : partials)
+                stats = stats.merge(partial);
+            synchronized (statsLock) {
+                if (statsVersion == version && cacheable) {
+                    totalStats = stats;
+                    totalStatsAt = readAt;
+                }
+            }
+            return stats;
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
+        }
+    }
+
+    @Override
+    public Map<String, PriceStats> getPriceStatsByAuthor() throws BookMapperException {
+        long version;
+        // a transaction sees its own writes, the cache only holds committed data
+        boolean cacheable = db.currentTransaction() == null;
+        synchronized (statsLock) {
+            if (authorStats != null && cacheable && System.nanoTime() - authorStatsAt < statsMaxAgeNanos)
+                return new HashMap<>(authorStats);
+            version = statsVersion;
+        }
+        long readAt = System.nanoTime();
+        try {
+            // one aggregate per author and per shard
+            List<Map.Entry<String, PriceStats>> partials = super.abstractProject(null,
+                    "SELECT AUTHOR, COUNT(*), SUM(PRICE), MIN(PRICE), MAX(PRICE) FROM BOOK GROUP BY AUTHOR",
+                    new Projection<Map.Entry<String, PriceStats>>() {
+                        @Override
+                        public Map.Entry<String, PriceStats> map(ResultSet rs) throws SQLException {
+                            return new AbstractMap.SimpleImmutableEntry<>(rs.getString(1), PriceStats.fromRow(rs, 2));
+                        }
+                    });
+            Map<String, PriceStats> stats = new HashMap<>();
+            for (Map.Entry<String, PriceStats> partial : partials) {
+                PriceStats previous = stats.get(partial.getKey());
+                stats.put(partial.getKey(), previous == null ? partial.getValue() : previous.merge(partial.getValue()));
+            }
+            synchronized (statsLock) {
+                if (statsVersion == version && cacheable) {
+                    authorStats = new HashMap<>(stats);
+                    authorStatsAt = readAt;
+                }
+            }
+            return stats;
+        } catch (MapperException e) {
+            throw new BookMapperException(e);
         }
     }
 
     @Override
     public void update(Book updatedBook) throws BookMapperException {
+        Book previous = updatedBook == null ? null : previousBook(updatedBook);
         try {
-            super.abstractUpdate(updatedBook);
+            BookWriteBehind pendingWrites = delayedWrites();
+            if (pendingWrites != null) {
+                if (updatedBook == null || find((String) updatedBook.getId()) == null)
+                    throw new BookMapperException("BookMapper: Update failed because no corresponding book was found");
+                pendingWrites.write(updatedBook);
+                super.cacheWritten(updatedBook, false);
+            } else {
+                super.abstractUpdate(updatedBook);
+            }
         } catch (MapperException e) {
-            throw new BookMapperException(e.getMessage());
+            throw new BookMapperException(e);
         }
+        afterUpdate(previous, updatedBook);
     }
 
     @Override
     public void delete(Book book) throws BookMapperException {
+        Book previous = book == null ? null : previousBook(book);
         try {
-            super.abstractDelete(book);
+            // a pending write of the book must not be flushed after the delete
+            BookWriteBehind pendingWrites = writeBehind;
+            if (pendingWrites != null && book != null) {
+                final Book deleted = book;
+                pendingWrites.delete((String) book.getId(), new Transaction.Action() {
+                    @Override
+                    public void run() throws MapperException {
+                        BookMapper.super.abstractDelete(deleted);
+                    }
+                });
+            } else {
+                super.abstractDelete(book);
+            }
         } catch (MapperException e) {
-            throw new BookMapperException(e.getMessage());
+            throw new BookMapperException(e);
         }
+        afterDelete(previous, (String) book.getId());
     }
 
     @Override
     public void deleteAll() throws BookMapperException {
         try {
-            super.abstractDeleteAll();
+            BookWriteBehind pendingWrites = writeBehind;
+            if (pendingWrites != null) {
+                pendingWrites.clear(new Transaction.Action() {
+                    @Override
+                    public void run() throws MapperException {
+                        BookMapper.super.abstractDeleteAll();
+                    }
+                });
+            } else {
+                super.abstractDeleteAll();
+            }
+            super.afterCommit(new Transaction.Action() {
+                @Override
+                public void run() throws MapperException {
+                    synchronized (statsLock) {
+                        statsVersion++;
+                        totalStats = PriceStats.EMPTY;
+                        authorStats = new HashMap<>();
+                        totalStatsAt = System.nanoTime();
+                        authorStatsAt = totalStatsAt;
+                    }
+                    PriceIndex prices = priceIndex;
+                    if (prices != null)
+                        prices.clear();
+                    synchronized (snapshotLock) {
+                        if (snapshot != null)
+                            snapshot = CatalogSnapshot.EMPTY;
+                    }
+                    TitleIndex index = titleIndex;
+                    try {
+                        if (index != null)
+                            index.clear();
+                    } catch (IOException e) {
+                        throw new BookMapperException("BookMapper: Title index update failed: " + e.getMessage());
+                    }
+                }
+            });
         } catch (MapperException e) {
-            throw new BookMapperException(e.getMessage());
+            throw new BookMapperException(e);
         }
     }
 }
@@ -8,5 +8,13 @@ public class BookMapperException extends MapperException {
     public BookMapperException(String message) {
         super(message);
     }
-}
 
+    /**
+     * Report a problem detected by the abstract mapper, kept as the cause (e.g. an OverloadException)
+     * @param cause exception of the abstract mapper
+     */
+    public BookMapperException(MapperException cause) {
+        super(cause.getMessage());
+        initCause(cause);
+    }
+}
@@ -1,5 +1,8 @@
 package dm;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -15,6 +18,15 @@ public interface BookMapperOps {
      */
     String insert(Book newObject) throws BookMapperException;
 
+    /**
+     * Insert several book objects in database with batched statements
+     *
+     * @param newObjects books to insert
+     * @return number of inserted books
+     * @throws BookMapperException if something goes wrong...
+     */
+    int insertAll(Collection<Book> newObjects) throws BookMapperException;
+
     /**
      * Find a book object with isbn
      *
@@ -24,6 +36,25 @@ public interface BookMapperOps {
      */
     Book find(String isbn) throws BookMapperException;
 
+    /**
+     * Get a book without querying the database: the cached book, or a ghost
+     * only knowing its isbn whose other fields are loaded on first access
+     *
+     * @param isbn oid
+     * @return a Book object, possibly not loaded yet
+     * @throws BookMapperException if something goes wrong...
+     */
+    Book ghost(String isbn) throws BookMapperException;
+
+    /**
+     * Check if a book exists without loading it when possible
+     *
+     * @param isbn oid
+     * @return true if a book with this isbn exists
+     * @throws BookMapperException if something goes wrong...
+     */
+    boolean exists(String isbn) throws BookMapperException;
+
     /**
      * Find an author's books
      *
@@ -33,6 +64,108 @@ public interface BookMapperOps {
      */
     Set<Book> findManyByAuthor(String authorName) throws BookMapperException;
 
+    /**
+     * Find the books matching an ad-hoc query
+     *
+     * @param query conditions, ordering and limit
+     * @return the matching books, in the order of the query
+     * @throws BookMapperException if something goes wrong...
+     */
+    List<Book> findByQuery(BookQuery query) throws BookMapperException;
+
+    /**
+     * Find the books of a publisher, with their author and publisher fetched
+     * in a constant number of queries instead of one query per book
+     *
+     * @param publisherId publisher oid
+     * @param strategy JOIN to read the related rows in the same query, BATCH to read them with IN queries
+     * @return the publisher's books, ordered by isbn
+     * @throws BookMapperException if something goes wrong...
+     */
+    List<Book> findByPublisher(int publisherId, FetchStrategy strategy) throws BookMapperException;
+
+    /**
+     * Fetch the authors of several books with one query per batch of names
+     * (the authors already cached or fetched are not read again)
+     *
+     * @param books loaded books
+     * @throws BookMapperException if something goes wrong...
+     */
+    void fetchAuthors(Collection<Book> books) throws BookMapperException;
+
+    /**
+     * Fetch the publishers of several books with one query per batch of ids
+     *
+     * @param books loaded books
+     * @throws BookMapperException if something goes wrong...
+     */
+    void fetchPublishers(Collection<Book> books) throws BookMapperException;
+
+    /**
+     * Fetch the books of several authors (one-to-many) with one query per batch of names
+     *
+     * @param authors loaded authors
+     * @throws BookMapperException if something goes wrong...
+     */
+    void fetchBooks(Collection<Author> authors) throws BookMapperException;
+
+    /**
+     * List an author's books as lightweight summaries (isbn and title),
+     * without loading Book objects nor filling the cache
+     *
+     * @param authorName author (person) oid
+     * @return summaries of the author's books
+     * @throws BookMapperException if something goes wrong...
+     */
+    List<BookSummary> findSummariesByAuthor(String authorName) throws BookMapperException;
+
+    /**
+     * Find the books in a price range
+     *
+     * @param minPrice minimum price (included)
+     * @param maxPrice maximum price (included)
+     * @param limit maximum number of books
+     * @return books by increasing price
+     * @throws BookMapperException if something goes wrong...
+     */
+    List<Book> findByPriceRange(float minPrice, float maxPrice, int limit) throws BookMapperException;
+
+    /**
+     * Find the cheapest books of an author
+     *
+     * @param authorName author (person) oid
+     * @param count maximum number of books
+     * @return books by increasing price
+     * @throws BookMapperException if something goes wrong...
+     */
+    List<Book> findCheapestByAuthor(String authorName, int count) throws BookMapperException;
+
+    /**
+     * Compute the count, sum, average, minimum and maximum of the book prices in database
+     *
+     * @return price aggregate of all the books
+     * @throws BookMapperException if something goes wrong...
+     */
+    PriceStats getPriceStats() throws BookMapperException;
+
+    /**
+     * Compute the price aggregates of each author's books in database
+     *
+     * @return price aggregate by author
+     * @throws BookMapperException if something goes wrong...
+     */
+    Map<String, PriceStats> getPriceStatsByAuthor() throws BookMapperException;
+
+    /**
+     * Search books by title words with the title index
+     *
+     * @param query words to search
+     * @param limit maximum number of books
+     * @return matching books, best match first
+     * @throws BookMapperException if something goes wrong...
+     */
+    List<Book> searchByTitle(String query, int limit) throws BookMapperException;
+
     /**
      * Update a book
      *
@@ -0,0 +1,274 @@
+package dm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Ad-hoc query on the books, built from typed conditions on their fields:
+ * <pre>
+ *     new BookQuery().eq(BookField.AUTHOR, "Keith").between(BookField.PRICE, 10f, 40f)
+ *             .orderBy(BookField.PRICE, true).limit(10)
+ * </pre>
+ * The queries of the same shape (same conditions on the same fields, same ordering, whatever the values)
+ * compile to the same SQL template, whose values are bound as parameters: the mapper compiles each shape
+ * once and the database reuses its plan. The size of an IN list is rounded up to a power of 2 for the same
+ * reason. The conditions are combined with AND; the results are ordered by isbn after the given orders.
+ */
+public class BookQuery {
+    // condition operators
+    private static final char EQUAL = '=';
+    private static final char IS_NULL = 'N';
+    private static final char AT_LEAST = '>';
+    private static final char AT_MOST = '<';
+    private static final char IN = 'I';
+
+    private static final String SELECT = "SELECT isbn, title, author, price, publisher_id FROM BOOK";
+
+    /**
+     * A condition on a field and its values
+     */
+    private static final class Condition {
+        private final BookField<?> field;
+        private final char operator;
+        private final Object[] values;
+
+        private Condition(BookField<?> field, char operator, Object... values) {
+            this.field = field;
+            this.operator = operator;
+            this.values = values;
+        }
+    }
+
+    /**
+     * A sort key
+     */
+    private static final class Order {
+        private final BookField<?> field;
+        private final boolean ascending;
+
+        private Order(BookField<?> field, boolean ascending) {
+            this.field = field;
+            this.ascending = ascending;
+        }
+    }
+
+    /**
+     * Compiled form of a query shape: its SQL and the order of its results
+     */
+    static final class Template {
+        private final String sql;
+        private final Comparator<Book> order;
+
+        private Template(String sql, Comparator<Book> order) {
+            this.sql = sql;
+            this.order = order;
+        }
+
+        String getSql() {
+            return sql;
+        }
+
+        // order of the results, to merge the results of several shards
+        Comparator<Book> getOrder() {
+            return order;
+        }
+    }
+
+    private final List<Condition> conditions = new ArrayList<>();
+    private final List<Order> orders = new ArrayList<>();
+    // maximum number of results, or -1
+    private int limit = -1;
+
+    /**
+     * Keep the books whose field equals a value (a null value keeps the books without value)
+     */
+    public <T extends Comparable<? super T>> BookQuery eq(BookField<T> field, T value) {
+        checkField(field);
+        conditions.add(value == null ? new Condition(field, IS_NULL) : new Condition(field, EQUAL, value));
+        return this;
+    }
+
+    /**
+     * Keep the books whose field is greater than or equal to a value
+     */
+    public <T extends Comparable<? super T>> BookQuery atLeast(BookField<T> field, T min) {
+        checkField(field);
+        conditions.add(new Condition(field, AT_LEAST, checkValue(min)));
+        return this;
+    }
+
+    /**
+     * Keep the books whose field is less than or equal to a value
+     */
+    public <T extends Comparable<? super T>> BookQuery atMost(BookField<T> field, T max) {
+        checkField(field);
+        conditions.add(new Condition(field, AT_MOST, checkValue(max)));
+        return this;
+    }
+
+    /**
+     * Keep the books whose field is within a range (bounds included)
+     */
+    public <T extends Comparable<? super T>> BookQuery between(BookField<T> field, T min, T max) {
+        return atLeast(field, min).atMost(field, max);
+    }
+
+    /**
+     * Keep the books whose field equals one of the values (none for an empty collection)
+     */
+    public <T extends Comparable<? super T>> BookQuery in(BookField<T> field, Collection<? extends T> values) {
+        checkField(field);
+        if (values == null)
+            throw new IllegalArgumentException("BookQuery:: Cannot use null values");
+        for (T value : values)
+            checkValue(value);
+        conditions.add(new Condition(field, IN, values.toArray()));
+        return this;
+    }
+
+    /**
+     * Sort the books by a field; the orders apply in the order they are added
+     */
+    public BookQuery orderBy(BookField<?> field, boolean ascending) {
+        checkField(field);
+        orders.add(new Order(field, ascending));
+        return this;
+    }
+
+    /**
+     * Keep the first books only
+     */
+    public BookQuery limit(int count) {
+        if (count < 0)
+            throw new IllegalArgumentException("BookQuery:: Cannot use a negative limit");
+        this.limit = count;
+        return this;
+    }
+
+    /**
+     * @return maximum number of results, or -1
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return true if the query cannot match any book (empty IN list, or a limit of 0)
+     */
+    public boolean matchesNothing() {
+        if (limit == 0)
+            return true;
+        for (Condition condition : conditions) {
+            if (condition.operator == IN && condition.values.length == 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return key shared by the queries compiling to the same template
+     */
+    String shape() {
+        StringBuilder shape = new StringBuilder(4 * (conditions.size() + orders.size()) + 1);
+        for (Condition condition : conditions) {
+            shape.append(condition.operator).append(condition.field.getCode());
+            if (condition.operator == IN)
+                shape.append(paddedSize(condition.values.length)).append(',');
+        }
+        shape.append('/');
+        for (Order order : orders)
+            shape.append(order.ascending ? 'a' : 'd').append(order.field.getCode());
+        if (limit >= 0)
+            shape.append('L');
+        return shape.toString();
+    }
+
+    /**
+     * @return the template of the shape of this query
+     */
+    Template compile() {
+        StringBuilder sql = new StringBuilder(SELECT);
+        for (int i = 0; i < conditions.size(); i++) {
+            Condition condition = conditions.get(i);
+            sql.append(i == 0 ? " WHERE " : " AND ").append(condition.field.getColumn());
+            switch (condition.operator) {
+                case IS_NULL:
+                    sql.append(" IS NULL");
+                    break;
+                case IN:
+                    sql.append(" IN (").append(AbstractMapper.placeholders(paddedSize(condition.values.length))).append(')');
+                    break;
+                default:
+                    sql.append(' ').append(condition.operator == EQUAL ? "=" : condition.operator + "=").append(" ?");
+            }
+        }
+        // the isbn makes the order total, so that a limit keeps the same books on every run
+        if (!orders.isEmpty() || limit >= 0) {
+            sql.append(" ORDER BY ");
+            for (Order order : orders)
+                sql.append(order.field.getColumn()).append(order.ascending ? "" : " DESC").append(", ");
+            sql.append(BookField.ISBN.getColumn());
+        }
+        if (limit >= 0)
+            sql.append(" FETCH FIRST ? ROWS ONLY");
+        return new Template(sql.toString(), comparator());
+    }
+
+    /**
+     * @return values of the parameters of the template, in order
+     */
+    Object[] parameters() {
+        List<Object> parameters = new ArrayList<>();
+        for (Condition condition : conditions) {
+            if (condition.operator == IN) {
+                // the padding repeats the last value, which does not change the result
+                for (int i = 0; i < paddedSize(condition.values.length); i++)
+                    parameters.add(condition.values[Math.min(i, condition.values.length - 1)]);
+            } else {
+                for (Object value : condition.values)
+                    parameters.add(value);
+            }
+        }
+        if (limit >= 0)
+            parameters.add(limit);
+        return parameters.toArray();
+    }
+
+    // same order as the database: nulls are greater than any value
+    private Comparator<Book> comparator() {
+        final List<Order> keys = new ArrayList<>(orders);
+        keys.add(new Order(BookField.ISBN, true));
+        return new Comparator<Book>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public int compare(Book a, Book b) {
+                for (Order key : keys) {
+                    Comparable<Object> x = (Comparable<Object>) key.field.valueOf(a);
+                    Object y = key.field.valueOf(b);
+                    int result = x == null ? (y == null ? 0 : 1) : (y == null ? -1 : x.compareTo(y));
+                    if (result != 0)
+                        return key.ascending ? result : -result;
+                }
+                return 0;
+            }
+        };
+    }
+
+    // smallest power of 2 holding a number of values
+    private static int paddedSize(int count) {
+        return count <= 1 ? 1 : Integer.highestOneBit(count - 1) << 1;
+    }
+
+    private static void checkField(BookField<?> field) {
+        if (field == null)
+            throw new IllegalArgumentException("BookQuery:: Cannot use null field");
+    }
+
+    private static <T> T checkValue(T value) {
+        if (value == null)
+            throw new IllegalArgumentException("BookQuery:: Cannot use null value");
+        return value;
+    }
+}
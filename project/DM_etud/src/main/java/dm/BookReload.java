@@ -0,0 +1,379 @@
+package dm;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Staged reload of the whole catalog: the new books are bulk-loaded into a shadow table (BOOK_STAGE)
+ * while BOOK keeps serving the readers, its indexes are built, then it replaces BOOK in a single
+ * transaction. Derby cannot rename a table with triggers: the change log triggers are dropped and
+ * created again on the new table within the same transaction, so the readers only wait for the swap.
+ * The shadow table is derived from the live BOOK table (columns, nullability, defaults, primary and foreign
+ * keys, indexes and triggers are read from the catalog), so bookstore.sql stays the only definition of BOOK;
+ * its check constraints are not copied.
+ * The caches of the mapper are then reloaded from the new table in the background instead of being emptied.
+ * Writes made to BOOK during the reload are lost with the old table, and the reload itself is not
+ * written to the change log: the other processes should reload their caches.
+ */
+public class BookReload implements AutoCloseable {
+    // number of rows sent at once to the shadow table
+    public static final int BATCH_SIZE = 1000;
+    // number of keys read at once when building the key filter
+    private static final int KEY_SCAN_FETCH_SIZE = 1000;
+
+    private static final String CREATE_STAGE = "CREATE TABLE BOOK_STAGE AS SELECT * FROM BOOK WITH NO DATA";
+    private static final String INSERT_STAGE =
+            "INSERT INTO BOOK_STAGE (isbn, title, author, price, description, publisher_id) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String CURRENT_SCHEMA = "VALUES CURRENT SCHEMA";
+    // indexes backing a constraint, created with the constraint
+    private static final String CONSTRAINT_INDEXES = "SELECT C.CONGLOMERATENAME FROM SYS.SYSCONGLOMERATES C"
+            + " JOIN SYS.SYSTABLES T ON C.TABLEID = T.TABLEID JOIN SYS.SYSSCHEMAS S ON T.SCHEMAID = S.SCHEMAID"
+            + " WHERE T.TABLENAME = 'BOOK' AND S.SCHEMANAME = ? AND C.ISCONSTRAINT = TRUE";
+    // change log triggers, in creation order
+    private static final String TRIGGERS = "SELECT R.TRIGGERNAME, R.EVENT, R.FIRINGTIME, R.TYPE,"
+            + " R.REFERENCINGOLD, R.OLDREFERENCINGNAME, R.REFERENCINGNEW, R.NEWREFERENCINGNAME,"
+            + " R.WHENCLAUSETEXT, R.TRIGGERDEFINITION, CASE WHEN R.REFERENCEDCOLUMNS IS NULL THEN 0 ELSE 1 END"
+            + " FROM SYS.SYSTRIGGERS R JOIN SYS.SYSTABLES T ON R.TABLEID = T.TABLEID"
+            + " JOIN SYS.SYSSCHEMAS S ON T.SCHEMAID = S.SCHEMAID"
+            + " WHERE T.TABLENAME = 'BOOK' AND S.SCHEMANAME = ? ORDER BY R.CREATIONTIMESTAMP";
+
+    private final BookMapper mapper;
+    private final DB db;
+    // connection held for the whole reload
+    private final Connection connection;
+    // schema of BOOK
+    private final String schema;
+    private long staged = 0;
+    private boolean ended = false;
+
+    /**
+     * Create an empty shadow table (a shadow table left by an interrupted reload is dropped)
+     * @param mapper mapper of the reloaded books
+     * @param db database of the mapper
+     * @throws BookMapperException if the shadow table cannot be created
+     */
+    BookReload(BookMapper mapper, DB db) throws BookMapperException {
+        this.mapper = mapper;
+        this.db = db;
+        try {
+            this.connection = db.acquireConnection();
+        } catch (SQLException e) {
+            throw new BookMapperException("BookReload: Reload failed: " + e.getMessage());
+        }
+        try (Statement statement = connection.createStatement()) {
+            try (ResultSet rs = statement.executeQuery(CURRENT_SCHEMA)) {
+                rs.next();
+                this.schema = rs.getString(1);
+            }
+            dropStage(statement);
+            statement.execute(CREATE_STAGE);
+            for (String ddl : stageConstraints())
+                statement.execute(ddl);
+        } catch (SQLException e) {
+            db.releaseConnection(connection);
+            throw new BookMapperException("BookReload: Shadow table creation failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Load books into the shadow table, with batched statements
+     * @param books new books
+     * @throws BookMapperException if the books cannot be inserted
+     */
+    public void insertAll(Collection<Book> books) throws BookMapperException {
+        checkActive();
+        try {
+            connection.setAutoCommit(false);
+            try (PreparedStatement insertStatement = connection.prepareStatement(INSERT_STAGE)) {
+                int pending = 0;
+                for (Book book : books) {
+                    mapper.doInsert(book, insertStatement);
+                    insertStatement.addBatch();
+                    if (++pending == BATCH_SIZE) {
+                        insertStatement.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0)
+                    insertStatement.executeBatch();
+            }
+            connection.commit();
+            staged += books.size();
+        } catch (SQLException | MapperException e) {
+            rollbackQuietly();
+            throw new BookMapperException("BookReload: Staging failed: " + e.getMessage());
+        } finally {
+            autoCommitQuietly();
+        }
+    }
+
+    /**
+     * @return number of books loaded into the shadow table
+     */
+    public long getStagedCount() {
+        return staged;
+    }
+
+    /**
+     * Build the indexes of the shadow table, swap it with BOOK and reload the caches in the background
+     * @throws BookMapperException if the swap fails (BOOK is then left unchanged)
+     */
+    public void commit() throws BookMapperException {
+        checkActive();
+        try (Statement statement = connection.createStatement()) {
+            // built before the swap, so that the new table is complete when it becomes visible
+            Map<String, String> indexes = stageIndexes();
+            for (String ddl : indexes.values())
+                statement.execute(ddl);
+
+            // the new keys are known before the new rows can be read
+            int count;
+            try (ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM BOOK_STAGE")) {
+                count = rs.next() ? rs.getInt(1) : 0;
+            }
+            KeyFilter keys = AbstractMapper.newKeyFilter(count);
+            statement.setFetchSize(KEY_SCAN_FETCH_SIZE);
+            try (ResultSet rs = statement.executeQuery("SELECT isbn FROM BOOK_STAGE")) {
+                while (rs.next())
+                    keys.add(rs.getObject(1));
+            }
+            // pending delayed writes go to the old table
+            mapper.flushWriteBehind();
+            mapper.replaceKeyFilter(keys);
+
+            connection.setAutoCommit(false);
+            // read in the swap transaction: the triggers recreated are the ones dropped
+            Map<String, String> triggers = triggers();
+            for (String trigger : triggers.keySet())
+                statement.execute("DROP TRIGGER " + quote(trigger));
+            statement.execute("RENAME TABLE BOOK TO BOOK_OLD");
+            statement.execute("RENAME TABLE BOOK_STAGE TO BOOK");
+            statement.execute("DROP TABLE BOOK_OLD");
+            for (String index : indexes.keySet())
+                statement.execute("RENAME INDEX " + quote(stageIndex(index)) + " TO " + quote(index));
+            for (String ddl : triggers.values())
+                statement.execute(ddl);
+            connection.commit();
+            ended = true;
+        } catch (SQLException e) {
+            rollbackQuietly();
+            // the installed filter may lack keys of the old table
+            mapper.replaceKeyFilter(null);
+            throw new BookMapperException("BookReload: Swap failed: " + e.getMessage());
+        } finally {
+            autoCommitQuietly();
+        }
+        db.releaseConnection(connection);
+        mapper.tableReplaced();
+    }
+
+    /**
+     * Drop the shadow table if the reload has not been committed
+     * @throws BookMapperException if the shadow table cannot be dropped
+     */
+    @Override
+    public void close() throws BookMapperException {
+        if (ended)
+            return;
+        ended = true;
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE BOOK_STAGE");
+        } catch (SQLException e) {
+            throw new BookMapperException("BookReload: Shadow table drop failed: " + e.getMessage());
+        } finally {
+            db.releaseConnection(connection);
+        }
+    }
+
+    private void checkActive() throws BookMapperException {
+        if (ended)
+            throw new BookMapperException("BookReload: Reload already ended");
+    }
+
+    // nullability, defaults, primary key and foreign keys of BOOK, as statements altering the shadow table
+    private List<String> stageConstraints() throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        List<String> ddl = new ArrayList<>();
+        try (ResultSet rs = metaData.getColumns(null, schema, "BOOK", null)) {
+            while (rs.next()) {
+                String column = quote(rs.getString("COLUMN_NAME"));
+                if (rs.getInt("NULLABLE") == DatabaseMetaData.columnNoNulls)
+                    ddl.add("ALTER TABLE BOOK_STAGE ALTER COLUMN " + column + " NOT NULL");
+                String defaultValue = rs.getString("COLUMN_DEF");
+                if (defaultValue != null)
+                    ddl.add("ALTER TABLE BOOK_STAGE ALTER COLUMN " + column + " DEFAULT " + defaultValue);
+            }
+        }
+        Map<Short, String> keyColumns = new TreeMap<>();
+        try (ResultSet rs = metaData.getPrimaryKeys(null, schema, "BOOK")) {
+            while (rs.next())
+                keyColumns.put(rs.getShort("KEY_SEQ"), quote(rs.getString("COLUMN_NAME")));
+        }
+        if (!keyColumns.isEmpty())
+            ddl.add("ALTER TABLE BOOK_STAGE ADD PRIMARY KEY (" + join(keyColumns.values()) + ")");
+        // foreign key name -> (referenced table, key sequence -> {column, referenced column})
+        Map<String, String> referencedTables = new LinkedHashMap<>();
+        Map<String, Map<Short, String[]>> foreignKeys = new LinkedHashMap<>();
+        try (ResultSet rs = metaData.getImportedKeys(null, schema, "BOOK")) {
+            while (rs.next()) {
+                String name = rs.getString("FK_NAME");
+                referencedTables.put(name, quote(rs.getString("PKTABLE_SCHEM")) + "." + quote(rs.getString("PKTABLE_NAME")));
+                Map<Short, String[]> columns = foreignKeys.get(name);
+                if (columns == null) {
+                    columns = new TreeMap<>();
+                    foreignKeys.put(name, columns);
+                }
+                columns.put(rs.getShort("KEY_SEQ"),
+                        new String[]{quote(rs.getString("FKCOLUMN_NAME")), quote(rs.getString("PKCOLUMN_NAME"))});
+            }
+        }
+        for (Map.Entry<String, Map<Short, String[]>> foreignKey : foreignKeys.entrySet()) {
+            List<String> columns = new ArrayList<>();
+            List<String> referenced = new ArrayList<>();
+            for (String[] pair : foreignKey.getValue().values()) {
+                columns.add(pair[0]);
+                referenced.add(pair[1]);
+            }
+            ddl.add("ALTER TABLE BOOK_STAGE ADD FOREIGN KEY (" + join(columns) + ") REFERENCES "
+                    + referencedTables.get(foreignKey.getKey()) + " (" + join(referenced) + ")");
+        }
+        return ddl;
+    }
+
+    // indexes of BOOK which do not back a constraint: index name -> statement creating it on the shadow table
+    private Map<String, String> stageIndexes() throws SQLException {
+        Set<String> constraintIndexes = new HashSet<>();
+        try (PreparedStatement statement = connection.prepareStatement(CONSTRAINT_INDEXES)) {
+            statement.setString(1, schema);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next())
+                    constraintIndexes.add(rs.getString(1));
+            }
+        }
+        Map<String, Boolean> unique = new LinkedHashMap<>();
+        Map<String, Map<Short, String>> columns = new LinkedHashMap<>();
+        try (ResultSet rs = connection.getMetaData().getIndexInfo(null, schema, "BOOK", false, false)) {
+            while (rs.next()) {
+                String name = rs.getString("INDEX_NAME");
+                // statistics rows have no index
+                if (name == null || constraintIndexes.contains(name))
+                    continue;
+                unique.put(name, !rs.getBoolean("NON_UNIQUE"));
+                Map<Short, String> indexColumns = columns.get(name);
+                if (indexColumns == null) {
+                    indexColumns = new TreeMap<>();
+                    columns.put(name, indexColumns);
+                }
+                indexColumns.put(rs.getShort("ORDINAL_POSITION"),
+                        quote(rs.getString("COLUMN_NAME")) + ("D".equals(rs.getString("ASC_OR_DESC")) ? " DESC" : ""));
+            }
+        }
+        Map<String, String> ddl = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<Short, String>> index : columns.entrySet()) {
+            ddl.put(index.getKey(), "CREATE " + (unique.get(index.getKey()) ? "UNIQUE " : "") + "INDEX "
+                    + quote(stageIndex(index.getKey())) + " ON BOOK_STAGE (" + join(index.getValue().values()) + ")");
+        }
+        return ddl;
+    }
+
+    // triggers of BOOK: trigger name -> statement creating it again
+    private Map<String, String> triggers() throws SQLException {
+        Map<String, String> ddl = new LinkedHashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(TRIGGERS)) {
+            statement.setString(1, schema);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    String name = rs.getString(1);
+                    // the columns of an UPDATE OF trigger are only stored as positions
+                    if (rs.getInt(11) != 0)
+                        throw new SQLException("Trigger " + name + " fires on some columns only and cannot be created again");
+                    boolean row = "R".equals(rs.getString(4));
+                    StringBuilder trigger = new StringBuilder("CREATE TRIGGER ").append(quote(name))
+                            .append("B".equals(rs.getString(3)) ? " NO CASCADE BEFORE " : " AFTER ")
+                            .append(event(rs.getString(2))).append(" ON BOOK");
+                    boolean referencingOld = rs.getBoolean(5);
+                    boolean referencingNew = rs.getBoolean(7);
+                    if (referencingOld || referencingNew)
+                        trigger.append(" REFERENCING");
+                    if (referencingOld)
+                        trigger.append(row ? " OLD AS " : " OLD TABLE AS ").append(quote(rs.getString(6)));
+                    if (referencingNew)
+                        trigger.append(row ? " NEW AS " : " NEW TABLE AS ").append(quote(rs.getString(8)));
+                    trigger.append(row ? " FOR EACH ROW" : " FOR EACH STATEMENT");
+                    String when = rs.getString(9);
+                    if (when != null)
+                        trigger.append(" WHEN (").append(when).append(')');
+                    trigger.append(' ').append(rs.getString(10));
+                    ddl.put(name, trigger.toString());
+                }
+            }
+        }
+        return ddl;
+    }
+
+    private static String event(String code) {
+        switch (code) {
+            case "I":
+                return "INSERT";
+            case "U":
+                return "UPDATE";
+            default:
+                return "DELETE";
+        }
+    }
+
+    private static String stageIndex(String index) {
+        return "STAGE_" + index;
+    }
+
+    // delimited identifier: the names read from the catalog keep their case
+    private static String quote(String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+
+    private static String join(Collection<String> parts) {
+        StringBuilder joined = new StringBuilder();
+        for (String part : parts) {
+            if (joined.length() > 0)
+                joined.append(", ");
+            joined.append(part);
+        }
+        return joined.toString();
+    }
+
+    private static void dropStage(Statement statement) {
+        try {
+            statement.execute("DROP TABLE BOOK_STAGE");
+        } catch (SQLException e) {
+            // no shadow table left
+        }
+    }
+
+    private void rollbackQuietly() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            // the connection is given back anyway
+        }
+    }
+
+    private void autoCommitQuietly() {
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            // the connection is given back anyway
+        }
+    }
+}
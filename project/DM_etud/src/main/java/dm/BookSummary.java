@@ -0,0 +1,41 @@
+package dm;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Read-only projection of a book for listings: isbn and title only
+ */
+public final class BookSummary {
+    // builds a summary from a row of (isbn, title)
+    static final Projection<BookSummary> PROJECTION = new Projection<BookSummary>() {
+        @Override
+        public BookSummary map(ResultSet rs) throws SQLException {
+            return new BookSummary(rs.getString(1), rs.getString(2));
+        }
+    };
+
+    private final String isbn;
+    private final String title;
+
+    public BookSummary(String isbn, String title) {
+        this.isbn = isbn;
+        this.title = title;
+    }
+
+    public String getIsbn() {
+        return isbn;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    @Override
+    public String toString() {
+        return "BookSummary{" +
+                "isbn='" + isbn + '\'' +
+                ", title='" + title + '\'' +
+                '}';
+    }
+}
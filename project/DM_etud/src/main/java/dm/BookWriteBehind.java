@@ -0,0 +1,350 @@
+package dm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLNonTransientException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind of the book inserts and updates: a written book is appended to a local journal
+ * (durable once the batched fsync returns) and kept as pending; the pending books are written
+ * to the database in the background, coalesced by isbn (only the last state of a book is written).
+ * On startup the journal is replayed, so the writes not flushed before a crash are not lost.
+ * Writers are blocked when too many books are pending (the flush lags behind).
+ * A book the database rejects (constraint, value too long) would fail every batch it is part of:
+ * when a batch fails its books are written one by one, and a rejected book is moved to a
+ * rejected file next to the journal instead of staying pending.
+ */
+class BookWriteBehind {
+    // number of pending books triggering an immediate flush
+    static final int FLUSH_BATCH_SIZE = 500;
+    // number of pending books blocking the writers
+    static final int MAX_PENDING = 10000;
+    // maximum time a writer waits for the flush to catch up
+    static final long BACKPRESSURE_TIMEOUT_MILLIS = 30000;
+
+    private final BookMapper mapper;
+    private final WriteJournal journal;
+    // books rejected by the database, kept for inspection
+    private final WriteJournal rejected;
+    // last state of the books not written to the database yet
+    private final ConcurrentMap<String, Book> pending = new ConcurrentHashMap<>();
+    // held while pending books are written to the database
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // notified when pending books have been written
+    private final Object drained = new Object();
+    private final ScheduledExecutorService flusher;
+    private volatile MapperException lastFailure;
+
+    /**
+     * Open the journal, write the books it holds and start the background flush
+     * @param mapper mapper writing the books
+     * @param journalFile local journal file
+     * @param flushIntervalMillis delay between two background flushes
+     * @throws MapperException if the journal cannot be replayed
+     */
+    BookWriteBehind(BookMapper mapper, Path journalFile, long flushIntervalMillis) throws MapperException {
+        this.mapper = mapper;
+        try {
+            this.rejected = new WriteJournal(journalFile.resolveSibling(journalFile.getFileName() + ".rejected"));
+            rejected.replay();
+            this.journal = new WriteJournal(journalFile);
+            Map<String, Book> replayed = new LinkedHashMap<>();
+            for (byte[] record : journal.replay()) {
+                Book book = decode(record);
+                replayed.put((String) book.getId(), book);
+            }
+            for (Book book : replayed.values())
+                mapper.cacheWritten(book, true);
+            pending.putAll(replayed);
+        } catch (IOException e) {
+            throw new MapperException("BookWriteBehind:: Journal replay failed: " + e.getMessage());
+        }
+        try {
+            flush();
+        } catch (MapperException e) {
+            closeJournals();
+            throw e;
+        }
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "write-behind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushQuietly();
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Journal a written book and make it pending
+     * @param book inserted or updated book
+     * @throws MapperException if the journal cannot be written or the flush lags for too long
+     */
+    void write(Book book) throws MapperException {
+        awaitCapacity();
+        // pending before being journaled: a flush running meanwhile cannot empty the journal
+        // while this book is neither flushed nor pending
+        pending.put((String) book.getId(), book);
+        try {
+            long sequence = journal.append(encode(book));
+            journal.sync(sequence);
+        } catch (IOException e) {
+            pending.remove(book.getId(), book);
+            throw new MapperException("BookWriteBehind:: Journal write failed: " + e.getMessage());
+        }
+        if (pending.size() >= FLUSH_BATCH_SIZE)
+            flusher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushQuietly();
+                }
+            });
+    }
+
+    /**
+     * @param isbn book isbn
+     * @return the pending state of a book, or null if it has no pending write
+     */
+    Book pending(String isbn) {
+        return pending.get(isbn);
+    }
+
+    /**
+     * @return the books rejected by the database so far, in rejection order
+     * @throws MapperException if the rejected file cannot be read
+     */
+    List<Book> rejected() throws MapperException {
+        try {
+            List<Book> books = new ArrayList<>();
+            for (byte[] record : rejected.replay())
+                books.add(decode(record));
+            return books;
+        } catch (IOException e) {
+            throw new MapperException("BookWriteBehind:: Rejected file read failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write all the pending books to the database, then drop the journal records they come from
+     * @throws MapperException if the database write fails (the books not written stay pending)
+     */
+    void flush() throws MapperException {
+        flushLock.lock();
+        try {
+            // every record up to this one is the state of a book of the batch, or of an older state of it
+            long applied = journal.lastSequence();
+            List<Book> batch = new ArrayList<>(pending.values());
+            if (!batch.isEmpty()) {
+                try {
+                    mapper.abstractUpsertAll(batch);
+                } catch (MapperException e) {
+                    writeOneByOne(batch);
+                }
+                // a book written again meanwhile stays pending
+                for (Book book : batch)
+                    pending.remove(book.getId(), book);
+            }
+            journal.checkpoint(applied);
+            lastFailure = null;
+        } catch (MapperException e) {
+            lastFailure = e;
+            throw e;
+        } catch (IOException e) {
+            // the journal is only replayed again
+            lastFailure = new MapperException("BookWriteBehind:: Journal checkpoint failed: " + e.getMessage());
+        } finally {
+            flushLock.unlock();
+            synchronized (drained) {
+                drained.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Write the pending books, then run the deletion of a book while no flush can write it again:
+     * its writes queued meanwhile, older than the deletion, are dropped
+     * @param isbn isbn of the deleted book
+     * @param action deletion of the book
+     * @throws MapperException if the pending books cannot be written or the action fails
+     */
+    void delete(String isbn, Transaction.Action action) throws MapperException {
+        flushLock.lock();
+        try {
+            flush();
+            action.run();
+            // their journal records are dropped with the next checkpoint, taken at once so that a replay
+            // cannot write the book again
+            if (pending.remove(isbn) != null)
+                flush();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Drop the pending books and empty the journal (all the books are deleted), then run an action
+     * while no flush can write a pending book again
+     * @param action deletion of all the books
+     * @throws MapperException if the action fails
+     */
+    void clear(Transaction.Action action) throws MapperException {
+        flushLock.lock();
+        try {
+            action.run();
+            pending.clear();
+            journal.checkpoint(journal.lastSequence());
+        } catch (IOException e) {
+            throw new MapperException("BookWriteBehind:: Journal checkpoint failed: " + e.getMessage());
+        } finally {
+            flushLock.unlock();
+            synchronized (drained) {
+                drained.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stop the background flush, write the pending books and close the journal
+     * @throws MapperException if the pending books cannot be written (they stay in the journal)
+     */
+    void close() throws MapperException {
+        flusher.shutdown();
+        try {
+            flush();
+        } finally {
+            closeJournals();
+        }
+    }
+
+    // a failed batch: write its books one by one, moving the rejected ones to the rejected file;
+    // stop at the first other failure (the database is not available, the books left stay pending)
+    private void writeOneByOne(List<Book> batch) throws MapperException {
+        for (Book book : batch) {
+            try {
+                mapper.abstractUpsertAll(Collections.singletonList(book));
+                pending.remove(book.getId(), book);
+            } catch (MapperException e) {
+                if (!isRejection(e))
+                    throw e;
+                try {
+                    rejected.sync(rejected.append(encode(book)));
+                } catch (IOException journalFailure) {
+                    throw new MapperException("BookWriteBehind:: Rejected file write failed: " + journalFailure.getMessage());
+                }
+                // the cached state of the book is not in the database
+                if (pending.remove(book.getId(), book))
+                    mapper.forgetWritten(book);
+            }
+        }
+    }
+
+    // a row refused by the database fails again on every retry, unlike a lost connection or a timeout
+    private static boolean isRejection(MapperException e) {
+        Throwable cause = e.getCause();
+        return cause instanceof SQLNonTransientException && !(cause instanceof SQLNonTransientConnectionException);
+    }
+
+    private void closeJournals() {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            // the journal is replayed on the next start anyway
+        }
+        try {
+            rejected.close();
+        } catch (IOException e) {
+            // its records are already forced
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (MapperException e) {
+            // kept in lastFailure, the books are written by a next flush
+        }
+    }
+
+    // back-pressure: wait for the flush when too many books are pending
+    private void awaitCapacity() throws MapperException {
+        long deadline = System.currentTimeMillis() + BACKPRESSURE_TIMEOUT_MILLIS;
+        synchronized (drained) {
+            while (pending.size() >= MAX_PENDING) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    MapperException failure = lastFailure;
+                    throw new MapperException("BookWriteBehind:: Write-behind flush is lagging"
+                            + (failure != null ? ": " + failure.getMessage() : ""));
+                }
+                try {
+                    drained.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MapperException("BookWriteBehind:: Interrupted while waiting for the flush");
+                }
+            }
+        }
+    }
+
+    private static byte[] encode(Book book) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF((String) book.getId());
+            writeNullable(out, (String) book.getTitle());
+            writeNullable(out, (String) book.getAuthor());
+            out.writeFloat((float) book.getPrice());
+            writeNullable(out, (String) book.getDescription());
+            Integer publisherId = book.getPublisherId();
+            out.writeBoolean(publisherId != null);
+            if (publisherId != null)
+                out.writeInt(publisherId);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Book decode(byte[] record) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            String isbn = in.readUTF();
+            String title = readNullable(in);
+            String author = readNullable(in);
+            float price = in.readFloat();
+            String description = readNullable(in);
+            // records journaled before the publisher was added end here
+            Integer publisherId = in.available() > 0 && in.readBoolean() ? in.readInt() : null;
+            return new Book(isbn, title, author, price, description, publisherId);
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
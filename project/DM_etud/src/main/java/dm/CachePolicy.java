@@ -0,0 +1,53 @@
+package dm;
+
+/**
+ * Expiration policy of the objects kept in a Registry.
+ * An object younger than refreshAheadRatio * ttl is fresh.
+ * After that it is stale: it is still returned to the callers but it is reloaded in the background.
+ * An object older than ttl + maxStale is expired and must be reloaded before being returned.
+ */
+public class CachePolicy {
+    // objects never expire (default behaviour of the identity map)
+    public static final CachePolicy NEVER_EXPIRE = new CachePolicy(0, 1, 0);
+
+    private final long ttlMillis;
+    private final double refreshAheadRatio;
+    private final long maxStaleMillis;
+
+    /**
+     * Create a cache policy
+     * @param ttlMillis time to live of an object in milliseconds (0 means never expire)
+     * @param refreshAheadRatio fraction of the ttl after which a read triggers a background reload (0 < ratio <= 1)
+     * @param maxStaleMillis how long after the ttl a stale object may still be returned while it is reloaded
+     */
+    public CachePolicy(long ttlMillis, double refreshAheadRatio, long maxStaleMillis) {
+        if (ttlMillis < 0 || maxStaleMillis < 0 || refreshAheadRatio <= 0 || refreshAheadRatio > 1)
+            throw new IllegalArgumentException("CachePolicy:: Invalid policy parameters");
+        this.ttlMillis = ttlMillis;
+        this.refreshAheadRatio = refreshAheadRatio;
+        this.maxStaleMillis = maxStaleMillis;
+    }
+
+    public boolean expires() {
+        return ttlMillis > 0;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public double getRefreshAheadRatio() {
+        return refreshAheadRatio;
+    }
+
+    public long getMaxStaleMillis() {
+        return maxStaleMillis;
+    }
+
+    /**
+     * @return age in milliseconds after which an object must be reloaded in the background
+     */
+    public long getRefreshAfterMillis() {
+        return (long) (ttlMillis * refreshAheadRatio);
+    }
+}
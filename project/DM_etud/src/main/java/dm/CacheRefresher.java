@@ -0,0 +1,103 @@
+package dm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reloads stale objects of a mapper in the background.
+ * Refresh requests are gathered during a short delay and reloaded together
+ * with one query per batch of ids.
+ */
+class CacheRefresher {
+    // default maximum number of ids reloaded by one query
+    static final int DEFAULT_BATCH_SIZE = 100;
+    // default delay used to gather refresh requests (in milliseconds)
+    static final long DEFAULT_BATCH_DELAY_MILLIS = 10;
+
+    private final AbstractMapper mapper;
+    private final int batchSize;
+    private final long batchDelayMillis;
+    // id -> false when waiting for the next batch, true when its reload is in flight
+    private final ConcurrentHashMap<Object, Boolean> requests = new ConcurrentHashMap<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final ScheduledExecutorService executor;
+
+    CacheRefresher(AbstractMapper mapper) {
+        this(mapper, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_DELAY_MILLIS);
+    }
+
+    CacheRefresher(AbstractMapper mapper, int batchSize, long batchDelayMillis) {
+        this.mapper = mapper;
+        this.batchSize = batchSize;
+        this.batchDelayMillis = batchDelayMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cache-refresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Ask for an object to be reloaded (ignored if its reload is already requested or in flight)
+     * @param id object identifier
+     */
+    void requestRefresh(Object id) {
+        if (requests.putIfAbsent(id, Boolean.FALSE) != null)
+            return;
+        if (scheduled.compareAndSet(false, true)) {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, batchDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    int getPendingCount() {
+        return requests.size();
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // reload all the waiting ids, batch by batch
+    private void flush() {
+        // requests arriving from now on schedule a new flush
+        scheduled.set(false);
+
+        List<Object> batch = new ArrayList<>(batchSize);
+        for (Object id : requests.keySet()) {
+            // mark the id as in flight
+            if (requests.replace(id, Boolean.FALSE, Boolean.TRUE))
+                batch.add(id);
+            if (batch.size() == batchSize) {
+                reload(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty())
+            reload(batch);
+    }
+
+    private void reload(List<Object> batch) {
+        try {
+            mapper.refresh(batch);
+        } catch (MapperException e) {
+            // the objects stay stale, a next read will request them again
+        } finally {
+            for (Object id : batch)
+                requests.remove(id);
+        }
+    }
+}
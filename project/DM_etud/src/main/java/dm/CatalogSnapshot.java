@@ -0,0 +1,392 @@
+package dm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable in-memory snapshot of the whole catalog, indexed by isbn, by author and by price.
+ * A write does not modify a snapshot: it builds a new one which shares all the unchanged parts
+ * (copy-on-write of the bucket arrays and of the single bucket or chunk holding the book).
+ * Readers only need the reference of a snapshot: no lock, no retry.
+ * The books are owned by the snapshot: it holds copies of the written books and returns copies
+ * of its own, so that a caller modifying a book cannot change the snapshot nor its indexes.
+ */
+final class CatalogSnapshot {
+    // initial number of buckets per book, and bucket count limits
+    private static final int MIN_BUCKETS = 64;
+    private static final int BOOKS_PER_BUCKET = 4;
+    // average bucket length triggering a rebuild with more buckets
+    private static final int MAX_BUCKET_LOAD = 16;
+    // maximum number of books of a price chunk, which is split beyond
+    private static final int CHUNK_SIZE = 256;
+
+    static final CatalogSnapshot EMPTY = build(Collections.<Book>emptyList());
+
+    /**
+     * A book with the values it was indexed with (the book itself may be modified in place)
+     */
+    private static final class Entry {
+        private final Book book;
+        private final String isbn;
+        private final String author;
+        private final float price;
+
+        private Entry(Book book) {
+            this.book = book;
+            this.isbn = (String) book.getId();
+            this.author = (String) book.getAuthor();
+            this.price = (float) book.getPrice();
+        }
+    }
+
+    /**
+     * The books of an author
+     */
+    private static final class AuthorBooks {
+        private final String author;
+        private final Entry[] entries;
+
+        private AuthorBooks(String author, Entry[] entries) {
+            this.author = author;
+            this.entries = entries;
+        }
+    }
+
+    // price then isbn order
+    private static final Comparator<Entry> PRICE_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return comparePrice(a.price, a.isbn, b.price, b.isbn);
+        }
+    };
+
+    // buckets by isbn hash
+    private final Entry[][] isbnBuckets;
+    // buckets by author hash
+    private final AuthorBooks[][] authorBuckets;
+    // consecutive chunks of the books sorted by price then isbn
+    private final Entry[][] priceChunks;
+    private final int size;
+
+    private CatalogSnapshot(Entry[][] isbnBuckets, AuthorBooks[][] authorBuckets, Entry[][] priceChunks, int size) {
+        this.isbnBuckets = isbnBuckets;
+        this.authorBuckets = authorBuckets;
+        this.priceChunks = priceChunks;
+        this.size = size;
+    }
+
+    /**
+     * Build a snapshot of a set of books
+     * @param books books with distinct isbns, owned by the snapshot from now on (not copied)
+     * @return snapshot
+     */
+    static CatalogSnapshot build(Collection<Book> books) {
+        List<Entry> entries = new ArrayList<>(books.size());
+        for (Book book : books)
+            entries.add(new Entry(book));
+        return buildEntries(entries);
+    }
+
+    private static CatalogSnapshot buildEntries(List<Entry> entries) {
+        int bucketCount = MIN_BUCKETS;
+        while (bucketCount * BOOKS_PER_BUCKET < entries.size())
+            bucketCount <<= 1;
+
+        List<List<Entry>> isbnLists = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++)
+            isbnLists.add(new ArrayList<Entry>());
+        Map<String, List<Entry>> byAuthor = new HashMap<>();
+        for (Entry entry : entries) {
+            isbnLists.get(bucket(entry.isbn, bucketCount)).add(entry);
+            List<Entry> authorEntries = byAuthor.get(entry.author);
+            if (authorEntries == null) {
+                authorEntries = new ArrayList<>();
+                byAuthor.put(entry.author, authorEntries);
+            }
+            authorEntries.add(entry);
+        }
+        Entry[][] isbnBuckets = new Entry[bucketCount][];
+        for (int i = 0; i < bucketCount; i++)
+            isbnBuckets[i] = isbnLists.get(i).toArray(new Entry[0]);
+
+        List<List<AuthorBooks>> authorLists = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++)
+            authorLists.add(new ArrayList<AuthorBooks>());
+        for (Map.Entry<String, List<Entry>> author : byAuthor.entrySet())
+            authorLists.get(bucket(author.getKey(), bucketCount))
+                    .add(new AuthorBooks(author.getKey(), author.getValue().toArray(new Entry[0])));
+        AuthorBooks[][] authorBuckets = new AuthorBooks[bucketCount][];
+        for (int i = 0; i < bucketCount; i++)
+            authorBuckets[i] = authorLists.get(i).toArray(new AuthorBooks[0]);
+
+        // half full chunks leave room for the inserts
+        List<Entry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, PRICE_ORDER);
+        List<Entry[]> chunks = new ArrayList<>();
+        for (int from = 0; from < sorted.size(); from += CHUNK_SIZE / 2)
+            chunks.add(sorted.subList(from, Math.min(from + CHUNK_SIZE / 2, sorted.size())).toArray(new Entry[0]));
+        return new CatalogSnapshot(isbnBuckets, authorBuckets, chunks.toArray(new Entry[0][]), entries.size());
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param isbn book isbn
+     * @return a copy of the book, or null if the catalog does not hold it
+     */
+    Book find(String isbn) {
+        Entry entry = entry(isbn);
+        return entry == null ? null : entry.book.copy();
+    }
+
+    /**
+     * @param author author name
+     * @return copies of the books of the author
+     */
+    Set<Book> findByAuthor(String author) {
+        AuthorBooks books = authorBooks(author);
+        Set<Book> result = new HashSet<>();
+        if (books != null) {
+            for (Entry entry : books.entries)
+                result.add(entry.book.copy());
+        }
+        return result;
+    }
+
+    /**
+     * @param minPrice minimum price (included)
+     * @param maxPrice maximum price (included)
+     * @param limit maximum number of books
+     * @return copies of the cheapest books of the range, by price then isbn
+     */
+    List<Book> findByPriceRange(float minPrice, float maxPrice, int limit) {
+        List<Book> result = new ArrayList<>();
+        // first chunk ending at or above the minimum price
+        int low = 0;
+        int high = priceChunks.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            Entry[] chunk = priceChunks[mid];
+            if (Float.compare(chunk[chunk.length - 1].price, minPrice) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        for (int c = low; c < priceChunks.length && result.size() < limit; c++) {
+            for (Entry entry : priceChunks[c]) {
+                if (Float.compare(entry.price, minPrice) < 0)
+                    continue;
+                if (Float.compare(entry.price, maxPrice) > 0 || result.size() >= limit)
+                    return result;
+                result.add(entry.book.copy());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param author author name
+     * @param count maximum number of books
+     * @return copies of the cheapest books of the author, by price then isbn
+     */
+    List<Book> findCheapestByAuthor(String author, int count) {
+        AuthorBooks books = authorBooks(author);
+        List<Book> result = new ArrayList<>();
+        if (books == null || count <= 0)
+            return result;
+        Entry[] entries = books.entries.clone();
+        Arrays.sort(entries, PRICE_ORDER);
+        for (int i = 0; i < Math.min(count, entries.length); i++)
+            result.add(entries[i].book.copy());
+        return result;
+    }
+
+    /**
+     * @param book inserted or updated book, copied: the caller may go on modifying it
+     * @return a snapshot holding the current state of the book
+     */
+    CatalogSnapshot with(Book book) {
+        Entry entry = new Entry(book.copy());
+        return without(entry.isbn).add(entry);
+    }
+
+    /**
+     * @param isbn deleted book isbn
+     * @return a snapshot without the book
+     */
+    CatalogSnapshot without(String isbn) {
+        Entry entry = entry(isbn);
+        if (entry == null)
+            return this;
+
+        Entry[][] isbns = isbnBuckets.clone();
+        int isbnBucket = bucket(isbn, isbns.length);
+        isbns[isbnBucket] = removed(isbns[isbnBucket], entry);
+
+        AuthorBooks[][] authors = authorBuckets.clone();
+        int authorBucket = bucket(entry.author, authors.length);
+        AuthorBooks[] bucket = authors[authorBucket];
+        for (int i = 0; i < bucket.length; i++) {
+            if (equal(bucket[i].author, entry.author)) {
+                Entry[] remaining = removed(bucket[i].entries, entry);
+                if (remaining.length == 0) {
+                    AuthorBooks[] shorter = new AuthorBooks[bucket.length - 1];
+                    System.arraycopy(bucket, 0, shorter, 0, i);
+                    System.arraycopy(bucket, i + 1, shorter, i, bucket.length - i - 1);
+                    authors[authorBucket] = shorter;
+                } else {
+                    AuthorBooks[] copy = bucket.clone();
+                    copy[i] = new AuthorBooks(entry.author, remaining);
+                    authors[authorBucket] = copy;
+                }
+                break;
+            }
+        }
+
+        int c = chunkOf(entry);
+        Entry[][] chunks;
+        Entry[] remaining = removed(priceChunks[c], entry);
+        if (remaining.length == 0) {
+            chunks = new Entry[priceChunks.length - 1][];
+            System.arraycopy(priceChunks, 0, chunks, 0, c);
+            System.arraycopy(priceChunks, c + 1, chunks, c, priceChunks.length - c - 1);
+        } else {
+            chunks = priceChunks.clone();
+            chunks[c] = remaining;
+        }
+        return new CatalogSnapshot(isbns, authors, chunks, size - 1);
+    }
+
+    // add a book which is not in the snapshot
+    private CatalogSnapshot add(Entry entry) {
+        if (size + 1 > isbnBuckets.length * MAX_BUCKET_LOAD) {
+            // too many books per bucket: rebuild with more buckets
+            List<Entry> entries = new ArrayList<>(size + 1);
+            for (Entry[] bucket : isbnBuckets)
+                entries.addAll(Arrays.asList(bucket));
+            entries.add(entry);
+            return buildEntries(entries);
+        }
+
+        Entry[][] isbns = isbnBuckets.clone();
+        int isbnBucket = bucket(entry.isbn, isbns.length);
+        isbns[isbnBucket] = appended(isbns[isbnBucket], entry);
+
+        AuthorBooks[][] authors = authorBuckets.clone();
+        int authorBucket = bucket(entry.author, authors.length);
+        AuthorBooks[] bucket = authors[authorBucket];
+        AuthorBooks[] copy = null;
+        for (int i = 0; i < bucket.length && copy == null; i++) {
+            if (equal(bucket[i].author, entry.author)) {
+                copy = bucket.clone();
+                copy[i] = new AuthorBooks(entry.author, appended(bucket[i].entries, entry));
+            }
+        }
+        if (copy == null) {
+            copy = Arrays.copyOf(bucket, bucket.length + 1);
+            copy[bucket.length] = new AuthorBooks(entry.author, new Entry[] {entry});
+        }
+        authors[authorBucket] = copy;
+
+        Entry[][] chunks;
+        if (priceChunks.length == 0) {
+            chunks = new Entry[][] {{entry}};
+        } else {
+            // the chunk where the book sorts, the last one if it sorts after all the books
+            int c = Math.min(chunkOf(entry), priceChunks.length - 1);
+            Entry[] chunk = priceChunks[c];
+            int pos = -Arrays.binarySearch(chunk, entry, PRICE_ORDER) - 1;
+            Entry[] inserted = new Entry[chunk.length + 1];
+            System.arraycopy(chunk, 0, inserted, 0, pos);
+            inserted[pos] = entry;
+            System.arraycopy(chunk, pos, inserted, pos + 1, chunk.length - pos);
+            if (inserted.length <= CHUNK_SIZE) {
+                chunks = priceChunks.clone();
+                chunks[c] = inserted;
+            } else {
+                // split a full chunk in two halves
+                chunks = new Entry[priceChunks.length + 1][];
+                System.arraycopy(priceChunks, 0, chunks, 0, c);
+                chunks[c] = Arrays.copyOfRange(inserted, 0, inserted.length / 2);
+                chunks[c + 1] = Arrays.copyOfRange(inserted, inserted.length / 2, inserted.length);
+                System.arraycopy(priceChunks, c + 1, chunks, c + 2, priceChunks.length - c - 1);
+            }
+        }
+        return new CatalogSnapshot(isbns, authors, chunks, size + 1);
+    }
+
+    private Entry entry(String isbn) {
+        if (isbn == null)
+            return null;
+        for (Entry entry : isbnBuckets[bucket(isbn, isbnBuckets.length)]) {
+            if (entry.isbn.equals(isbn))
+                return entry;
+        }
+        return null;
+    }
+
+    private AuthorBooks authorBooks(String author) {
+        for (AuthorBooks books : authorBuckets[bucket(author, authorBuckets.length)]) {
+            if (equal(books.author, author))
+                return books;
+        }
+        return null;
+    }
+
+    // index of the first chunk whose last entry does not sort before the given one (length if none)
+    private int chunkOf(Entry entry) {
+        int low = 0;
+        int high = priceChunks.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            Entry[] chunk = priceChunks[mid];
+            if (PRICE_ORDER.compare(chunk[chunk.length - 1], entry) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private static Entry[] appended(Entry[] entries, Entry entry) {
+        Entry[] copy = Arrays.copyOf(entries, entries.length + 1);
+        copy[entries.length] = entry;
+        return copy;
+    }
+
+    private static Entry[] removed(Entry[] entries, Entry entry) {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] == entry) {
+                Entry[] copy = new Entry[entries.length - 1];
+                System.arraycopy(entries, 0, copy, 0, i);
+                System.arraycopy(entries, i + 1, copy, i, entries.length - i - 1);
+                return copy;
+            }
+        }
+        return entries;
+    }
+
+    private static int bucket(String key, int bucketCount) {
+        int hash = key == null ? 0 : key.hashCode();
+        return (hash ^ (hash >>> 16)) & (bucketCount - 1);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static int comparePrice(float priceA, String isbnA, float priceB, String isbnB) {
+        int result = Float.compare(priceA, priceB);
+        return result != 0 ? result : isbnA.compareTo(isbnB);
+    }
+}
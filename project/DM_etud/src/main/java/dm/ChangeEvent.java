@@ -0,0 +1,57 @@
+package dm;
+
+/**
+ * A change of a row, read from a change log table
+ */
+public class ChangeEvent {
+    /**
+     * Kind of change
+     */
+    public enum Operation {
+        INSERT, UPDATE, DELETE;
+
+        static Operation fromCode(String code) {
+            switch (code.trim()) {
+                case "I":
+                    return INSERT;
+                case "U":
+                    return UPDATE;
+                case "D":
+                    return DELETE;
+                default:
+                    throw new IllegalArgumentException("ChangeEvent:: Unknown operation code " + code);
+            }
+        }
+    }
+
+    private final long sequence;
+    private final Object id;
+    private final Operation operation;
+
+    public ChangeEvent(long sequence, Object id, Operation operation) {
+        this.sequence = sequence;
+        this.id = id;
+        this.operation = operation;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Object getId() {
+        return id;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeEvent{" +
+                "sequence=" + sequence +
+                ", id=" + id +
+                ", operation=" + operation +
+                '}';
+    }
+}
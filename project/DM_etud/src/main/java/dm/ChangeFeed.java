@@ -0,0 +1,263 @@
+package dm;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Polls a change log table filled by triggers (see bookstore.sql) and sends the new
+ * changes to its subscribers. The table must have the columns SEQ (increasing sequence
+ * number), ISBN (row id), OPERATION ('I', 'U' or 'D') and CHANGED_AT (time of the change).
+ * Changes are read incrementally after the last seen sequence number, by batches.
+ * The triggers log every write, whether a feed runs or not: a started feed deletes the changes it has
+ * read once they are older than the retention, so a node lagging behind by more than the retention
+ * misses changes. When no feed runs, the log must be purged by other means (see purge).
+ * A failing subscriber does not stop the feed nor keep the other subscribers from the changes:
+ * its failures are counted and the last one is kept (see getLastFailure).
+ */
+public class ChangeFeed {
+    // default number of changes read by one query
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    // default time during which a change is kept for the other nodes (in milliseconds)
+    public static final long DEFAULT_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+    // minimum delay between two purges of the expired changes
+    private static final long PURGE_PERIOD_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final DB db;
+    private final String pollStatement;
+    private final String purgeStatement;
+    private final String purgeExpiredStatement;
+    private final String lastSequenceStatement;
+    private final int batchSize;
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService executor;
+    // sequence number of the last change sent to the subscribers
+    private volatile long lastSequence = -1;
+    // failures of the subscribers and of the background polls
+    private final AtomicLong failures = new AtomicLong();
+    private volatile Exception lastFailure;
+    private volatile long retentionMillis = DEFAULT_RETENTION_MILLIS;
+    // date (System.nanoTime) of the last purge of the expired changes (background polls only)
+    private long lastPurge = System.nanoTime();
+
+    /**
+     * Create a feed over a change log table
+     * @param db database holding the change log table
+     * @param changeTable name of the change log table
+     */
+    public ChangeFeed(DB db, String changeTable) {
+        this(db, changeTable, DEFAULT_BATCH_SIZE);
+    }
+
+    public ChangeFeed(DB db, String changeTable, int batchSize) {
+        if (db == null || changeTable == null || batchSize <= 0)
+            throw new IllegalArgumentException("ChangeFeed:: Invalid feed parameters");
+        this.db = db;
+        this.batchSize = batchSize;
+        this.pollStatement = "SELECT SEQ, ISBN, OPERATION FROM " + changeTable
+                + " WHERE SEQ > ? ORDER BY SEQ FETCH FIRST " + batchSize + " ROWS ONLY";
+        this.purgeStatement = "DELETE FROM " + changeTable + " WHERE SEQ <= ?";
+        this.purgeExpiredStatement = "DELETE FROM " + changeTable + " WHERE SEQ <= ? AND CHANGED_AT < ?";
+        this.lastSequenceStatement = "SELECT MAX(SEQ) FROM " + changeTable;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "change-feed");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void subscribe(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void unsubscribe(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Set how long the changes read by this feed are kept for the other nodes before the background
+     * polls delete them
+     * @param retentionMillis retention in milliseconds (0 to never delete the changes)
+     */
+    public void setRetention(long retentionMillis) {
+        if (retentionMillis < 0)
+            throw new IllegalArgumentException("ChangeFeed:: Cannot use a negative retention");
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Start polling the change log. Only the changes made after this call are sent.
+     * The changes read and older than the retention are deleted about once a minute.
+     * @param periodMillis delay between two polls in milliseconds
+     * @throws MapperException if the change log cannot be read
+     */
+    public void start(long periodMillis) throws MapperException {
+        lastSequence = currentSequence();
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                // an exception escaping this task would cancel all the next polls
+                try {
+                    poll();
+                    if (retentionMillis > 0 && System.nanoTime() - lastPurge >= PURGE_PERIOD_NANOS) {
+                        lastPurge = System.nanoTime();
+                        purgeExpired();
+                    }
+                } catch (MapperException | RuntimeException e) {
+                    // the next poll starts again from the last sent change
+                    failed(e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return number of failures of the subscribers and of the background polls
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return last failure of a subscriber or of a background poll, or null
+     */
+    public Exception getLastFailure() {
+        return lastFailure;
+    }
+
+    private void failed(Exception e) {
+        lastFailure = e;
+        failures.incrementAndGet();
+    }
+
+    /**
+     * Read and send all the changes made since the last poll
+     * @return number of changes sent
+     * @throws MapperException if the change log cannot be read
+     */
+    public synchronized int poll() throws MapperException {
+        int sent = 0;
+        List<ChangeEvent> changes;
+        // a full batch means there may be more changes waiting
+        do {
+            changes = fetch(lastSequence);
+            if (!changes.isEmpty()) {
+                for (ChangeListener listener : listeners) {
+                    try {
+                        listener.onChanges(changes);
+                    } catch (RuntimeException e) {
+                        // the other subscribers still get the changes
+                        failed(e);
+                    }
+                }
+                lastSequence = changes.get(changes.size() - 1).getSequence();
+                sent += changes.size();
+            }
+        } while (changes.size() == batchSize);
+        return sent;
+    }
+
+    /**
+     * Delete the changes which all the nodes have read
+     * @param sequence last sequence number to delete
+     * @return number of deleted changes
+     * @throws MapperException if something goes wrong...
+     */
+    public int purge(long sequence) throws MapperException {
+        Connection connection = null;
+        try {
+            connection = db.acquireConnection();
+            try (PreparedStatement statement = connection.prepareStatement(purgeStatement)) {
+                statement.setLong(1, sequence);
+                return statement.executeUpdate();
+            }
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        } finally {
+            db.releaseConnection(connection);
+        }
+    }
+
+    /**
+     * Delete the changes read by this feed which are older than the retention
+     * (the clocks of the nodes are assumed to be close)
+     * @return number of deleted changes
+     * @throws MapperException if something goes wrong...
+     */
+    public int purgeExpired() throws MapperException {
+        long sequence = lastSequence;
+        if (sequence < 0)
+            return 0;
+        Connection connection = null;
+        try {
+            connection = db.acquireConnection();
+            try (PreparedStatement statement = connection.prepareStatement(purgeExpiredStatement)) {
+                statement.setLong(1, sequence);
+                statement.setTimestamp(2, new Timestamp(System.currentTimeMillis() - retentionMillis));
+                return statement.executeUpdate();
+            }
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        } finally {
+            db.releaseConnection(connection);
+        }
+    }
+
+    private List<ChangeEvent> fetch(long after) throws MapperException {
+        List<ChangeEvent> changes = new ArrayList<>();
+        Connection connection = null;
+        try {
+            connection = db.acquireConnection();
+            try (PreparedStatement statement = connection.prepareStatement(pollStatement)) {
+                statement.setLong(1, after);
+                statement.setFetchSize(batchSize);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next())
+                        changes.add(new ChangeEvent(rs.getLong(1), rs.getString(2),
+                                ChangeEvent.Operation.fromCode(rs.getString(3))));
+                }
+            }
+            return changes;
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        } finally {
+            db.releaseConnection(connection);
+        }
+    }
+
+    private long currentSequence() throws MapperException {
+        Connection connection = null;
+        try {
+            connection = db.acquireConnection();
+            try (PreparedStatement statement = connection.prepareStatement(lastSequenceStatement);
+                 ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        } finally {
+            db.releaseConnection(connection);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package dm;
+
+import java.util.List;
+
+/**
+ * Methods to be implemented by a subscriber of a ChangeFeed
+ */
+public interface ChangeListener {
+    /**
+     * Called with each batch of changes, in sequence order
+     * @param changes changes read from the change log
+     */
+    void onChanges(List<ChangeEvent> changes);
+}
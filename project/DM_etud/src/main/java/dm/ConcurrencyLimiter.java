@@ -0,0 +1,230 @@
+package dm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive limit of the number of concurrent calls to a database (AIMD driven by latency).
+ * The latency of each call is compared with the baseline latency of its priority class (the minimum over its
+ * last one or two windows of calls, so that the reads are not judged against the fastest write or the reverse,
+ * and the baseline follows a lasting change of latency of the database within two windows):
+ * while the calls stay within tolerance times the baseline and the limit is in use, the limit grows by
+ * one per limit calls; a slower call cuts it by the backoff ratio, once per round trip.
+ * A call over the limit is rejected at once instead of waiting: when the database slows down, the callers
+ * fail fast and the queue in front of it stays short. Reads may only use a share of the limit, so that
+ * writes still get through when the reads overload the database.
+ */
+public class ConcurrencyLimiter {
+    /**
+     * Priority class of a call
+     */
+    public enum Priority { READ, WRITE }
+
+    // default latency ratio above which the database is considered overloaded
+    public static final double DEFAULT_TOLERANCE = 2.0;
+    // default share of the limit the reads may use
+    public static final double DEFAULT_READ_SHARE = 0.8;
+    // multiplicative decrease of the limit
+    private static final double BACKOFF = 0.9;
+    // number of calls of a priority class over which a minimum latency is kept
+    static final int BASELINE_WINDOW = 64;
+
+    /**
+     * A call admitted by the limiter, to release once it is done
+     */
+    public interface Permit {
+        /**
+         * Record the end of the call (failed or not: its latency is a sample of the database either way)
+         */
+        void release();
+    }
+
+    // permit of the calls which are not limited
+    static final Permit UNLIMITED = new Permit() {
+        @Override
+        public void release() {
+        }
+    };
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double readShare;
+
+    // guarded by this
+    private double limit;
+    private int inFlight = 0;
+    // baseline of each priority class, by ordinal
+    private final Baseline[] baselines = new Baseline[Priority.values().length];
+    // start date of the calls which cannot cut the limit again (the ones already running at the last cut)
+    private long lastDecrease = Long.MIN_VALUE;
+
+    // metrics (guarded by this)
+    private long admitted = 0;
+    private long rejectedReads = 0;
+    private long rejectedWrites = 0;
+    private long decreases = 0;
+
+    /**
+     * Create a limiter with the default tolerance and read share
+     * @param initialLimit initial number of concurrent calls
+     * @param maxLimit maximum number of concurrent calls
+     */
+    public ConcurrencyLimiter(int initialLimit, int maxLimit) {
+        this(initialLimit, 1, maxLimit, DEFAULT_TOLERANCE, DEFAULT_READ_SHARE);
+    }
+
+    /**
+     * Create a limiter
+     * @param initialLimit initial number of concurrent calls
+     * @param minLimit minimum number of concurrent calls
+     * @param maxLimit maximum number of concurrent calls
+     * @param tolerance latency ratio to the baseline above which the limit is cut (greater than 1)
+     * @param readShare share of the limit the reads may use (0 < share <= 1)
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double tolerance, double readShare) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit || tolerance <= 1
+                || readShare <= 0 || readShare > 1)
+            throw new IllegalArgumentException("ConcurrencyLimiter:: Invalid limiter parameters");
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.readShare = readShare;
+        for (int i = 0; i < baselines.length; i++)
+            baselines[i] = new Baseline();
+    }
+
+    /**
+     * Admit a call if the limit allows it
+     * @param priority priority class of the call
+     * @return the permit of the call
+     * @throws OverloadException if the call is over the limit
+     */
+    public Permit acquire(final Priority priority) throws OverloadException {
+        final long start;
+        synchronized (this) {
+            // a single read is always allowed, so that reads cannot starve completely
+            double allowed = priority == Priority.WRITE ? limit : Math.max(1, limit * readShare);
+            if (inFlight >= (int) allowed) {
+                if (priority == Priority.WRITE)
+                    rejectedWrites++;
+                else
+                    rejectedReads++;
+                throw new OverloadException("ConcurrencyLimiter:: " + priority + " rejected, " + inFlight
+                        + " calls in flight (limit " + (int) limit + ")");
+            }
+            inFlight++;
+            admitted++;
+            start = System.nanoTime();
+        }
+        return new Permit() {
+            private boolean released = false;
+
+            @Override
+            public void release() {
+                if (released)
+                    return;
+                released = true;
+                completed(start, priority);
+            }
+        };
+    }
+
+    private synchronized void completed(long start, Priority priority) {
+        inFlight--;
+        long now = System.nanoTime();
+        long latency = now - start;
+        Baseline baseline = baselines[priority.ordinal()];
+        long baselineNanos = baseline.get();
+        baseline.add(latency);
+        // the first call of a class only sets its baseline
+        if (baselineNanos == Long.MAX_VALUE)
+            return;
+
+        if (latency > tolerance * baselineNanos) {
+            // the calls which started before the last cut saw the old load: one cut per round trip
+            if (start > lastDecrease) {
+                limit = Math.max(minLimit, limit * BACKOFF);
+                lastDecrease = now;
+                decreases++;
+            }
+        } else if (inFlight + 1 >= limit / 2) {
+            // only grow a limit in use
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @param priority priority class of the calls
+     * @return baseline latency of the calls of this class in milliseconds (0 before the first call)
+     */
+    public synchronized double getBaselineMillis(Priority priority) {
+        long baselineNanos = baselines[priority.ordinal()].get();
+        return baselineNanos == Long.MAX_VALUE ? 0 : (double) baselineNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public synchronized long getAdmittedCount() {
+        return admitted;
+    }
+
+    public synchronized long getRejectedReadCount() {
+        return rejectedReads;
+    }
+
+    public synchronized long getRejectedWriteCount() {
+        return rejectedWrites;
+    }
+
+    /**
+     * @return number of times the limit has been cut
+     */
+    public synchronized long getDecreaseCount() {
+        return decreases;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConcurrencyLimiter{" +
+                "limit=" + (int) limit +
+                ", inFlight=" + inFlight +
+                ", readBaselineMillis=" + getBaselineMillis(Priority.READ) +
+                ", writeBaselineMillis=" + getBaselineMillis(Priority.WRITE) +
+                ", admitted=" + admitted +
+                ", rejectedReads=" + rejectedReads +
+                ", rejectedWrites=" + rejectedWrites +
+                ", decreases=" + decreases +
+                '}';
+    }
+
+    /**
+     * Windowed minimum latency: the minimum of the current window and of the previous one,
+     * so that an old minimum is forgotten after two windows (guarded by the limiter)
+     */
+    private static class Baseline {
+        private long windowMin = Long.MAX_VALUE;
+        private long previousMin = Long.MAX_VALUE;
+        private int samples = 0;
+
+        void add(long latency) {
+            windowMin = Math.min(windowMin, latency);
+            if (++samples == BASELINE_WINDOW) {
+                previousMin = windowMin;
+                windowMin = Long.MAX_VALUE;
+                samples = 0;
+            }
+        }
+
+        // Long.MAX_VALUE before the first sample
+        long get() {
+            return Math.min(windowMin, previousMin);
+        }
+    }
+}
@@ -4,24 +4,98 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Encapsulate JDBC settings for database access
+ * Writes always go to the primary database. Reads may be routed to read-only replicas:
+ * the replica with the least outstanding requests is chosen, except for a session (thread)
+ * which has just written and reads from the primary to see its own writes. Until the replicas have
+ * caught up with the latest write, the results they give are not shared with the other sessions (see isUpToDate).
  */
 public class DB {
+    // default duration during which a session reads from the primary after a write (in milliseconds)
+    public static final long DEFAULT_STICKY_MILLIS = 5000;
+    // maximum number of idle connections kept in the pool
+    public static final int MAX_IDLE_CONNECTIONS = 16;
+
     private String driver;
     private String URLdb;
     private Connection connection;
+    // read-only replicas (empty when all reads go to the primary)
+    private final List<Replica> replicas = new ArrayList<>();
+    // used to break ties between equally loaded replicas
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    // date (System.nanoTime) of the last write of each session
+    private final ThreadLocal<Long> lastWrite = new ThreadLocal<>();
+    // date (System.nanoTime) of the last write of any session: until the replicas have caught up,
+    // the results they give must not be shared with the other sessions
+    private volatile long lastPrimaryWrite = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+    private volatile long stickyNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STICKY_MILLIS);
+    // extra connections to the primary used by parallel bulk operations
+    private final ConcurrentLinkedQueue<Connection> idleConnections = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    // transaction bound to each session (thread), if any
+    private final ThreadLocal<Transaction> currentTransaction = new ThreadLocal<>();
+    // commits the grouped transactions (created with the first submitted work)
+    private GroupCommitter groupCommitter;
+    // limit of the concurrent calls of the mappers (null when not limited)
+    private volatile ConcurrencyLimiter limiter;
+    // timeouts of the queries of the mapper calls (0 when not limited)
+    private volatile long readTimeoutNanos = 0;
+    private volatile long writeTimeoutNanos = 0;
+    // timeout metrics
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    // SQL state of a statement cancelled or timed out in Derby
+    private static final String CANCELLED_STATE = "XCL52";
+
+    /**
+     * A read-only replica and its number of outstanding requests
+     */
+    private static class Replica {
+        private final String url;
+        private final Connection connection;
+        private final AtomicInteger outstanding = new AtomicInteger();
 
-    private DB(String dbName) throws ClassNotFoundException, SQLException {
+        private Replica(String url, Connection connection) {
+            this.url = url;
+            this.connection = connection;
+        }
+    }
+
+    private DB(String dbName, String... replicaNames) throws ClassNotFoundException, SQLException {
         // Derby JDBC driver
         this.driver = "org.apache.derby.jdbc.ClientDriver";
         // JDBC URL to access Derby database (db will be created if it doesn't exist)
-        this.URLdb = "jdbc:derby://localhost:1527/" + dbName + ";create=true";
+        this.URLdb = url(dbName);
         // driver loading
         Class.forName(driver);
         // connection to database
         this.connection = DriverManager.getConnection(URLdb);
+        // connections to replicas, which are only read
+        for (String replicaName : replicaNames) {
+            Connection replicaConnection = DriverManager.getConnection(url(replicaName));
+            replicaConnection.setReadOnly(true);
+            this.replicas.add(new Replica(url(replicaName), replicaConnection));
+        }
+    }
+
+    // a full JDBC URL (e.g. an embedded "jdbc:derby:memory:..." database) is used as is
+    private static String url(String dbName) {
+        if (dbName.startsWith("jdbc:"))
+            return dbName;
+        return "jdbc:derby://localhost:1527/" + dbName + ";create=true";
     }
 
     /**
@@ -31,10 +105,24 @@ public class DB {
      * @throws Exception if wrong parameters
      */
     public static DB createDB(String dbName) throws Exception {
+        return createDB(dbName, new String[0]);
+    }
+
+    /**
+     * Factory method to create a DB object with read-only replicas
+     * @param dbName primary database name (or JDBC URL)
+     * @param replicaNames replica database names (or JDBC URLs)
+     * @return DB object used to create prepared statement
+     * @throws Exception if wrong parameters
+     */
+    public static DB createDB(String dbName, String... replicaNames) throws Exception {
         if (dbName == null || "".equals(dbName))
             throw new IllegalArgumentException("DB:: Database name is null or empty");
-        else
-            return new DB(dbName);
+        for (String replicaName : replicaNames) {
+            if (replicaName == null || "".equals(replicaName))
+                throw new IllegalArgumentException("DB:: Replica name is null or empty");
+        }
+        return new DB(dbName, replicaNames);
     }
 
     /**
@@ -45,6 +133,387 @@ public class DB {
      */
     public PreparedStatement prepare(String stmtString)
             throws SQLException {
-        return this.connection.prepareStatement(stmtString);
+        return sessionConnection().prepareStatement(stmtString);
+    }
+
+    /**
+     * Create a SQL prepared statement for a write on the primary database.
+     * The current session then reads from the primary for a while to see its write.
+     * @param stmtString SQL statement (with '?' for parameters)
+     * @return a prepared statement
+     * @throws SQLException for wrong statement
+     */
+    public PreparedStatement prepareWrite(String stmtString)
+            throws SQLException {
+        written();
+        return sessionConnection().prepareStatement(stmtString);
+    }
+
+    // the current session reads from the primary for a while, and the replicas may lag behind
+    private void written() {
+        long now = System.nanoTime();
+        this.lastWrite.set(now);
+        this.lastPrimaryWrite = now;
+    }
+
+    /**
+     * Create a SQL prepared statement for a read, routed to the least loaded replica.
+     * The statement must be given back with release once its results have been read.
+     * @param stmtString SQL select statement (with '?' for parameters)
+     * @return a prepared statement
+     * @throws SQLException for wrong statement
+     */
+    public PreparedStatement prepareRead(String stmtString)
+            throws SQLException {
+        // a transaction reads its own writes
+        if (replicas.isEmpty() || currentTransaction.get() != null || readsFromPrimary())
+            return sessionConnection().prepareStatement(stmtString);
+
+        // least outstanding requests, starting from a rotating index to spread ties
+        int start = (nextReplica.getAndIncrement() & Integer.MAX_VALUE) % replicas.size();
+        Replica chosen = null;
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (chosen == null || replica.outstanding.get() < chosen.outstanding.get())
+                chosen = replica;
+        }
+        chosen.outstanding.incrementAndGet();
+        try {
+            return chosen.connection.prepareStatement(stmtString);
+        } catch (SQLException e) {
+            chosen.outstanding.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Tell if the results of a read hold all the writes made through this database, so that they may be
+     * shared with the other sessions (e.g. cached): a read from a replica may miss the writes made
+     * within the stickiness window, the replicas are assumed to catch up within it
+     * @param statement statement created by prepareRead, prepare or on a pooled connection
+     * @return false if the statement ran on a replica which may lag behind the latest write
+     * @throws SQLException if the statement is closed
+     */
+    public boolean isUpToDate(Statement statement) throws SQLException {
+        if (replicas.isEmpty() || !replicasMayLag())
+            return true;
+        Connection statementConnection = statement.getConnection();
+        for (Replica replica : replicas) {
+            if (replica.connection == statementConnection)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the replicas may not have received the latest write yet
+     */
+    public boolean replicasMayLag() {
+        return !replicas.isEmpty() && System.nanoTime() - lastPrimaryWrite < stickyNanos;
+    }
+
+    /**
+     * Close a statement created by prepareRead and update the load of its replica
+     * @param statement statement to release (may be null)
+     */
+    public void release(PreparedStatement statement) {
+        if (statement == null)
+            return;
+        try {
+            Connection statementConnection = statement.getConnection();
+            for (Replica replica : replicas) {
+                if (replica.connection == statementConnection) {
+                    replica.outstanding.decrementAndGet();
+                    break;
+                }
+            }
+            statement.close();
+        } catch (SQLException e) {
+            // nothing more can be done with this statement
+        }
+    }
+
+    /**
+     * Get a connection to the primary database from the pool (or open a new one).
+     * Unlike prepare, each caller gets its own connection, so bulk operations can run in parallel.
+     * The connection must be given back with releaseConnection.
+     * @return a connection to the primary database
+     * @throws SQLException if the connection cannot be opened
+     */
+    public Connection acquireConnection() throws SQLException {
+        // the statements of a transaction all run on its connection
+        Transaction transaction = currentTransaction.get();
+        if (transaction != null)
+            return transaction.getConnection();
+        Connection pooled;
+        while ((pooled = idleConnections.poll()) != null) {
+            idleCount.decrementAndGet();
+            if (!pooled.isClosed())
+                return pooled;
+        }
+        return DriverManager.getConnection(URLdb);
+    }
+
+    /**
+     * Give back a connection obtained with acquireConnection
+     * @param pooled connection to give back (may be null)
+     */
+    public void releaseConnection(Connection pooled) {
+        if (pooled == null)
+            return;
+        // given back when the transaction ends
+        Transaction transaction = currentTransaction.get();
+        if (transaction != null && transaction.getConnection() == pooled)
+            return;
+        if (idleCount.incrementAndGet() <= MAX_IDLE_CONNECTIONS) {
+            idleConnections.offer(pooled);
+        } else {
+            idleCount.decrementAndGet();
+            try {
+                pooled.close();
+            } catch (SQLException e) {
+                // the connection is dropped anyway
+            }
+        }
+    }
+
+    /**
+     * Begin a transaction bound to the current session (thread) on a pooled connection
+     * @return the new transaction, to commit or roll back
+     * @throws SQLException if a transaction is already active in this session or no connection can be opened
+     */
+    public Transaction begin() throws SQLException {
+        if (currentTransaction.get() != null)
+            throw new SQLException("DB:: A transaction is already active in this session");
+        Connection pooled = acquireConnection();
+        try {
+            Transaction transaction = new Transaction(this, pooled);
+            currentTransaction.set(transaction);
+            return transaction;
+        } catch (SQLException e) {
+            releaseConnection(pooled);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the transaction of the current session, or null
+     */
+    public Transaction currentTransaction() {
+        return currentTransaction.get();
+    }
+
+    /**
+     * Run a small transaction grouped with the other submitted ones: the works waiting for
+     * a commit are run together in one database transaction, each within its own savepoint
+     * @param work work using the mappers of this database
+     * @return future completed once the work is committed, failing if the work or the commit failed
+     */
+    public synchronized Future<Void> submit(Transaction.Action work) {
+        if (groupCommitter == null)
+            groupCommitter = new GroupCommitter(this);
+        return groupCommitter.submit(work);
+    }
+
+    // called by a transaction once committed or rolled back
+    void endTransaction(Transaction transaction) {
+        if (currentTransaction.get() == transaction)
+            currentTransaction.remove();
+        releaseConnection(transaction.getConnection());
+    }
+
+    /**
+     * Limit the concurrent calls of the mappers to this database
+     * @param limiter adaptive limiter (null removes the limit)
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * @return the limiter of the calls to this database, or null
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Set the timeout of the queries of each mapper call; the deadline of the session (see Deadline)
+     * shortens it when it is closer
+     * @param readTimeoutMillis timeout of the reads in milliseconds (0 for none)
+     * @param writeTimeoutMillis timeout of the writes in milliseconds (0 for none)
+     */
+    public void setOperationTimeouts(long readTimeoutMillis, long writeTimeoutMillis) {
+        if (readTimeoutMillis < 0 || writeTimeoutMillis < 0)
+            throw new IllegalArgumentException("DB:: Cannot use a negative timeout");
+        this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+    }
+
+    /**
+     * @return number of queries cancelled because they timed out
+     */
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    /**
+     * @return number of calls failed because their caller gave up
+     */
+    public long getCancelledCount() {
+        return cancelled.get();
+    }
+
+    /**
+     * @return number of calls not run because their deadline had already passed
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    /**
+     * Start a call of a mapper to this database: it is admitted by the concurrency limiter, if any,
+     * and gets the earliest of its operation timeout and of the deadline of the session
+     * @param priority priority class of the call
+     * @return the call, to end once its queries are done
+     * @throws OverloadException if the database is overloaded
+     * @throws QueryTimeoutException if the deadline of the session has passed
+     */
+    public Call startCall(ConcurrencyLimiter.Priority priority) throws OverloadException, QueryTimeoutException {
+        Deadline deadline = Deadline.current();
+        long timeoutNanos = priority == ConcurrencyLimiter.Priority.WRITE ? writeTimeoutNanos : readTimeoutNanos;
+        long now = System.nanoTime();
+        // 0 when the call has no time limit
+        long expiresNanos = timeoutNanos > 0 ? now + timeoutNanos : 0;
+        if (deadline != null) {
+            if (deadline.isCancelled()) {
+                cancelled.incrementAndGet();
+                throw new QueryTimeoutException("DB:: Call cancelled by its caller");
+            }
+            if (expiresNanos == 0 || deadline.getDeadlineNanos() - expiresNanos < 0)
+                expiresNanos = deadline.getDeadlineNanos();
+        }
+        if (expiresNanos != 0 && expiresNanos - now <= 0) {
+            expired.incrementAndGet();
+            throw new QueryTimeoutException("DB:: Deadline exceeded before the call");
+        }
+        Call call = new Call(acquire(priority), deadline, expiresNanos);
+        // the batched writes run on pooled connections, without prepareWrite
+        if (priority == ConcurrencyLimiter.Priority.WRITE)
+            written();
+        return call;
+    }
+
+    // the calls made in a transaction are not limited: rejecting them would waste the work already
+    // done by the transaction, whose locks are held anyway
+    private ConcurrencyLimiter.Permit acquire(ConcurrencyLimiter.Priority priority) throws OverloadException {
+        ConcurrencyLimiter current = limiter;
+        if (current == null || currentTransaction.get() != null)
+            return ConcurrencyLimiter.UNLIMITED;
+        return current.acquire(priority);
+    }
+
+    /**
+     * A call of a mapper to the database, holding its concurrency permit and bounding the time of its queries
+     */
+    public final class Call {
+        private final ConcurrencyLimiter.Permit permit;
+        // deadline of the session (null if none)
+        private final Deadline deadline;
+        // date (System.nanoTime) at which the queries are cancelled, 0 if never
+        private final long expiresNanos;
+
+        private Call(ConcurrencyLimiter.Permit permit, Deadline deadline, long expiresNanos) {
+            this.permit = permit;
+            this.deadline = deadline;
+            this.expiresNanos = expiresNanos;
+        }
+
+        /**
+         * Bound the time of a query of the call, to call before it runs: the query gets the remaining time
+         * as its JDBC timeout, rounded up to whole seconds. Derby supports neither Statement.cancel nor
+         * interrupting a query from another thread: this timeout, checked by the database, is what stops
+         * a running query.
+         * @param statement statement of the query
+         * @throws QueryTimeoutException if the time of the call is over
+         * @throws SQLException if the timeout cannot be set
+         */
+        public void watch(Statement statement) throws QueryTimeoutException, SQLException {
+            if (deadline != null) {
+                if (deadline.isCancelled()) {
+                    cancelled.incrementAndGet();
+                    throw new QueryTimeoutException("DB:: Call cancelled by its caller");
+                }
+            }
+            if (expiresNanos == 0)
+                return;
+            long remaining = expiresNanos - System.nanoTime();
+            if (remaining <= 0) {
+                expired.incrementAndGet();
+                throw new QueryTimeoutException("DB:: Deadline exceeded before the query");
+            }
+            long second = TimeUnit.SECONDS.toNanos(1);
+            statement.setQueryTimeout((int) Math.max(1, (remaining + second - 1) / second));
+        }
+
+        /**
+         * Translate the failure of a query of the call
+         * @param e failure
+         * @return a QueryTimeoutException if the query timed out or was cancelled, a MapperException otherwise
+         */
+        public MapperException failure(SQLException e) {
+            boolean cancelledByCaller = deadline != null && deadline.isCancelled();
+            if (!(e instanceof SQLTimeoutException) && !CANCELLED_STATE.equals(e.getSQLState()))
+                return new MapperException(e.getMessage(), e);
+            // a query cannot be cancelled: a caller giving up sees its timeout
+            if (cancelledByCaller) {
+                cancelled.incrementAndGet();
+                return new QueryTimeoutException("DB:: Query cancelled by its caller: " + e.getMessage());
+            }
+            timedOut.incrementAndGet();
+            return new QueryTimeoutException("DB:: Query timed out: " + e.getMessage());
+        }
+
+        /**
+         * End the call: its permit is released
+         */
+        public void end() {
+            permit.release();
+        }
+    }
+
+    /**
+     * Set how long a session reads from the primary after a write
+     * @param stickyMillis duration in milliseconds (0 disables read-your-writes stickiness)
+     */
+    public void setStickyMillis(long stickyMillis) {
+        this.stickyNanos = TimeUnit.MILLISECONDS.toNanos(stickyMillis);
+    }
+
+    /**
+     * @return the replica URLs
+     */
+    public List<String> getReplicaUrls() {
+        List<String> urls = new ArrayList<>();
+        for (Replica replica : replicas)
+            urls.add(replica.url);
+        return Collections.unmodifiableList(urls);
+    }
+
+    // connection of the current transaction, or the shared connection
+    private Connection sessionConnection() {
+        Transaction transaction = currentTransaction.get();
+        return transaction != null ? transaction.getConnection() : this.connection;
+    }
+
+    // true if the current session has written recently
+    private boolean readsFromPrimary() {
+        Long last = this.lastWrite.get();
+        if (last == null)
+            return false;
+        if (System.nanoTime() - last < stickyNanos)
+            return true;
+        this.lastWrite.remove();
+        return false;
     }
 }
@@ -0,0 +1,114 @@
+package dm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time budget of the mapper calls of a session (thread), to use with try-with-resources:
+ * <pre>
+ *     try (Deadline deadline = Deadline.start(200)) {
+ *         Book book = mapper.find(isbn);
+ *     }
+ * </pre>
+ * Each query run before the deadline gets the remaining time as its timeout (rounded up to whole seconds);
+ * a call made after it fails at once with a QueryTimeoutException. A deadline started within another one
+ * cannot extend it. Another thread may cancel the deadline when the caller gives up: the next calls fail,
+ * the running queries end at their timeout since Derby cannot cancel them from another thread.
+ */
+public final class Deadline implements AutoCloseable {
+    // deadline bound to each session (thread), if any
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+
+    // date (System.nanoTime) of the deadline
+    private final long deadlineNanos;
+    // deadline of the session when this one was started, restored on close
+    private final Deadline outer;
+    private final Thread owner;
+    private volatile boolean cancelled = false;
+
+    private Deadline(long deadlineNanos, Deadline outer) {
+        this.deadlineNanos = deadlineNanos;
+        this.outer = outer;
+        this.owner = Thread.currentThread();
+    }
+
+    /**
+     * Start a deadline for the calls of the current session
+     * @param timeoutMillis time budget in milliseconds
+     * @return the deadline, to close once the calls are done
+     */
+    public static Deadline start(long timeoutMillis) {
+        if (timeoutMillis < 0)
+            throw new IllegalArgumentException("Deadline:: Cannot use a negative timeout");
+        Deadline outer = current.get();
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        // the calls must also meet the enclosing deadline
+        if (outer != null && outer.deadlineNanos - deadlineNanos < 0)
+            deadlineNanos = outer.deadlineNanos;
+        Deadline deadline = new Deadline(deadlineNanos, outer);
+        current.set(deadline);
+        return deadline;
+    }
+
+    /**
+     * @return the deadline of the current session, or null
+     */
+    public static Deadline current() {
+        return current.get();
+    }
+
+    // bind a deadline to the current thread (e.g. a thread querying a shard for the session), returns the previous one
+    static Deadline bind(Deadline deadline) {
+        Deadline previous = current.get();
+        if (deadline == null)
+            current.remove();
+        else
+            current.set(deadline);
+        return previous;
+    }
+
+    /**
+     * @return remaining time in milliseconds (0 once expired or cancelled)
+     */
+    public long remainingMillis() {
+        if (isCancelled())
+            return 0;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return isCancelled() || deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Give up: the next calls fail. May be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return true if this deadline or an enclosing one has been cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled || (outer != null && outer.isCancelled());
+    }
+
+    /**
+     * End the deadline: the session gets back its enclosing deadline, if any
+     */
+    @Override
+    public void close() {
+        if (Thread.currentThread() == owner && current.get() == this) {
+            if (outer == null)
+                current.remove();
+            else
+                current.set(outer);
+        }
+    }
+
+    // Used by the database calls
+
+    long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+}
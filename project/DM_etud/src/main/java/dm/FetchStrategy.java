@@ -0,0 +1,15 @@
+package dm;
+
+/**
+ * How the objects related to a list of loaded objects are fetched
+ */
+public enum FetchStrategy {
+    /**
+     * In the same query, with outer joins: a single round trip, wider rows
+     */
+    JOIN,
+    /**
+     * With a secondary IN query per related table (and per batch of ids), skipping the cached objects
+     */
+    BATCH
+}
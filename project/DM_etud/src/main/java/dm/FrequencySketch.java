@@ -0,0 +1,92 @@
+package dm;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count-min sketch estimating how often each key has been seen, in a fixed amount of memory:
+ * each key increments one counter per row, its frequency is the smallest of its counters
+ * (never less than the real count, more when other keys share all its counters).
+ * Every sampleSize increments all the counters are halved, so that the old accesses weigh less
+ * than the recent ones and a key which is not read anymore cools down.
+ */
+class FrequencySketch {
+    // number of rows (independent hash functions)
+    private static final int DEPTH = 4;
+    // seeds of the hash functions of the rows
+    private static final int[] SEEDS = {0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+
+    private final AtomicIntegerArray counters;
+    // mask of the index within a row (the width is a power of 2)
+    private final int mask;
+    private final long sampleSize;
+    private final AtomicLong additions = new AtomicLong();
+    // number of agings so far
+    private volatile int age = 0;
+
+    /**
+     * Create an empty sketch
+     * @param width number of counters per row (rounded up to a power of 2), about the number of distinct keys
+     */
+    FrequencySketch(int width) {
+        if (width <= 0)
+            throw new IllegalArgumentException("FrequencySketch:: Invalid width");
+        int rowWidth = Integer.highestOneBit(width) == width ? width : Integer.highestOneBit(width) << 1;
+        this.counters = new AtomicIntegerArray(DEPTH * rowWidth);
+        this.mask = rowWidth - 1;
+        this.sampleSize = 10L * rowWidth;
+    }
+
+    /**
+     * Count an access to a key
+     * @param key accessed key
+     * @return estimated frequency of the key, this access included
+     */
+    int increment(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++)
+            frequency = Math.min(frequency, counters.incrementAndGet(index(hash, row)));
+        if (additions.incrementAndGet() % sampleSize == 0)
+            halve();
+        return frequency;
+    }
+
+    /**
+     * @param key key
+     * @return estimated frequency of the key
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++)
+            frequency = Math.min(frequency, counters.get(index(hash, row)));
+        return frequency;
+    }
+
+    /**
+     * @return number of times the counters have been halved, to age the frequencies kept elsewhere
+     */
+    int getAge() {
+        return age;
+    }
+
+    // the increments made meanwhile may be halved or not, which only blurs the estimates
+    private synchronized void halve() {
+        for (int i = 0; i < counters.length(); i++)
+            counters.set(i, counters.get(i) >>> 1);
+        age++;
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+        return row * (mask + 1) + ((h ^ (h >>> 16)) & mask);
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x7feb352d;
+        hash ^= hash >>> 15;
+        return hash;
+    }
+}
@@ -0,0 +1,121 @@
+package dm;
+
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs many small transactions submitted concurrently as a group in one database transaction,
+ * so that they share a single commit (and log flush).
+ * Each work runs within its own savepoint: a failing work is rolled back alone and the others are committed.
+ * The works waiting while a group is committed form the next group.
+ */
+class GroupCommitter {
+    // maximum number of works committed together
+    static final int MAX_GROUP_SIZE = 64;
+
+    private final DB db;
+    private final BlockingQueue<PendingWork> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * A submitted work and its outcome
+     */
+    private static class PendingWork implements Callable<Void> {
+        private final Transaction.Action work;
+        private final FutureTask<Void> future = new FutureTask<>(this);
+        private MapperException failure;
+
+        private PendingWork(Transaction.Action work) {
+            this.work = work;
+        }
+
+        @Override
+        public Void call() throws MapperException {
+            if (failure != null)
+                throw failure;
+            return null;
+        }
+    }
+
+    GroupCommitter(DB db) {
+        this.db = db;
+        Thread committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, "group-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Submit a work to run in the next group
+     * @param work work using the mappers of the database
+     * @return future completed once the group is committed (or the work has failed)
+     */
+    Future<Void> submit(Transaction.Action work) {
+        PendingWork pending = new PendingWork(work);
+        queue.add(pending);
+        return pending.future;
+    }
+
+    private void commitLoop() {
+        List<PendingWork> group = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                group.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(group, MAX_GROUP_SIZE - 1);
+            commitGroup(group);
+            for (PendingWork pending : group)
+                pending.future.run();
+            group.clear();
+        }
+    }
+
+    private void commitGroup(List<PendingWork> group) {
+        Transaction transaction = null;
+        try {
+            transaction = db.begin();
+            for (PendingWork pending : group) {
+                Savepoint savepoint = transaction.getConnection().setSavepoint();
+                int mark = transaction.mark();
+                try {
+                    pending.work.run();
+                    transaction.getConnection().releaseSavepoint(savepoint);
+                } catch (MapperException | RuntimeException e) {
+                    pending.failure = e instanceof MapperException ? (MapperException) e
+                            : new MapperException("GroupCommitter:: Work failed: " + e);
+                    transaction.getConnection().rollback(savepoint);
+                    transaction.rollbackTo(mark);
+                }
+            }
+            transaction.commit();
+        } catch (SQLException | MapperException e) {
+            // an after-commit action failed: the works are committed anyway
+            if (transaction != null && transaction.isCommitted())
+                return;
+            // the whole group is lost
+            if (transaction != null && transaction.isActive()) {
+                try {
+                    transaction.rollback();
+                } catch (MapperException rollbackFailure) {
+                    // the connection is given back anyway
+                }
+            }
+            for (PendingWork pending : group) {
+                if (pending.failure == null)
+                    pending.failure = new MapperException("GroupCommitter:: Group commit failed: " + e.getMessage());
+            }
+        }
+    }
+}
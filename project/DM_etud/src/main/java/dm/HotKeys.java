@@ -0,0 +1,139 @@
+package dm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The most read keys of a mapper: the reads feed a frequency sketch, and the keys whose estimated
+ * frequency is among the capacity highest ones are pinned in the identity map.
+ * A key enters the full hot set when it becomes more frequent than its coldest key, which leaves it.
+ */
+class HotKeys {
+    private final FrequencySketch sketch;
+    private final int capacity;
+    private final Registry<Object, Object> registry;
+    // hot keys and their estimated frequency
+    private final ConcurrentHashMap<Object, Integer> hot = new ConcurrentHashMap<>();
+    // frequency a key must exceed to enter the full hot set (lower bound, checked again on admission)
+    private volatile int threshold = 0;
+    // age of the sketch when the frequencies of the hot keys were last aged
+    private int age = 0;
+
+    /**
+     * @param capacity maximum number of hot keys
+     * @param registry identity map whose hot keys are pinned
+     */
+    HotKeys(int capacity, Registry<Object, Object> registry) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("HotKeys:: Invalid capacity");
+        // about the number of distinct keys read between two agings
+        this.sketch = new FrequencySketch(Math.max(1024, 64 * capacity));
+        this.capacity = capacity;
+        this.registry = registry;
+    }
+
+    /**
+     * Count a read of a key
+     * @param key read key
+     */
+    void record(Object key) {
+        int frequency = sketch.increment(key);
+        if (sketch.getAge() != age)
+            aged();
+        if (hot.replace(key, frequency) != null)
+            return;
+        if (frequency > threshold)
+            admit(key, frequency);
+    }
+
+    /**
+     * Make a key hot with a given frequency, as if it had been read that often (e.g. at warmup)
+     * @param key key
+     * @param frequency known frequency
+     */
+    synchronized void seed(Object key, int frequency) {
+        if (hot.containsKey(key))
+            return;
+        admit(key, frequency);
+    }
+
+    /**
+     * @return the hot keys and their estimated frequency, the most frequent first
+     */
+    Map<Object, Integer> report() {
+        List<Map.Entry<Object, Integer>> entries = new ArrayList<>(hot.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Object, Integer>>() {
+            @Override
+            public int compare(Map.Entry<Object, Integer> a, Map.Entry<Object, Integer> b) {
+                return Integer.compare(b.getValue(), a.getValue());
+            }
+        });
+        Map<Object, Integer> report = new LinkedHashMap<>();
+        for (Map.Entry<Object, Integer> entry : entries)
+            report.put(entry.getKey(), entry.getValue());
+        return report;
+    }
+
+    /**
+     * @param key key
+     * @return true if the key is hot
+     */
+    boolean isHot(Object key) {
+        return hot.containsKey(key);
+    }
+
+    /**
+     * Unpin all the hot keys
+     */
+    synchronized void clear() {
+        for (Object key : hot.keySet())
+            registry.unpin(key);
+        hot.clear();
+        threshold = 0;
+    }
+
+    private synchronized void admit(Object key, int frequency) {
+        if (hot.containsKey(key))
+            return;
+        if (hot.size() >= capacity) {
+            Object coldest = coldest();
+            int coldestFrequency = hot.get(coldest);
+            if (frequency <= coldestFrequency) {
+                threshold = coldestFrequency;
+                return;
+            }
+            hot.remove(coldest);
+            registry.unpin(coldest);
+        }
+        hot.put(key, frequency);
+        registry.pin(key);
+        threshold = hot.size() >= capacity ? hot.get(coldest()) : 0;
+    }
+
+    // the counters have been halved: the frequencies of the hot keys are read again from the sketch
+    private synchronized void aged() {
+        if (sketch.getAge() == age)
+            return;
+        age = sketch.getAge();
+        for (Object key : hot.keySet())
+            hot.put(key, sketch.frequency(key));
+        threshold = hot.size() >= capacity ? hot.get(coldest()) : 0;
+    }
+
+    private Object coldest() {
+        Object coldest = null;
+        int min = Integer.MAX_VALUE;
+        for (Map.Entry<Object, Integer> entry : hot.entrySet()) {
+            if (entry.getValue() < min) {
+                coldest = entry.getKey();
+                min = entry.getValue();
+            }
+        }
+        return coldest;
+    }
+}
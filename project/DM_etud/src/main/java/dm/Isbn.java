@@ -0,0 +1,85 @@
+package dm;
+
+/**
+ * ISBN normalisation: an ISBN-10 or ISBN-13, with or without hyphens or spaces,
+ * is turned into its 13-digit value as a long (a compact key for the caches).
+ */
+public final class Isbn {
+    // value of a string which is not a valid ISBN
+    public static final long INVALID = -1;
+
+    private Isbn() {
+    }
+
+    /**
+     * @param isbn ISBN-10 or ISBN-13 (hyphens and spaces are ignored)
+     * @return the 13-digit ISBN, or INVALID if the string is not an ISBN with a valid check digit
+     */
+    public static long normalize(String isbn) {
+        if (isbn == null)
+            return INVALID;
+        long value = 0;
+        int digits = 0;
+        // last digit read, 10 for the 'X' check digit of an ISBN-10
+        int last = 0;
+        for (int i = 0; i < isbn.length(); i++) {
+            char c = isbn.charAt(i);
+            if (c == '-' || c == ' ')
+                continue;
+            if (digits == 13 || last == 10)
+                return INVALID;
+            if (c >= '0' && c <= '9') {
+                last = c - '0';
+                value = value * 10 + last;
+                digits++;
+            } else if ((c == 'X' || c == 'x') && digits == 9) {
+                last = 10;
+                digits++;
+            } else {
+                return INVALID;
+            }
+        }
+        if (digits == 13)
+            return isValid13(value) ? value : INVALID;
+        if (digits == 10)
+            return fromIsbn10(last == 10 ? value : value / 10, last);
+        return INVALID;
+    }
+
+    // ISBN-13 (EAN-13): digits weighted 1, 3, 1, ... sum to a multiple of 10
+    private static boolean isValid13(long value) {
+        if (value / 10000000000L != 978 && value / 10000000000L != 979)
+            return false;
+        int sum = 0;
+        for (int i = 0; i < 13; i++) {
+            int digit = (int) (value % 10);
+            value /= 10;
+            // from the right: the check digit has weight 1, the next one 3...
+            sum += (i % 2 == 0) ? digit : 3 * digit;
+        }
+        return sum % 10 == 0;
+    }
+
+    // ISBN-10 (9 digits and a check digit): checked, then prefixed by 978 with a new check digit
+    private static long fromIsbn10(long body, int check) {
+        // digits weighted 10, 9, ..., 2 and the check digit sum to a multiple of 11
+        int sum = check;
+        long rest = body;
+        for (int weight = 2; weight <= 10; weight++) {
+            sum += weight * (int) (rest % 10);
+            rest /= 10;
+        }
+        if (sum % 11 != 0)
+            return INVALID;
+        long prefixed = 978000000000L + body;
+        int eanSum = 0;
+        rest = prefixed;
+        for (int i = 0; i < 12; i++) {
+            int digit = (int) (rest % 10);
+            rest /= 10;
+            // from the right, without the check digit: weights 3, 1, 3...
+            eanSum += (i % 2 == 0) ? 3 * digit : digit;
+        }
+        return prefixed * 10 + (10 - eanSum % 10) % 10;
+    }
+}
@@ -0,0 +1,410 @@
+package dm;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Identity map of the books keyed by their normalised ISBN (a long), stored in primitive
+ * open-addressing tables: no key object, no map entry and no boxed load date per cached book,
+ * and a probe hashes a long instead of a String.
+ * The table is split into segments, each guarded by its own lock for the writes; the reads
+ * take no lock (see Segment).
+ * A key which is not a valid ISBN, or a second spelling of an ISBN already held by the table
+ * (e.g. with and without hyphens: the database sees two different rows), is kept in the
+ * generic map of the Registry, so the keys still behave as plain Strings.
+ */
+class IsbnRegistry extends Registry<Object, Object> {
+    // number of segments (a power of 2)
+    private static final int SEGMENTS = 64;
+    // initial number of slots of a segment (a power of 2)
+    private static final int INITIAL_CAPACITY = 16;
+    // free slot (0 is not a valid ISBN)
+    private static final long FREE = 0;
+    // lock-free reads tried before a reader takes the segment lock (writers keep changing the segment)
+    private static final int OPTIMISTIC_READS = 4;
+    // load time read for a key not held by the table
+    private static final long NOT_HELD = Long.MIN_VALUE;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    IsbnRegistry() {
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment();
+    }
+
+    /**
+     * Slots of an open-addressing table with linear probing, at most half full.
+     * Atomic arrays: a probe reads them in order with the stamp of the segment.
+     */
+    private static final class Table {
+        private final AtomicLongArray keys;
+        private final AtomicReferenceArray<Object> values;
+        private final AtomicLongArray loadTimes;
+
+        private Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            loadTimes = new AtomicLongArray(capacity);
+        }
+
+        // slot of a key, or -1 (bounded: a reader may probe a table being changed)
+        private int find(long key, int hash) {
+            int mask = keys.length() - 1;
+            int slot = hash & mask;
+            for (int probes = 0; probes < keys.length(); probes++, slot = (slot + 1) & mask) {
+                long slotKey = keys.get(slot);
+                if (slotKey == FREE)
+                    return -1;
+                if (slotKey == key)
+                    return slot;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * A table and its lock. Writers hold the monitor of the segment and make the stamp odd while
+     * they change the table (seqlock); readers take no lock: they probe the table between two reads
+     * of the stamp and retry if it changed, since an entry may have moved (deletion, resize) under them.
+     */
+    private static final class Segment {
+        private volatile int stamp = 0;
+        private volatile Table table = new Table(INITIAL_CAPACITY);
+        private int size = 0;
+
+        // the object held for a key (null if none), read without lock
+        private Object read(long key, int hash, Object id) {
+            for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+                int before = stamp;
+                if ((before & 1) != 0)
+                    continue;
+                Table current = table;
+                int slot = current.find(key, hash);
+                Object value = slot < 0 ? null : current.values.get(slot);
+                if (stamp == before)
+                    return heldFor(value, id) ? value : null;
+            }
+            synchronized (this) {
+                int slot = table.find(key, hash);
+                Object value = slot < 0 ? null : table.values.get(slot);
+                return heldFor(value, id) ? value : null;
+            }
+        }
+
+        // the load time of the object held for a key (NOT_HELD if none), read without lock
+        private long readLoadTime(long key, int hash, Object id) {
+            for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+                int before = stamp;
+                if ((before & 1) != 0)
+                    continue;
+                Table current = table;
+                int slot = current.find(key, hash);
+                Object value = slot < 0 ? null : current.values.get(slot);
+                long loadTime = slot < 0 ? NOT_HELD : current.loadTimes.get(slot);
+                if (stamp == before)
+                    return heldFor(value, id) ? loadTime : NOT_HELD;
+            }
+            synchronized (this) {
+                int slot = table.find(key, hash);
+                return slot >= 0 && heldFor(table.values.get(slot), id) ? table.loadTimes.get(slot) : NOT_HELD;
+            }
+        }
+
+        // the writes below are made holding the monitor
+
+        private Object value(int slot) {
+            return table.values.get(slot);
+        }
+
+        private void set(int slot, Object value, long loadTime) {
+            stamp++;
+            try {
+                table.values.set(slot, value);
+                table.loadTimes.set(slot, loadTime);
+            } finally {
+                stamp++;
+            }
+        }
+
+        private void insert(long key, int hash, Object value, long loadTime) {
+            stamp++;
+            try {
+                if (2 * (size + 1) > table.keys.length())
+                    resize();
+                put(table, key, hash, value, loadTime);
+                size++;
+            } finally {
+                stamp++;
+            }
+        }
+
+        // backward shift deletion: the following entries of the cluster move up, no tombstone is left
+        private void delete(int slot) {
+            stamp++;
+            try {
+                AtomicLongArray keys = table.keys;
+                int mask = keys.length() - 1;
+                int free = slot;
+                for (int next = (free + 1) & mask; keys.get(next) != FREE; next = (next + 1) & mask) {
+                    int home = hash(keys.get(next)) & mask;
+                    // the entry may move to the free slot if its home is not between the free slot and itself
+                    if (((next - home) & mask) >= ((next - free) & mask)) {
+                        keys.set(free, keys.get(next));
+                        table.values.set(free, table.values.get(next));
+                        table.loadTimes.set(free, table.loadTimes.get(next));
+                        free = next;
+                    }
+                }
+                keys.set(free, FREE);
+                table.values.set(free, null);
+                size--;
+            } finally {
+                stamp++;
+            }
+        }
+
+        private void resize() {
+            Table old = table;
+            Table resized = new Table(old.keys.length() * 2);
+            for (int i = 0; i < old.keys.length(); i++) {
+                long key = old.keys.get(i);
+                if (key != FREE)
+                    put(resized, key, hash(key), old.values.get(i), old.loadTimes.get(i));
+            }
+            table = resized;
+        }
+
+        private void clear() {
+            stamp++;
+            try {
+                table = new Table(INITIAL_CAPACITY);
+                size = 0;
+            } finally {
+                stamp++;
+            }
+        }
+
+        private static void put(Table table, long key, int hash, Object value, long loadTime) {
+            int mask = table.keys.length() - 1;
+            int slot = hash & mask;
+            while (table.keys.get(slot) != FREE)
+                slot = (slot + 1) & mask;
+            table.values.set(slot, value);
+            table.loadTimes.set(slot, loadTime);
+            table.keys.set(slot, key);
+        }
+    }
+
+    // normalised ISBN of a key, or Isbn.INVALID
+    private static long isbnOf(Object key) {
+        return key instanceof String ? Isbn.normalize((String) key) : Isbn.INVALID;
+    }
+
+    // true if the object held in a slot has been cached under this very key
+    private static boolean heldFor(Object value, Object key) {
+        return value instanceof DomainObject && key.equals(((DomainObject) value).getId());
+    }
+
+    // MurmurHash3 finalizer
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb93fe53ec4ebL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private Segment segmentFor(int hash) {
+        // the high bits choose the segment, the low bits the slot
+        return segments[hash >>> 26];
+    }
+
+    @Override
+    public Object getObject(Object key) {
+        long isbn = isbnOf(key);
+        if (isbn == Isbn.INVALID)
+            return super.getObject(key);
+        int hash = hash(isbn);
+        Object value = segmentFor(hash).read(isbn, hash, key);
+        if (value != null)
+            return value;
+        // another spelling of the ISBN (rare)
+        return objectMap.isEmpty() ? null : super.getObject(key);
+    }
+
+    @Override
+    public boolean containsObject(Object key) {
+        return getObject(key) != null;
+    }
+
+    @Override
+    public void addObject(Object key, Object obj) {
+        long isbn = isbnOf(key);
+        if (isbn == Isbn.INVALID || !heldFor(obj, key)) {
+            super.addObject(key, obj);
+            return;
+        }
+        int hash = hash(isbn);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.table.find(isbn, hash);
+            if (slot >= 0 && heldFor(segment.value(slot), key)) {
+                segment.set(slot, obj, System.nanoTime());
+            } else if (slot >= 0 || super.containsObject(key)) {
+                // the slot is held by another spelling, or this key already lives in the generic map
+                super.addObject(key, obj);
+            } else {
+                segment.insert(isbn, hash, obj, System.nanoTime());
+            }
+        }
+    }
+
+    @Override
+    public Object addObjectIfAbsent(Object key, Object obj) {
+        long isbn = isbnOf(key);
+        if (isbn == Isbn.INVALID || !heldFor(obj, key))
+            return super.addObjectIfAbsent(key, obj);
+        int hash = hash(isbn);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.table.find(isbn, hash);
+            if (slot >= 0 && heldFor(segment.value(slot), key))
+                return segment.value(slot);
+            if (slot >= 0 || super.containsObject(key))
+                return super.addObjectIfAbsent(key, obj);
+            segment.insert(isbn, hash, obj, System.nanoTime());
+            return null;
+        }
+    }
+
+    @Override
+    public boolean replaceObject(Object key, Object expected, Object obj) {
+        long isbn = isbnOf(key);
+        if (isbn == Isbn.INVALID)
+            return super.replaceObject(key, expected, obj);
+        int hash = hash(isbn);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.table.find(isbn, hash);
+            if (slot >= 0 && heldFor(segment.value(slot), key)) {
+                if (segment.value(slot) != expected)
+                    return false;
+                if (!heldFor(obj, key)) {
+                    // cannot be held in the slot anymore
+                    segment.delete(slot);
+                    super.addObject(key, obj);
+                    return true;
+                }
+                segment.set(slot, obj, System.nanoTime());
+                return true;
+            }
+            return super.replaceObject(key, expected, obj);
+        }
+    }
+
+    @Override
+    public void removeObject(Object key) {
+        long isbn = isbnOf(key);
+        if (isbn == Isbn.INVALID) {
+            super.removeObject(key);
+            return;
+        }
+        int hash = hash(isbn);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.table.find(isbn, hash);
+            if (slot >= 0 && heldFor(segment.value(slot), key))
+                segment.delete(slot);
+            else
+                super.removeObject(key);
+        }
+    }
+
+    @Override
+    public void removeObject(Object key, Object expected) {
+        long isbn = isbnOf(key);
+        if (isbn == Isbn.INVALID) {
+            super.removeObject(key, expected);
+            return;
+        }
+        int hash = hash(isbn);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.table.find(isbn, hash);
+            if (slot >= 0 && heldFor(segment.value(slot), key)) {
+                if (segment.value(slot) == expected)
+                    segment.delete(slot);
+            } else {
+                super.removeObject(key, expected);
+            }
+        }
+    }
+
+    @Override
+    public void removeAll() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+        super.removeAll();
+    }
+
+    @Override
+    public Freshness getFreshness(Object key) {
+        long isbn = isbnOf(key);
+        if (isbn == Isbn.INVALID)
+            return super.getFreshness(key);
+        int hash = hash(isbn);
+        long loadTime = segmentFor(hash).readLoadTime(isbn, hash, key);
+        if (loadTime == NOT_HELD)
+            return super.getFreshness(key);
+        return freshness(loadTime);
+    }
+
+    @Override
+    public List<Object> objects() {
+        List<Object> objects = super.objects();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                AtomicReferenceArray<Object> values = segment.table.values;
+                for (int i = 0; i < values.length(); i++) {
+                    Object value = values.get(i);
+                    if (value != null)
+                        objects.add(value);
+                }
+            }
+        }
+        return objects;
+    }
+
+    @Override
+    public long estimateOverhead() {
+        long overhead = super.estimateOverhead();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                int capacity = segment.table.keys.length();
+                // keys and load dates as longs, values as references, and the atomic arrays holding them
+                overhead += 2 * MemoryEstimator.align(MemoryEstimator.ARRAY_HEADER + 8L * capacity)
+                        + MemoryEstimator.align(MemoryEstimator.ARRAY_HEADER + (long) MemoryEstimator.REFERENCE * capacity)
+                        + 4 * MemoryEstimator.align(MemoryEstimator.OBJECT_HEADER + MemoryEstimator.REFERENCE);
+            }
+        }
+        return overhead;
+    }
+
+    /**
+     * @return number of cached objects
+     */
+    public int size() {
+        int size = objectMap.size();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,170 @@
+package dm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over object identifiers.
+ * It answers "definitely not present" or "maybe present" for a key with a small
+ * and fixed memory footprint (one bit per position, 64 positions per long).
+ * Reads take no lock: the bits are only ever set, with compare-and-set.
+ * A key cannot be removed (it could be a false positive sharing its bits with other keys,
+ * clearing them would create false negatives): deleted keys are counted instead, and the
+ * filter asks to be rebuilt once it holds too many keys or too many deleted ones.
+ * While it is rebuilt, the keys added to it are also added to its successor.
+ */
+public class KeyFilter {
+    // share of deleted keys above which the false positive rate is no longer the wanted one
+    private static final double MAX_DELETED_SHARE = 0.25;
+
+    private final AtomicLongArray bits;
+    private final int size;
+    private final int hashCount;
+    private final int expectedKeys;
+    private final AtomicInteger keyCount = new AtomicInteger();
+    private final AtomicInteger deletedCount = new AtomicInteger();
+    // filter being built to replace this one (null if none)
+    private volatile KeyFilter successor;
+
+    /**
+     * Create a filter sized for an expected number of keys
+     * @param expectedKeys expected number of keys
+     * @param falsePositiveRate wanted false positive probability (e.g. 0.01)
+     */
+    public KeyFilter(int expectedKeys, double falsePositiveRate) {
+        if (expectedKeys <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("KeyFilter:: Invalid sizing parameters");
+        // optimal number of bits and of hash functions for a Bloom filter
+        long optimalSize = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.size = (int) Math.max(Long.SIZE, Math.min(optimalSize, Integer.MAX_VALUE / 2));
+        this.hashCount = Math.max(1, (int) Math.round((double) size / expectedKeys * Math.log(2)));
+        this.expectedKeys = expectedKeys;
+        this.bits = new AtomicLongArray((size + Long.SIZE - 1) / Long.SIZE);
+    }
+
+    /**
+     * Add a key to the filter (adding a key twice is harmless)
+     * @param key key to add
+     */
+    public void add(Object key) {
+        int h1 = hash1(key);
+        int h2 = hash2(h1);
+        for (int i = 0; i < hashCount; i++)
+            set(index(h1, h2, i));
+        keyCount.incrementAndGet();
+        KeyFilter next = successor;
+        if (next != null)
+            next.add(key);
+    }
+
+    /**
+     * Record the deletion of a key: the key is left in the filter (a false positive is harmless)
+     * and counted as deleted, see needsRebuild
+     */
+    public void deleted() {
+        deletedCount.incrementAndGet();
+    }
+
+    /**
+     * Check if a key may be present
+     * @param key key to check
+     * @return false if the key is definitely absent, true if it may be present
+     */
+    public boolean mightContain(Object key) {
+        int h1 = hash1(key);
+        int h2 = hash2(h1);
+        for (int i = 0; i < hashCount; i++) {
+            if (!get(index(h1, h2, i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remove all the keys
+     */
+    public void clear() {
+        for (int i = 0; i < bits.length(); i++)
+            bits.set(i, 0L);
+        keyCount.set(0);
+        deletedCount.set(0);
+    }
+
+    /**
+     * @return true if the filter holds more keys than it was sized for, or too many deleted keys:
+     * its false positive rate is then higher than the wanted one
+     */
+    public boolean needsRebuild() {
+        int keys = keyCount.get();
+        return keys > expectedKeys || deletedCount.get() > keys * MAX_DELETED_SHARE;
+    }
+
+    /**
+     * Start building the filter replacing this one: the keys added to this filter from now on
+     * are also added to the successor, which must then be filled with all the existing keys
+     * @param next filter being built
+     */
+    public void rebuildInto(KeyFilter next) {
+        successor = next;
+    }
+
+    /**
+     * @return number of keys added (a key added twice is counted twice)
+     */
+    public int getKeyCount() {
+        return keyCount.get();
+    }
+
+    /**
+     * @return number of keys deleted since the filter was built
+     */
+    public int getDeletedCount() {
+        return deletedCount.get();
+    }
+
+    /**
+     * @return memory used by the bits in bytes
+     */
+    public long getMemoryFootprint() {
+        return (long) bits.length() * (Long.SIZE / Byte.SIZE);
+    }
+
+    // double hashing: the i-th position is h1 + i * h2
+    private int index(int h1, int h2, int i) {
+        return ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+    }
+
+    private boolean get(int index) {
+        return (bits.get(index / Long.SIZE) & (1L << (index % Long.SIZE))) != 0;
+    }
+
+    private void set(int index) {
+        int word = index / Long.SIZE;
+        long mask = 1L << (index % Long.SIZE);
+        long value;
+        do {
+            value = bits.get(word);
+            if ((value & mask) != 0)
+                return;
+        } while (!bits.compareAndSet(word, value, value | mask));
+    }
+
+    private static int hash1(Object key) {
+        return mix(key.hashCode());
+    }
+
+    private static int hash2(int h1) {
+        // an odd second hash visits different positions for every i
+        return mix(h1 ^ 0x9E3779B9) | 1;
+    }
+
+    // MurmurHash3 finalizer, spreads the bits of String.hashCode()
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,14 @@
+package dm;
+
+/**
+ * Loads the missing fields of a partially loaded domain object (ghost or lazy column group)
+ */
+public interface LazyLoader {
+    /**
+     * Load fields of a domain object
+     * @param subject partially loaded domain object
+     * @param group name of the lazy column group to load, null to load a ghost
+     * @throws MapperException if something goes wrong...
+     */
+    void loadLazy(DomainObject subject, String group) throws MapperException;
+}
@@ -8,4 +8,13 @@ public class MapperException extends Exception {
     public MapperException(String message) {
         super(message);
     }
+
+    /**
+     * Report a problem caused by a database failure, kept as the cause (e.g. a constraint violation)
+     * @param message description of the problem
+     * @param cause database failure
+     */
+    public MapperException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
@@ -0,0 +1,39 @@
+package dm;
+
+/**
+ * Rough estimate of the heap used by cached objects, assuming a 64-bit JVM with compressed
+ * references (12-byte object headers, 4-byte references, objects aligned on 8 bytes)
+ * and strings backed by a char array.
+ */
+final class MemoryEstimator {
+    static final int OBJECT_HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
+    // String object: header, array reference and hash
+    static final int STRING_SHALLOW = 24;
+    // boxed Integer or Float
+    static final int BOXED = 16;
+
+    private MemoryEstimator() {
+    }
+
+    static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * @param fieldBytes total size of the fields
+     * @return size of an object with these fields
+     */
+    static long object(long fieldBytes) {
+        return align(OBJECT_HEADER + fieldBytes);
+    }
+
+    static long string(String value) {
+        return value == null ? 0 : STRING_SHALLOW + align(ARRAY_HEADER + 2L * value.length());
+    }
+
+    static long bytes(byte[] value) {
+        return value == null ? 0 : align(ARRAY_HEADER + value.length);
+    }
+}
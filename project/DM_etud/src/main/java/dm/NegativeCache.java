@@ -0,0 +1,119 @@
+package dm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the identifiers that were not found in the database.
+ * A lookup for a key recorded here can be answered without any query
+ * as long as the entry is younger than the time to live.
+ * The cache is bounded: when it is full the least recently used entry is dropped.
+ * A miss is only recorded if its key was not invalidated since the lookup started (see version),
+ * so that an insert committed while the lookup ran is not hidden by it.
+ * @param <K> key type
+ */
+public class NegativeCache<K> {
+    // default maximum number of remembered misses
+    public static final int DEFAULT_CAPACITY = 10000;
+    // default time to live of a miss (in milliseconds)
+    public static final long DEFAULT_TTL_MILLIS = 30000;
+
+    private final int capacity;
+    private final long ttlNanos;
+    // key -> expiration date (System.nanoTime based), kept in access order for LRU eviction
+    private final LinkedHashMap<K, Long> misses;
+    // number of stripes of the keys
+    private static final int STRIPES = 1024;
+    // incremented by each invalidation
+    private long version = 0;
+    // version of the last clear and of the last invalidation of each stripe
+    private long clearedAt = 0;
+    private final long[] stamps = new long[STRIPES];
+
+    public NegativeCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Create a negative cache
+     * @param capacity maximum number of remembered misses
+     * @param ttlMillis time to live of a miss in milliseconds
+     */
+    public NegativeCache(final int capacity, long ttlMillis) {
+        if (capacity <= 0 || ttlMillis <= 0)
+            throw new IllegalArgumentException("NegativeCache:: capacity and ttl must be positive");
+        this.capacity = capacity;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.misses = new LinkedHashMap<K, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Long> eldest) {
+                return size() > NegativeCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return current version, to give back to addMiss
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Record that a key does not exist in the database, unless it was invalidated since it was looked up
+     * @param key missing key
+     * @param readVersion version read before running the lookup
+     */
+    public synchronized void addMiss(K key, long readVersion) {
+        if (clearedAt > readVersion || stamps[stripe(key)] > readVersion)
+            return;
+        this.misses.put(key, System.nanoTime() + ttlNanos);
+    }
+
+    /**
+     * Check if a key is known to be missing
+     * @param key key to check
+     * @return true if the key was recorded as missing and the record has not expired
+     */
+    public synchronized boolean isMissing(K key) {
+        Long expiration = this.misses.get(key);
+        if (expiration == null)
+            return false;
+        // the record is too old, the key may exist by now
+        if (System.nanoTime() - expiration >= 0) {
+            this.misses.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forget a key (called when an object with this key is inserted)
+     * @param key key to forget
+     */
+    public synchronized void invalidate(K key) {
+        stamps[stripe(key)] = ++version;
+        this.misses.remove(key);
+    }
+
+    /**
+     * Forget all the recorded misses
+     */
+    public synchronized void clear() {
+        clearedAt = ++version;
+        this.misses.clear();
+    }
+
+    public synchronized int size() {
+        return this.misses.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private static int stripe(Object key) {
+        return key == null ? 0 : (key.hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+}
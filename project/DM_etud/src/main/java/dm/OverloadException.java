@@ -0,0 +1,11 @@
+package dm;
+
+/**
+ * Exception thrown when a call to the database is rejected because the database is overloaded
+ * (see ConcurrencyLimiter): nothing has been done, the call may be retried later.
+ */
+public class OverloadException extends MapperException {
+    public OverloadException(String message) {
+        super(message);
+    }
+}
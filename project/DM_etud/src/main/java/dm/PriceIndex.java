@@ -0,0 +1,279 @@
+package dm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of the book prices, for price range and cheapest books queries.
+ * Prices are kept in sorted primitive arrays (price then isbn order), one over all the books
+ * and one per author, updated incrementally by the mapper writes.
+ * The index is cold until its initial load is done: writes made during the load win over the loaded rows.
+ */
+public class PriceIndex {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final SortedPrices all = new SortedPrices();
+    private final Map<String, SortedPrices> byAuthor = new HashMap<>();
+    // isbn -> indexed entry, to find it again on update and delete
+    private final Map<String, Entry> entries = new HashMap<>();
+    // isbns written during the initial load (null once loaded)
+    private Set<String> written = new HashSet<>();
+    // true if all the books were deleted during the initial load
+    private boolean loadCleared = false;
+
+    private static class Entry {
+        private final String author;
+        private final float price;
+
+        private Entry(String author, float price) {
+            this.author = author;
+            this.price = price;
+        }
+    }
+
+    /**
+     * Parallel arrays of prices and isbns sorted by price then isbn
+     */
+    private static class SortedPrices {
+        private float[] prices = new float[16];
+        private String[] isbns = new String[16];
+        private int size;
+
+        void add(float price, String isbn) {
+            int pos = search(price, isbn);
+            if (pos >= 0)
+                return;
+            pos = -pos - 1;
+            if (size == prices.length) {
+                prices = Arrays.copyOf(prices, size * 2);
+                isbns = Arrays.copyOf(isbns, size * 2);
+            }
+            System.arraycopy(prices, pos, prices, pos + 1, size - pos);
+            System.arraycopy(isbns, pos, isbns, pos + 1, size - pos);
+            prices[pos] = price;
+            isbns[pos] = isbn;
+            size++;
+        }
+
+        void remove(float price, String isbn) {
+            int pos = search(price, isbn);
+            if (pos < 0)
+                return;
+            System.arraycopy(prices, pos + 1, prices, pos, size - pos - 1);
+            System.arraycopy(isbns, pos + 1, isbns, pos, size - pos - 1);
+            isbns[--size] = null;
+        }
+
+        // position of the first entry with a price >= the given price
+        int lowerBound(float price) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (Float.compare(prices[mid], price) < 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        // binary search of an entry, returns (-insertion point - 1) if absent
+        private int search(float price, String isbn) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = Float.compare(prices[mid], price);
+                if (cmp == 0)
+                    cmp = isbns[mid].compareTo(isbn);
+                if (cmp < 0)
+                    low = mid + 1;
+                else if (cmp > 0)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -(low + 1);
+        }
+    }
+
+    /**
+     * @return true once the initial load is done
+     */
+    public boolean isReady() {
+        lock.readLock().lock();
+        try {
+            return written == null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add a row read by the initial load, unless the book was written meanwhile
+     * @param isbn book isbn
+     * @param author book author
+     * @param price book price
+     */
+    public void load(String isbn, String author, float price) {
+        lock.writeLock().lock();
+        try {
+            if (written != null && !loadCleared && !written.contains(isbn))
+                index(isbn, author, price);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * End the initial load: the index can answer the queries
+     */
+    public void loaded() {
+        lock.writeLock().lock();
+        try {
+            written = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Index a new or updated book
+     * @param isbn book isbn
+     * @param author book author
+     * @param price book price
+     */
+    public void put(String isbn, String author, float price) {
+        lock.writeLock().lock();
+        try {
+            if (written != null)
+                written.add(isbn);
+            index(isbn, author, price);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a deleted book
+     * @param isbn book isbn
+     */
+    public void remove(String isbn) {
+        lock.writeLock().lock();
+        try {
+            if (written != null)
+                written.add(isbn);
+            unindex(isbn);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param isbn book isbn
+     * @return the indexed author and price of a book, as a book without title (null if it is not indexed)
+     */
+    public Book find(String isbn) {
+        lock.readLock().lock();
+        try {
+            Entry entry = entries.get(isbn);
+            return entry == null ? null : new Book(isbn, null, entry.author, entry.price);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all the books
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            // the rows still to be loaded are deleted too
+            if (written != null)
+                loadCleared = true;
+            all.size = 0;
+            Arrays.fill(all.isbns, null);
+            byAuthor.clear();
+            entries.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the books in a price range
+     * @param minPrice minimum price (included)
+     * @param maxPrice maximum price (included)
+     * @param limit maximum number of books
+     * @return isbns of the books, by increasing price
+     */
+    public List<String> findByPriceRange(float minPrice, float maxPrice, int limit) {
+        lock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>();
+            for (int pos = all.lowerBound(minPrice); pos < all.size && result.size() < limit; pos++) {
+                if (Float.compare(all.prices[pos], maxPrice) > 0)
+                    break;
+                result.add(all.isbns[pos]);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the cheapest books of an author
+     * @param author author name
+     * @param count maximum number of books
+     * @return isbns of the books, by increasing price
+     */
+    public List<String> findCheapestByAuthor(String author, int count) {
+        lock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>();
+            SortedPrices prices = byAuthor.get(author);
+            if (prices != null) {
+                for (int pos = 0; pos < prices.size && result.size() < count; pos++)
+                    result.add(prices.isbns[pos]);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void index(String isbn, String author, float price) {
+        unindex(isbn);
+        entries.put(isbn, new Entry(author, price));
+        all.add(price, isbn);
+        if (author != null) {
+            SortedPrices prices = byAuthor.get(author);
+            if (prices == null) {
+                prices = new SortedPrices();
+                byAuthor.put(author, prices);
+            }
+            prices.add(price, isbn);
+        }
+    }
+
+    private void unindex(String isbn) {
+        Entry entry = entries.remove(isbn);
+        if (entry == null)
+            return;
+        all.remove(entry.price, isbn);
+        if (entry.author != null) {
+            SortedPrices prices = byAuthor.get(entry.author);
+            prices.remove(entry.price, isbn);
+            if (prices.size == 0)
+                byAuthor.remove(entry.author);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package dm;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Read-only aggregate of book prices: count, sum, minimum and maximum.
+ * Partial aggregates (e.g. one per shard) are combined with merge, and the
+ * aggregate of a set of books can be updated when a book is added or removed.
+ */
+public final class PriceStats {
+    public static final PriceStats EMPTY = new PriceStats(0, 0, 0f, 0f);
+
+    // builds the aggregate from a row of (COUNT, SUM, MIN, MAX) starting at a column
+    static PriceStats fromRow(ResultSet rs, int firstColumn) throws SQLException {
+        long count = rs.getLong(firstColumn);
+        if (count == 0)
+            return EMPTY;
+        return new PriceStats(count, rs.getDouble(firstColumn + 1), rs.getFloat(firstColumn + 2), rs.getFloat(firstColumn + 3));
+    }
+
+    private final long count;
+    private final double sum;
+    private final float min;
+    private final float max;
+
+    public PriceStats(long count, double sum, float min, float max) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public double getAverage() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param other aggregate of other books
+     * @return aggregate of the books of both aggregates
+     */
+    public PriceStats merge(PriceStats other) {
+        if (other.count == 0)
+            return this;
+        if (count == 0)
+            return other;
+        return new PriceStats(count + other.count, sum + other.sum, Math.min(min, other.min), Math.max(max, other.max));
+    }
+
+    /**
+     * @param price price of an added book
+     * @return aggregate including this book
+     */
+    public PriceStats plus(float price) {
+        return merge(new PriceStats(1, price, price, price));
+    }
+
+    /**
+     * @param price price of a removed book
+     * @return aggregate without this book, or null if it cannot be computed
+     * (the removed price was the minimum or the maximum of other books)
+     */
+    public PriceStats minus(float price) {
+        if (count <= 1)
+            return EMPTY;
+        if (Float.compare(price, min) <= 0 || Float.compare(price, max) >= 0)
+            return null;
+        return new PriceStats(count - 1, sum - price, min, max);
+    }
+
+    @Override
+    public String toString() {
+        return "PriceStats{" +
+                "count=" + count +
+                ", sum=" + sum +
+                ", min=" + min +
+                ", max=" + max +
+                '}';
+    }
+}
@@ -0,0 +1,19 @@
+package dm;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Builds a lightweight value (DTO) from the current row of a SQL result set,
+ * without going through the domain objects and the cache
+ * @param <T> type of the projected values
+ */
+public interface Projection<T> {
+    /**
+     * Build a value from the current row
+     * @param rs SQL result set positioned on a row
+     * @return projected value
+     * @throws SQLException if a column cannot be read
+     */
+    T map(ResultSet rs) throws SQLException;
+}
@@ -0,0 +1,47 @@
+package dm;
+
+/**
+ * Domain class representing a publisher, referenced by the PUBLISHER_ID column of the books
+ */
+public class Publisher implements DomainObject {
+    // Variables
+    private Integer id;
+    private String name;
+
+    // Constructor
+    public Publisher(Integer id, String name) throws IllegalArgumentException {
+        if (id == null)
+            throw new IllegalArgumentException("Cannot use null ID");
+        this.id = id;
+        this.name = name;
+    }
+
+    // Accessors
+    @Override
+    public Object getId() {
+        return id;
+    }
+
+    @Override
+    public void setId(Object p_id) throws IllegalArgumentException {
+        if (p_id == null)
+            throw new IllegalArgumentException("Cannot use null ID");
+        this.id = (Integer) p_id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return "Publisher{" +
+                "id=" + id +
+                ", name='" + name + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,140 @@
+package dm;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the publishers to the PUBLISHER table, on the database of a book mapper
+ */
+public class PublisherMapper extends AbstractMapper {
+
+    // Constructor: created by the book mapper, see BookMapper.publishers()
+    PublisherMapper(BookMapper bookMapper) {
+        super(bookMapper);
+    }
+
+    // AbstractMapper inherited methods override
+    @Override
+    protected String insertStatement() {
+        return "INSERT INTO PUBLISHER (id, name) VALUES (?, ?)";
+    }
+
+    @Override
+    protected String findStatement() {
+        return "SELECT id, name FROM PUBLISHER WHERE id = ?";
+    }
+
+    @Override
+    protected String updateStatement() {
+        return "UPDATE PUBLISHER SET id=?, name=? WHERE id=?";
+    }
+
+    @Override
+    protected String deleteStatement() {
+        return "DELETE FROM PUBLISHER WHERE id=?";
+    }
+
+    @Override
+    protected String deleteAllStatement() {
+        return "DELETE FROM PUBLISHER WHERE 1=1";
+    }
+
+    @Override
+    protected String findByIdsStatement(int idCount) {
+        return "SELECT id, name FROM PUBLISHER WHERE id IN (" + placeholders(idCount) + ")";
+    }
+
+    @Override
+    protected String keyScanStatement() {
+        return "SELECT id FROM PUBLISHER";
+    }
+
+    @Override
+    protected String countStatement() {
+        return "SELECT COUNT(*) FROM PUBLISHER";
+    }
+
+    @Override
+    protected String lazyGroupStatement(String group) {
+        return null;
+    }
+
+    @Override
+    protected void doLoadGroup(DomainObject subject, String group, ResultSet rs) throws MapperException {
+        throw new MapperException("PublisherMapper:: Unknown lazy group " + group);
+    }
+
+    @Override
+    protected void doInsert(DomainObject subject, PreparedStatement ps) throws MapperException {
+        try {
+            ps.setInt(1, (Integer) subject.getId());
+            ps.setString(2, ((Publisher) subject).getName());
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        }
+    }
+
+    @Override
+    protected DomainObject doLoad(ResultSet rs) throws MapperException {
+        return doLoadJoined(rs, 1);
+    }
+
+    @Override
+    protected DomainObject doLoadJoined(ResultSet rs, int firstColumn) throws MapperException {
+        try {
+            return new Publisher(rs.getInt(firstColumn), rs.getString(firstColumn + 1));
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        }
+    }
+
+    @Override
+    protected void doUpdate(DomainObject subject, PreparedStatement ps) throws MapperException {
+        try {
+            ps.setInt(1, (Integer) subject.getId());
+            ps.setString(2, ((Publisher) subject).getName());
+            ps.setInt(3, (Integer) subject.getId());
+        } catch (SQLException e) {
+            throw new MapperException(e.getMessage());
+        }
+    }
+
+    // Operations on the publishers
+
+    public Integer insert(Publisher publisher) throws MapperException {
+        return (Integer) super.abstractInsert(publisher);
+    }
+
+    public Publisher find(int id) throws MapperException {
+        return (Publisher) super.abstractFind(id);
+    }
+
+    /**
+     * Find several publishers with one query per batch of ids, reusing the cached ones
+     * @param ids publisher ids
+     * @return the found publishers by id (missing ids are absent from the map)
+     * @throws MapperException if something goes wrong...
+     */
+    public Map<Integer, Publisher> findAll(List<Integer> ids) throws MapperException {
+        Map<Integer, Publisher> publishers = new HashMap<>();
+        for (DomainObject publisher : super.abstractFindOrdered(ids))
+            publishers.put((Integer) publisher.getId(), (Publisher) publisher);
+        return publishers;
+    }
+
+    public void update(Publisher publisher) throws MapperException {
+        super.abstractUpdate(publisher);
+    }
+
+    public void delete(Publisher publisher) throws MapperException {
+        super.abstractDelete(publisher);
+    }
+
+    public void deleteAll() throws MapperException {
+        super.abstractDeleteAll();
+    }
+}
@@ -0,0 +1,207 @@
+package dm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of query results: the ids of the objects returned by a (SQL pattern, parameter) query,
+ * the objects themselves stay in the Registry.
+ * A result is invalidated when one of its objects is written (the object may not match anymore)
+ * or when an object matching its parameter is written (the object may have to be added).
+ * The cache is bounded by a number of queries and a total number of cached ids (least recently used first out).
+ * A result read while one of its objects or its parameter is invalidated is not cached: each invalidation
+ * stamps the stripe of its id or of its parameter with the cache version, so a write only keeps the results
+ * it may change from being cached.
+ */
+public class QueryCache {
+    public static final int DEFAULT_MAX_QUERIES = 1000;
+    public static final int DEFAULT_MAX_IDS = 100000;
+    // number of stripes of the ids and of the parameters
+    private static final int STRIPES = 1024;
+
+    private final int maxQueries;
+    private final int maxIds;
+    private int idCount = 0;
+    private long version = 0;
+    // version of the last clear and of the last invalidation of each stripe
+    private long clearedAt = 0;
+    private final long[] idStamps = new long[STRIPES];
+    private final long[] criterionStamps = new long[STRIPES];
+    // query -> ids, in access order
+    private final LinkedHashMap<Query, List<Object>> results = new LinkedHashMap<>(16, 0.75f, true);
+    // reverse indexes: id -> queries returning it, parameter -> queries using it
+    private final Map<Object, Set<Query>> queriesById = new HashMap<>();
+    private final Map<Object, Set<Query>> queriesByCriterion = new HashMap<>();
+
+    /**
+     * A query: SQL pattern and parameter
+     */
+    private static final class Query {
+        private final String pattern;
+        private final Object criterion;
+
+        private Query(String pattern, Object criterion) {
+            this.pattern = pattern;
+            this.criterion = criterion;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Query))
+                return false;
+            Query other = (Query) o;
+            return pattern.equals(other.pattern)
+                    && (criterion == null ? other.criterion == null : criterion.equals(other.criterion));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * pattern.hashCode() + (criterion == null ? 0 : criterion.hashCode());
+        }
+    }
+
+    public QueryCache() {
+        this(DEFAULT_MAX_QUERIES, DEFAULT_MAX_IDS);
+    }
+
+    public QueryCache(int maxQueries, int maxIds) {
+        if (maxQueries <= 0 || maxIds <= 0)
+            throw new IllegalArgumentException("QueryCache:: Invalid bounds");
+        this.maxQueries = maxQueries;
+        this.maxIds = maxIds;
+    }
+
+    /**
+     * @return current version, to give back to put
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * @param pattern SQL pattern
+     * @param criterion query parameter
+     * @return ids of the cached result, or null if not cached
+     */
+    public synchronized List<Object> get(String pattern, Object criterion) {
+        return results.get(new Query(pattern, criterion));
+    }
+
+    /**
+     * Cache a result unless its parameter or one of its ids was invalidated since it was read
+     * @param pattern SQL pattern
+     * @param criterion query parameter
+     * @param ids ids of the result
+     * @param readVersion version read before running the query
+     */
+    public synchronized void put(String pattern, Object criterion, Collection<?> ids, long readVersion) {
+        if (ids.size() > maxIds || invalidatedSince(criterion, ids, readVersion))
+            return;
+        Query query = new Query(pattern, criterion);
+        remove(query);
+        List<Object> cached = Collections.unmodifiableList(new ArrayList<Object>(ids));
+        results.put(query, cached);
+        idCount += cached.size();
+        for (Object id : cached)
+            index(queriesById, id, query);
+        index(queriesByCriterion, criterion, query);
+
+        // evict the least recently used results
+        while (results.size() > maxQueries || idCount > maxIds)
+            remove(results.keySet().iterator().next());
+    }
+
+    /**
+     * Invalidate the results holding an object (the object is written)
+     * @param id object id
+     */
+    public synchronized void invalidateId(Object id) {
+        idStamps[stripe(id)] = ++version;
+        Set<Query> queries = queriesById.get(id);
+        if (queries != null) {
+            for (Query query : new ArrayList<>(queries))
+                remove(query);
+        }
+    }
+
+    /**
+     * Invalidate the results of the queries with a parameter (an object matching it is written)
+     * @param criterion query parameter
+     */
+    public synchronized void invalidateCriterion(Object criterion) {
+        criterionStamps[stripe(criterion)] = ++version;
+        Set<Query> queries = queriesByCriterion.get(criterion);
+        if (queries != null) {
+            for (Query query : new ArrayList<>(queries))
+                remove(query);
+        }
+    }
+
+    /**
+     * Invalidate all the results
+     */
+    public synchronized void clear() {
+        clearedAt = ++version;
+        results.clear();
+        queriesById.clear();
+        queriesByCriterion.clear();
+        idCount = 0;
+    }
+
+    public synchronized int size() {
+        return results.size();
+    }
+
+    // a result read before an invalidation of its parameter or of one of its ids may be stale
+    private boolean invalidatedSince(Object criterion, Collection<?> ids, long readVersion) {
+        if (clearedAt > readVersion || criterionStamps[stripe(criterion)] > readVersion)
+            return true;
+        for (Object id : ids) {
+            if (idStamps[stripe(id)] > readVersion)
+                return true;
+        }
+        return false;
+    }
+
+    private static int stripe(Object key) {
+        return key == null ? 0 : (key.hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+
+    private void remove(Query query) {
+        List<Object> ids = results.remove(query);
+        if (ids != null)
+            unindex(query, ids);
+    }
+
+    private void unindex(Query query, List<Object> ids) {
+        idCount -= ids.size();
+        for (Object id : ids)
+            unindex(queriesById, id, query);
+        unindex(queriesByCriterion, query.criterion, query);
+    }
+
+    private static void index(Map<Object, Set<Query>> index, Object key, Query query) {
+        Set<Query> queries = index.get(key);
+        if (queries == null) {
+            queries = new HashSet<>();
+            index.put(key, queries);
+        }
+        queries.add(query);
+    }
+
+    private static void unindex(Map<Object, Set<Query>> index, Object key, Query query) {
+        Set<Query> queries = index.get(key);
+        if (queries != null) {
+            queries.remove(query);
+            if (queries.isEmpty())
+                index.remove(key);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package dm;
+
+/**
+ * Exception thrown when a call to the database exceeds its timeout or deadline, or is cancelled
+ * by its caller (see Deadline): a query was cancelled or not run at all.
+ */
+public class QueryTimeoutException extends MapperException {
+    public QueryTimeoutException(String message) {
+        super(message);
+    }
+}
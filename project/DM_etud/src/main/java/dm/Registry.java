@@ -1,7 +1,13 @@
 package dm;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implements an identity map.
@@ -9,24 +15,149 @@ import java.util.Map;
  * transaction.
  * Whenever you want an object, you check the Identity Map first to see if you already have it.
  * https://en.wikipedia.org/wiki/Identity_map_pattern
+ * The age of each object is recorded so that a CachePolicy can expire it.
+ * A pinned key is never expired: its object stays served while it is reloaded.
  * @param <K>
  * @param <V>
  */
 public class Registry<K, V> {
-    public Map<K, V> objectMap = new HashMap<>();
+    /**
+     * State of a cached object with regard to the cache policy
+     */
+    public enum Freshness { FRESH, STALE, EXPIRED }
+
+    // estimated heap size of an entry: nodes of both maps, boxed load date and table slots
+    private static final long ENTRY_OVERHEAD = 2 * 32 + 24 + 2 * 8;
+
+    public ConcurrentMap<K, V> objectMap = new ConcurrentHashMap<>();
+    // load date (System.nanoTime) of each object
+    private final Map<K, Long> loadTimes = new ConcurrentHashMap<>();
+    private volatile CachePolicy policy = CachePolicy.NEVER_EXPIRE;
+    // keys whose objects are never expired (the key may be pinned before its object is cached)
+    private final Set<K> pinned = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
 
     public V getObject(K objKey) {
         return this.objectMap.get(objKey);
     }
 
+    public boolean containsObject(K key) {
+        return this.objectMap.containsKey(key);
+    }
+
     public void addObject(K key, V obj) {
+        this.loadTimes.put(key, System.nanoTime());
         this.objectMap.put(key, obj);
     }
 
-    public void removeObject(K key) { this.objectMap.remove(key); }
+    /**
+     * Add an object unless the registry already holds one for this key
+     * @param key object key
+     * @param obj object to add
+     * @return the object already held, or null if obj has been added
+     */
+    public V addObjectIfAbsent(K key, V obj) {
+        V previous = this.objectMap.putIfAbsent(key, obj);
+        if (previous == null)
+            this.loadTimes.put(key, System.nanoTime());
+        return previous;
+    }
+
+    /**
+     * Replace an object only if the registry still holds the expected one
+     * (it may have been invalidated by a write in the meantime)
+     * @param key object key
+     * @param expected object expected in the registry
+     * @param obj new object
+     * @return true if the object has been replaced
+     */
+    public boolean replaceObject(K key, V expected, V obj) {
+        if (this.objectMap.replace(key, expected, obj)) {
+            this.loadTimes.put(key, System.nanoTime());
+            return true;
+        }
+        return false;
+    }
+
+    public void removeObject(K key) {
+        this.objectMap.remove(key);
+        this.loadTimes.remove(key);
+    }
+
+    /**
+     * Remove an object only if the registry still holds the expected one
+     * @param key object key
+     * @param expected object expected in the registry
+     */
+    public void removeObject(K key, V expected) {
+        if (this.objectMap.remove(key, expected))
+            this.loadTimes.remove(key);
+    }
 
     public void removeAll() {
         this.objectMap.clear();
+        this.loadTimes.clear();
+    }
+
+    /**
+     * @return a snapshot of the cached objects
+     */
+    public List<V> objects() {
+        return new ArrayList<>(this.objectMap.values());
+    }
+
+    /**
+     * @return estimated heap size of the registry structure, without the cached objects
+     */
+    public long estimateOverhead() {
+        return this.objectMap.size() * ENTRY_OVERHEAD;
+    }
+
+    public CachePolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(CachePolicy policy) {
+        this.policy = policy == null ? CachePolicy.NEVER_EXPIRE : policy;
+    }
+
+    public void pin(K key) {
+        this.pinned.add(key);
+    }
+
+    public void unpin(K key) {
+        this.pinned.remove(key);
+    }
+
+    public boolean isPinned(K key) {
+        return this.pinned.contains(key);
+    }
+
+    /**
+     * Compute the state of a cached object with the current policy
+     * @param key object key
+     * @return freshness of the object (FRESH if its age is unknown)
+     */
+    public Freshness getFreshness(K key) {
+        Long loadTime = this.loadTimes.get(key);
+        return loadTime == null ? Freshness.FRESH : freshness(loadTime);
+    }
+
+    /**
+     * Compute the state of an object loaded at a given date with the current policy
+     * @param loadTime load date (System.nanoTime)
+     * @return freshness of the object
+     */
+    protected Freshness freshness(long loadTime) {
+        CachePolicy currentPolicy = this.policy;
+        if (!currentPolicy.expires())
+            return Freshness.FRESH;
+
+        long age = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loadTime);
+        if (age < currentPolicy.getRefreshAfterMillis())
+            return Freshness.FRESH;
+        if (age < currentPolicy.getTtlMillis() + currentPolicy.getMaxStaleMillis())
+            return Freshness.STALE;
+        return Freshness.EXPIRED;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,96 @@
+package dm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring distributing object identifiers over several databases.
+ * Each database is placed at several points (virtual nodes) of the ring, and an id
+ * belongs to the first database found clockwise from the hash of the id.
+ * Adding a database only moves the ids falling between its points and their predecessors.
+ * A ring is immutable: adding a shard builds a new ring.
+ */
+public class ShardRing {
+    // number of points of a database on the ring
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final TreeMap<Integer, DB> points;
+    private final List<DB> shards;
+    private final List<String> shardNames;
+    private final int virtualNodes;
+
+    /**
+     * Create a ring with one database
+     * @param name database name (used to place it on the ring)
+     * @param db database
+     */
+    public ShardRing(String name, DB db) {
+        this(new TreeMap<Integer, DB>(), new ArrayList<DB>(), new ArrayList<String>(), DEFAULT_VIRTUAL_NODES);
+        place(name, db);
+    }
+
+    private ShardRing(TreeMap<Integer, DB> points, List<DB> shards, List<String> shardNames, int virtualNodes) {
+        this.points = points;
+        this.shards = shards;
+        this.shardNames = shardNames;
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Build a new ring with one more database
+     * @param name database name (used to place it on the ring)
+     * @param db database to add
+     * @return the new ring
+     */
+    public ShardRing with(String name, DB db) {
+        if (shardNames.contains(name))
+            throw new IllegalArgumentException("ShardRing:: Shard " + name + " is already in the ring");
+        ShardRing ring = new ShardRing(new TreeMap<>(points), new ArrayList<>(shards), new ArrayList<>(shardNames), virtualNodes);
+        ring.place(name, db);
+        return ring;
+    }
+
+    /**
+     * Find the database owning an id
+     * @param id object identifier
+     * @return the database storing this id
+     */
+    public DB route(Object id) {
+        Map.Entry<Integer, DB> point = points.ceilingEntry(hash(id.toString()));
+        if (point == null)
+            point = points.firstEntry();
+        return point.getValue();
+    }
+
+    public List<DB> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    public List<String> getShardNames() {
+        return Collections.unmodifiableList(shardNames);
+    }
+
+    private void place(String name, DB db) {
+        shards.add(db);
+        shardNames.add(name);
+        for (int i = 0; i < virtualNodes; i++)
+            points.put(hash(name + "#" + i), db);
+    }
+
+    // FNV-1a hash, stable across JVMs (unlike identity hashes) and well spread for short strings
+    private static int hash(String key) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+        // final avalanche so that close keys land far apart
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        h ^= h >>> 12;
+        return h;
+    }
+}
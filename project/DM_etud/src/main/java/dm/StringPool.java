@@ -0,0 +1,38 @@
+package dm;
+
+/**
+ * Bounded deduplication pool of strings (e.g. the author names shared by many cached books).
+ * The pool is a fixed array indexed by hash: a string replaces the one held in its slot,
+ * so the pool never grows and needs no lock (a lost race only loses some sharing).
+ */
+class StringPool {
+    private final String[] slots;
+
+    /**
+     * @param size number of slots (rounded up to a power of 2)
+     */
+    StringPool(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("StringPool:: Invalid size");
+        int capacity = 1;
+        while (capacity < size)
+            capacity <<= 1;
+        this.slots = new String[capacity];
+    }
+
+    /**
+     * @param value string to share
+     * @return an equal string held by the pool (the value itself if none)
+     */
+    String intern(String value) {
+        if (value == null)
+            return null;
+        int hash = value.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & (slots.length - 1);
+        String pooled = slots[slot];
+        if (value.equals(pooled))
+            return pooled;
+        slots[slot] = value;
+        return value;
+    }
+}
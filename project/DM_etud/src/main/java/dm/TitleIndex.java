@@ -0,0 +1,666 @@
+package dm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-process inverted index over book titles.
+ * Titles are split in lower case words; each word maps to the sorted list of the documents
+ * containing it. Recent documents are kept in a mutable in-memory segment which is flushed
+ * to an immutable on-disk segment (postings compressed as delta-encoded varints) when it grows;
+ * segments are merged when there are too many of them, renumbering the documents left.
+ * A document is a version of a book: updating a title deletes the previous document and adds a new one.
+ * Each change is first appended to a log, replayed when the index is opened after a crash, so that
+ * the in-memory segment and the deleted documents are not lost. The documents table lists the
+ * segments it was written with: a segment written just before a crash is ignored, its documents are
+ * replayed from the log.
+ */
+public class TitleIndex {
+    // number of documents of the in-memory segment triggering a flush
+    public static final int FLUSH_DOCS = 10000;
+    // number of on-disk segments triggering a merge
+    public static final int MAX_SEGMENTS = 8;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".idx";
+    private static final String DOCS_FILE = "docs.idx";
+    private static final String LOG_FILE = "log.idx";
+    // first int of the documents table, an older table starts with its document count
+    private static final int DOCS_VERSION = -2;
+    private static final byte PUT = 'P';
+    private static final byte REMOVE = 'R';
+
+    private final Path directory;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // document id -> isbn, and isbn -> current document id
+    private final List<String> documents = new ArrayList<>();
+    private final Map<String, Integer> currentDocuments = new HashMap<>();
+    private final BitSet deleted = new BitSet();
+    // in-memory segment: word -> document ids (ascending)
+    private Map<String, IntList> liveSegment = new HashMap<>();
+    private int liveDocuments = 0;
+    // on-disk segments, oldest first
+    private final List<Segment> segments = new ArrayList<>();
+    private int nextSegment = 0;
+    // changes made since the last flush (null until the first change)
+    private DataOutputStream log;
+    // books written during the initial load (null once loaded)
+    private Set<String> written;
+    private boolean loadCleared;
+
+    /**
+     * Growable list of ints
+     */
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Immutable segment: word -> compressed postings
+     */
+    private static class Segment {
+        private final Path file;
+        private final Map<String, byte[]> postings;
+        private final int documentCount;
+
+        private Segment(Path file, Map<String, byte[]> postings, int documentCount) {
+            this.file = file;
+            this.postings = postings;
+            this.documentCount = documentCount;
+        }
+    }
+
+    /**
+     * Open the index stored in a directory (empty if the directory holds no index)
+     * @param directory index directory (created if missing)
+     * @throws IOException if the index cannot be read
+     */
+    public TitleIndex(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        load();
+    }
+
+    /**
+     * @return true if the index holds no document
+     */
+    public boolean isEmpty() {
+        lock.readLock().lock();
+        try {
+            return currentDocuments.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of document ids in use, by current and deleted documents (merges drop the deleted ones)
+     */
+    public int getDocumentCount() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Index the title of a book (replaces its previous title)
+     * @param isbn book isbn
+     * @param title book title
+     * @throws IOException if a flush fails
+     */
+    public void put(String isbn, String title) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (written != null)
+                written.add(isbn);
+            log(PUT, isbn, title);
+            addDocument(isbn, title);
+            if (liveDocuments >= FLUSH_DOCS)
+                flush();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a book from the index
+     * @param isbn book isbn
+     * @throws IOException if the change cannot be logged
+     */
+    public void remove(String isbn) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (written != null)
+                written.add(isbn);
+            log(REMOVE, isbn, null);
+            removeDocument(isbn);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all the books and start an initial load: from now on the rows given to load do not
+     * override the books indexed or removed meanwhile, and the index is not ready until loaded is called
+     * @throws IOException if the previous segments cannot be deleted
+     */
+    public void startLoad() throws IOException {
+        lock.writeLock().lock();
+        try {
+            clear();
+            written = new HashSet<>();
+            loadCleared = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Index a title read by the initial load, unless the book was written meanwhile
+     * @param isbn book isbn
+     * @param title book title
+     * @throws IOException if a flush fails
+     */
+    public void load(String isbn, String title) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (written == null || loadCleared || written.contains(isbn))
+                return;
+            log(PUT, isbn, title);
+            addDocument(isbn, title);
+            if (liveDocuments >= FLUSH_DOCS)
+                flush();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * End the initial load: the index can answer the searches
+     */
+    public void loaded() {
+        lock.writeLock().lock();
+        try {
+            written = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true unless an initial load is running
+     */
+    public boolean isReady() {
+        lock.readLock().lock();
+        try {
+            return written == null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all the books and the on-disk segments
+     * @throws IOException if a segment cannot be deleted
+     */
+    public void clear() throws IOException {
+        lock.writeLock().lock();
+        try {
+            // the rows still to be loaded are deleted too
+            if (written != null)
+                loadCleared = true;
+            List<Segment> dropped = new ArrayList<>(segments);
+            segments.clear();
+            documents.clear();
+            currentDocuments.clear();
+            deleted.clear();
+            liveSegment = new HashMap<>();
+            liveDocuments = 0;
+            writeDocuments();
+            resetLog();
+            for (Segment segment : dropped)
+                Files.deleteIfExists(segment.file);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the books whose titles contain words of a query.
+     * Books are ranked by the sum of the inverse document frequencies of the matched words.
+     * @param query words to search
+     * @param limit maximum number of results
+     * @return isbns of the best matching books, best first
+     */
+    public List<String> search(String query, int limit) {
+        lock.readLock().lock();
+        try {
+            Map<Integer, Double> scores = new HashMap<>();
+            int documentCount = currentDocuments.size();
+            for (String word : tokenize(query)) {
+                List<Integer> matches = postings(word);
+                if (matches.isEmpty())
+                    continue;
+                double idf = Math.log(1 + (double) documentCount / matches.size());
+                for (Integer document : matches) {
+                    Double score = scores.get(document);
+                    scores.put(document, score == null ? idf : score + idf);
+                }
+            }
+
+            // keep the best results in a bounded heap (worst result on top)
+            final Map<Integer, Double> finalScores = scores;
+            Comparator<Integer> byScore = new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int result = Double.compare(finalScores.get(a), finalScores.get(b));
+                    // newer documents first on equal scores
+                    return result != 0 ? result : Integer.compare(a, b);
+                }
+            };
+            PriorityQueue<Integer> best = new PriorityQueue<>(Math.max(1, limit), byScore);
+            for (Integer document : scores.keySet()) {
+                best.add(document);
+                if (best.size() > limit)
+                    best.poll();
+            }
+            List<String> result = new ArrayList<>(best.size());
+            while (!best.isEmpty())
+                result.add(documents.get(best.poll()));
+            Collections.reverse(result);
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write the in-memory segment to disk
+     * @throws IOException if the segment cannot be written
+     */
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!liveSegment.isEmpty()) {
+                Map<String, byte[]> postings = new TreeMap<>();
+                for (Map.Entry<String, IntList> entry : liveSegment.entrySet())
+                    postings.put(entry.getKey(), encode(entry.getValue().values, entry.getValue().size));
+                segments.add(writeSegment(postings, liveDocuments));
+                liveSegment = new HashMap<>();
+                liveDocuments = 0;
+            }
+            if (segments.size() > MAX_SEGMENTS) {
+                merge();
+            } else {
+                writeDocuments();
+                // the log holds nothing which is not on disk now
+                resetLog();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Merge all the segments into one (the in-memory segment too), dropping the deleted documents
+     * and renumbering the others so that the documents table only holds current documents
+     * @throws IOException if the merged segment cannot be written
+     */
+    public void merge() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (segments.size() + (liveSegment.isEmpty() ? 0 : 1) < 2)
+                return;
+            // new ids of the current documents, in the order of the old ones so postings stay sorted
+            int[] renumbered = new int[documents.size()];
+            List<String> compacted = new ArrayList<>(currentDocuments.size());
+            for (int document = 0; document < documents.size(); document++) {
+                if (deleted.get(document)) {
+                    renumbered[document] = -1;
+                } else {
+                    renumbered[document] = compacted.size();
+                    compacted.add(documents.get(document));
+                }
+            }
+
+            Map<String, IntList> merged = new TreeMap<>();
+            // segments hold increasing document ids, and the in-memory segment the newest ones
+            for (Segment segment : segments) {
+                for (Map.Entry<String, byte[]> entry : segment.postings.entrySet()) {
+                    int[] documents = decode(entry.getValue());
+                    addRenumbered(merged, entry.getKey(), documents, documents.length, renumbered);
+                }
+            }
+            for (Map.Entry<String, IntList> entry : liveSegment.entrySet())
+                addRenumbered(merged, entry.getKey(), entry.getValue().values, entry.getValue().size, renumbered);
+            Map<String, byte[]> postings = new TreeMap<>();
+            for (Map.Entry<String, IntList> entry : merged.entrySet())
+                postings.put(entry.getKey(), encode(entry.getValue().values, entry.getValue().size));
+            Segment mergedSegment = writeSegment(postings, compacted.size());
+
+            List<Segment> dropped = new ArrayList<>(segments);
+            segments.clear();
+            segments.add(mergedSegment);
+            liveSegment = new HashMap<>();
+            liveDocuments = 0;
+            documents.clear();
+            documents.addAll(compacted);
+            deleted.clear();
+            currentDocuments.clear();
+            for (int document = 0; document < documents.size(); document++)
+                currentDocuments.put(documents.get(document), document);
+            // the new table is the commit point of the merge: the old segments are no longer listed
+            writeDocuments();
+            resetLog();
+            for (Segment segment : dropped)
+                Files.deleteIfExists(segment.file);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Split a text in lower case words of at least two letters or digits
+     * @param text text to split (may be null)
+     * @return distinct words in order of appearance
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        if (text == null)
+            return words;
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start >= 2)
+                    words.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static void addRenumbered(Map<String, IntList> merged, String word, int[] documents, int size, int[] renumbered) {
+        for (int i = 0; i < size; i++) {
+            int document = renumbered[documents[i]];
+            if (document < 0)
+                continue;
+            IntList postings = merged.get(word);
+            if (postings == null) {
+                postings = new IntList();
+                merged.put(word, postings);
+            }
+            postings.add(document);
+        }
+    }
+
+    private void addDocument(String isbn, String title) {
+        removeDocument(isbn);
+        int document = documents.size();
+        documents.add(isbn);
+        currentDocuments.put(isbn, document);
+        for (String word : tokenize(title)) {
+            IntList postings = liveSegment.get(word);
+            if (postings == null) {
+                postings = new IntList();
+                liveSegment.put(word, postings);
+            }
+            postings.add(document);
+        }
+        liveDocuments++;
+    }
+
+    private void removeDocument(String isbn) {
+        Integer previous = currentDocuments.remove(isbn);
+        if (previous != null)
+            deleted.set(previous);
+    }
+
+    // live documents containing a word, from all the segments
+    private List<Integer> postings(String word) {
+        List<Integer> matches = new ArrayList<>();
+        for (Segment segment : segments) {
+            byte[] compressed = segment.postings.get(word);
+            if (compressed != null) {
+                for (int document : decode(compressed)) {
+                    if (!deleted.get(document))
+                        matches.add(document);
+                }
+            }
+        }
+        IntList live = liveSegment.get(word);
+        if (live != null) {
+            for (int i = 0; i < live.size; i++) {
+                if (!deleted.get(live.values[i]))
+                    matches.add(live.values[i]);
+            }
+        }
+        return matches;
+    }
+
+    // delta + varint encoding of sorted document ids
+    private static byte[] encode(int[] values, int size) {
+        byte[] buffer = new byte[size * 5];
+        int length = 0;
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            int delta = values[i] - previous;
+            previous = values[i];
+            while ((delta & ~0x7F) != 0) {
+                buffer[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            buffer[length++] = (byte) delta;
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private static int[] decode(byte[] compressed) {
+        int[] values = new int[compressed.length];
+        int size = 0;
+        int previous = 0;
+        int pos = 0;
+        while (pos < compressed.length) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = compressed[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            previous += delta;
+            values[size++] = previous;
+        }
+        return Arrays.copyOf(values, size);
+    }
+
+    private Segment writeSegment(Map<String, byte[]> postings, int documentCount) throws IOException {
+        Path file = directory.resolve(SEGMENT_PREFIX + (nextSegment++) + SEGMENT_SUFFIX);
+        Path temporary = directory.resolve(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(documentCount);
+            out.writeInt(postings.size());
+            for (Map.Entry<String, byte[]> entry : postings.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new Segment(file, postings, documentCount);
+    }
+
+    // the documents table: segments on disk, isbn of each document id and deleted documents
+    private void writeDocuments() throws IOException {
+        Path temporary = directory.resolve(DOCS_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(DOCS_VERSION);
+            out.writeInt(segments.size());
+            for (Segment segment : segments)
+                out.writeInt(segmentNumber(segment.file));
+            // documents of the in-memory segment are not on disk yet
+            int flushed = documents.size() - liveDocuments;
+            out.writeInt(flushed);
+            for (int document = 0; document < flushed; document++) {
+                out.writeUTF(documents.get(document));
+                out.writeBoolean(deleted.get(document));
+            }
+        }
+        Files.move(temporary, directory.resolve(DOCS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // append a change to the log before applying it
+    private void log(byte operation, String isbn, String title) throws IOException {
+        if (log == null)
+            log = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(directory.resolve(LOG_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        log.writeByte(operation);
+        log.writeUTF(isbn);
+        log.writeBoolean(title != null);
+        if (title != null)
+            log.writeUTF(title);
+        // handed to the file system at once: a crash of the process does not lose it
+        log.flush();
+    }
+
+    private void resetLog() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+        Files.deleteIfExists(directory.resolve(LOG_FILE));
+    }
+
+    private void load() throws IOException {
+        Set<Integer> listed = new HashSet<>();
+        Path docsFile = directory.resolve(DOCS_FILE);
+        if (Files.exists(docsFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(docsFile)))) {
+                // an index written in an older format is dropped, and rebuilt as an empty one
+                if (in.readInt() == DOCS_VERSION) {
+                    int segmentCount = in.readInt();
+                    for (int i = 0; i < segmentCount; i++)
+                        listed.add(in.readInt());
+                    int count = in.readInt();
+                    for (int document = 0; document < count; document++) {
+                        String isbn = in.readUTF();
+                        documents.add(isbn);
+                        if (in.readBoolean()) {
+                            deleted.set(document);
+                        } else {
+                            Integer previous = currentDocuments.put(isbn, document);
+                            if (previous != null)
+                                deleted.set(previous);
+                        }
+                    }
+                }
+            }
+        }
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream)
+                files.add(file);
+        }
+        // oldest segments first
+        Collections.sort(files, new Comparator<Path>() {
+            @Override
+            public int compare(Path a, Path b) {
+                return Integer.compare(segmentNumber(a), segmentNumber(b));
+            }
+        });
+        for (Path file : files) {
+            nextSegment = Math.max(nextSegment, segmentNumber(file) + 1);
+            // written by a flush or a merge which did not complete, or merged before a crash
+            if (!listed.contains(segmentNumber(file))) {
+                Files.delete(file);
+                continue;
+            }
+            Map<String, byte[]> postings = new HashMap<>();
+            int documentCount;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                documentCount = in.readInt();
+                int words = in.readInt();
+                for (int i = 0; i < words; i++) {
+                    String word = in.readUTF();
+                    byte[] compressed = new byte[in.readInt()];
+                    in.readFully(compressed);
+                    postings.put(word, compressed);
+                }
+            }
+            segments.add(new Segment(file, postings, documentCount));
+        }
+
+        // the changes made after the last flush
+        if (replayLog())
+            flush();
+    }
+
+    // apply the changes of the log, up to the last complete one
+    private boolean replayLog() throws IOException {
+        Path logFile = directory.resolve(LOG_FILE);
+        if (!Files.exists(logFile))
+            return false;
+        boolean replayed = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            while (true) {
+                byte operation = in.readByte();
+                String isbn = in.readUTF();
+                String title = in.readBoolean() ? in.readUTF() : null;
+                if (operation == PUT)
+                    addDocument(isbn, title);
+                else
+                    removeDocument(isbn);
+                replayed = true;
+            }
+        } catch (EOFException e) {
+            // end of the log, or a change cut by the crash which was not applied either
+        }
+        // the flush rewrites the replayed changes, without the cut one
+        if (!replayed)
+            resetLog();
+        return replayed;
+    }
+
+    private static int segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,202 @@
+package dm;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Explicit transaction on one database, bound to the thread which began it.
+ * All the statements of this thread on the database run on the connection of the transaction
+ * (auto-commit disabled) until it is committed or rolled back.
+ * Objects read by the transaction are kept in its own identity map; the objects it writes are
+ * invalidated in the shared caches when it ends, so other sessions never keep uncommitted state.
+ * Use it with try-with-resources: a transaction which is not committed is rolled back on close.
+ */
+public class Transaction implements AutoCloseable {
+    /**
+     * Work run in a transaction, or after its commit
+     */
+    public interface Action {
+        void run() throws MapperException;
+    }
+
+    private final DB db;
+    private final Connection connection;
+    private boolean active = true;
+    private boolean committed = false;
+    // objects read in this transaction, by mapper and id
+    private final Map<AbstractMapper, Map<Object, DomainObject>> identityMaps = new HashMap<>();
+    // ids written in this transaction, by mapper
+    private final Map<AbstractMapper, Set<Object>> written = new HashMap<>();
+    // mappers which deleted all their objects in this transaction
+    private final Set<AbstractMapper> writtenAll = new HashSet<>();
+    // run once the transaction is committed
+    private final List<Action> commitActions = new ArrayList<>();
+
+    Transaction(DB db, Connection connection) throws SQLException {
+        this.db = db;
+        this.connection = connection;
+        connection.setAutoCommit(false);
+    }
+
+    public DB getDb() {
+        return db;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * Run an action once the transaction is committed (e.g. to update an in-memory index);
+     * the action is dropped if the transaction is rolled back
+     * @param action action to run after commit
+     */
+    public void onCommit(Action action) {
+        commitActions.add(action);
+    }
+
+    /**
+     * Commit the transaction and run the after-commit actions
+     * @throws MapperException if the commit fails (the transaction is then rolled back) or an action fails
+     */
+    public void commit() throws MapperException {
+        checkActive();
+        try {
+            connection.commit();
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackFailure) {
+                // the connection is given back anyway
+            }
+            end(false);
+            throw new MapperException("Transaction:: Commit failed: " + e.getMessage());
+        }
+        committed = true;
+        end(true);
+
+        // the data is committed, run all the actions even if one fails
+        MapperException failure = null;
+        for (Action action : commitActions) {
+            try {
+                action.run();
+            } catch (MapperException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Roll back the transaction
+     * @throws MapperException if the rollback fails
+     */
+    public void rollback() throws MapperException {
+        checkActive();
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            throw new MapperException("Transaction:: Rollback failed: " + e.getMessage());
+        } finally {
+            end(false);
+        }
+    }
+
+    /**
+     * Roll back the transaction if it has not been committed
+     * @throws MapperException if the rollback fails
+     */
+    @Override
+    public void close() throws MapperException {
+        if (active)
+            rollback();
+    }
+
+    // Used by the mappers and the group committer
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    DomainObject getCached(AbstractMapper mapper, Object id) {
+        Map<Object, DomainObject> identityMap = identityMaps.get(mapper);
+        return identityMap == null ? null : identityMap.get(id);
+    }
+
+    void cache(AbstractMapper mapper, Object id, DomainObject object) {
+        Map<Object, DomainObject> identityMap = identityMaps.get(mapper);
+        if (identityMap == null) {
+            identityMap = new HashMap<>();
+            identityMaps.put(mapper, identityMap);
+        }
+        identityMap.put(id, object);
+    }
+
+    void written(AbstractMapper mapper, Object id) {
+        Set<Object> ids = written.get(mapper);
+        if (ids == null) {
+            ids = new HashSet<>();
+            written.put(mapper, ids);
+        }
+        ids.add(id);
+        Map<Object, DomainObject> identityMap = identityMaps.get(mapper);
+        if (identityMap != null)
+            identityMap.remove(id);
+    }
+
+    void writtenAll(AbstractMapper mapper) {
+        writtenAll.add(mapper);
+        identityMaps.remove(mapper);
+    }
+
+    boolean hasWritten(AbstractMapper mapper, Object id) {
+        Set<Object> ids = written.get(mapper);
+        return writtenAll.contains(mapper) || (ids != null && ids.contains(id));
+    }
+
+    // number of after-commit actions, to drop the actions of a work rolled back to a savepoint
+    int mark() {
+        return commitActions.size();
+    }
+
+    // a work has been rolled back to its savepoint: forget what it registered and read
+    void rollbackTo(int mark) {
+        commitActions.subList(mark, commitActions.size()).clear();
+        identityMaps.clear();
+    }
+
+    private void checkActive() throws MapperException {
+        if (!active)
+            throw new MapperException("Transaction:: Transaction already ended");
+    }
+
+    private void end(boolean committed) {
+        active = false;
+        identityMaps.clear();
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            // the connection is given back anyway
+        }
+        db.endTransaction(this);
+        Set<AbstractMapper> mappers = new HashSet<>(written.keySet());
+        mappers.addAll(writtenAll);
+        for (AbstractMapper mapper : mappers) {
+            Set<Object> ids = written.get(mapper);
+            mapper.afterTransaction(ids == null ? Collections.emptySet() : ids, writtenAll.contains(mapper), committed);
+        }
+    }
+}
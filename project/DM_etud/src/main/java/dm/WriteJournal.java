@@ -0,0 +1,220 @@
+package dm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only local journal of records, for crash safety of delayed writes.
+ * Each record is written as (length, CRC32, payload), so a record torn by a crash is detected and dropped.
+ * Appending is cheap; sync forces the file to disk and is batched: a caller waiting for its record
+ * to be durable shares the fsync of the other callers waiting at the same time.
+ * The applied records are dropped by checkpoints: the records appended after them are copied
+ * to a new file replacing the journal, once the applied ones take at least half of it.
+ */
+public class WriteJournal implements AutoCloseable {
+    // length and checksum before each payload
+    private static final int HEADER_SIZE = 4 + 8;
+
+    private final Path file;
+    private FileChannel channel;
+    // end position in the file of the records appended since the last checkpoint, by sequence number
+    private final NavigableMap<Long, Long> ends = new TreeMap<>();
+    // sequence number of the last record dropped by a checkpoint
+    private long checkpointed = 0;
+    // sequence number of the last appended record and of the last record forced to disk
+    private long appended = 0;
+    private long durable = 0;
+    // true while a caller forces the file on behalf of all the waiting callers
+    private boolean syncing = false;
+
+    /**
+     * Open (or create) a journal file
+     * @param file journal file
+     * @throws IOException if the file cannot be opened
+     */
+    public WriteJournal(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Read all the valid records of the journal and position it after the last one
+     * (a torn record at the end is truncated); the records get the sequence numbers 1 to n
+     * @return payloads of the records, in append order
+     * @throws IOException if the file cannot be read
+     */
+    public synchronized List<byte[]> replay() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        long position = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int length = header.getInt();
+            long checksum = header.getLong();
+            if (length < 0 || position + HEADER_SIZE + length > size)
+                break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, position + HEADER_SIZE);
+            if (crc(payload.array()) != checksum)
+                break;
+            records.add(payload.array());
+            position += HEADER_SIZE + length;
+            ends.put(checkpointed + records.size(), position);
+        }
+        channel.truncate(position);
+        channel.position(position);
+        appended = checkpointed + records.size();
+        durable = appended;
+        return records;
+    }
+
+    /**
+     * Append a record (not durable until sync)
+     * @param payload record payload
+     * @return sequence number of the record
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length).putLong(crc(payload)).put(payload);
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        ends.put(++appended, channel.position());
+        return appended;
+    }
+
+    /**
+     * Wait until a record is on disk, forcing the file if no other caller is doing it
+     * @param sequence sequence number of the record
+     * @throws IOException if the file cannot be forced
+     */
+    public void sync(long sequence) throws IOException {
+        long target;
+        FileChannel forced;
+        synchronized (this) {
+            // another caller may be forcing the file, its fsync may cover this record
+            while (durable < sequence && syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("WriteJournal:: Interrupted while waiting for sync");
+                }
+            }
+            if (durable >= sequence)
+                return;
+            syncing = true;
+            target = appended;
+            forced = channel;
+        }
+        boolean done = false;
+        try {
+            forced.force(false);
+            done = true;
+        } finally {
+            synchronized (this) {
+                if (done)
+                    durable = Math.max(durable, target);
+                syncing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return sequence number of the last appended record
+     */
+    public synchronized long lastSequence() {
+        return appended;
+    }
+
+    /**
+     * Drop the records up to a given one (they have been applied): the journal is emptied if no record
+     * has been appended since, otherwise the later records are copied to a new file replacing the journal
+     * once the applied records take at least half of it (the copy costs the size of the later records)
+     * @param sequence sequence number of the last applied record
+     * @return true if the records have been dropped
+     * @throws IOException if the journal cannot be rewritten (it is left unchanged)
+     */
+    public synchronized boolean checkpoint(long sequence) throws IOException {
+        if (sequence <= checkpointed)
+            return true;
+        // a caller forcing the current file outside the monitor must be done with it
+        while (syncing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("WriteJournal:: Interrupted while waiting for sync");
+            }
+        }
+        long start = ends.get(sequence);
+        long size = channel.size();
+        if (start == size) {
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(false);
+        } else {
+            if (start < size - start)
+                return false;
+            // a crash before the move leaves the old file, whose records are replayed again
+            Path next = file.resolveSibling(file.getFileName() + ".next");
+            FileChannel copy = FileChannel.open(next, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                long copied = 0;
+                while (copied < size - start)
+                    copied += channel.transferTo(start + copied, size - start - copied, copy);
+                copy.force(false);
+                Files.move(next, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                copy.close();
+                Files.deleteIfExists(next);
+                throw e;
+            }
+            channel.close();
+            channel = copy;
+        }
+        ends.headMap(sequence, true).clear();
+        for (Map.Entry<Long, Long> end : ends.entrySet())
+            end.setValue(end.getValue() - start);
+        // the records left have just been forced
+        durable = appended;
+        checkpointed = sequence;
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("WriteJournal:: Unexpected end of journal");
+        }
+    }
+
+    private static long crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return crc.getValue();
+    }
+}
@@ -1,8 +1,21 @@
 package dm;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Test class using Surefire Maven plugin
@@ -103,6 +116,625 @@ public class TestBook {
         assert(book1 == null);
     }
 
+    public void testExistsBook() throws BookMapperException {
+        // clean db
+        bm.deleteAll();
+        // a book not in db does not exist
+        assert(!bm.exists("978-1430219569"));
+        // save a new book in db
+        bm.insert(JPAbook);
+        // now it exists
+        assert(bm.exists("978-1430219569"));
+        // delete this book
+        bm.delete(JPAbook);
+        // it does not exist anymore
+        assert(!bm.exists("978-1430219569"));
+    }
+
+    public void testReplicaReadYourWrites() throws Exception {
+        // the replica is the primary itself here: what matters is what the mapper shares through its cache
+        final BookMapper replicated = BookMapper.createMapper("bookstore", "bookstore");
+        replicated.deleteAll();
+        replicated.insert(JPAbook);
+        // another session reads the book from the replica, which may not have received the insert yet...
+        final Book[] read = new Book[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read[0] = replicated.find("978-1430219569");
+                } catch (BookMapperException e) {
+                    read[0] = null;
+                }
+            }
+        });
+        reader.start();
+        reader.join();
+        // ...so its result is not cached, the writing session could be served a stale book
+        assert(read[0] != null && !replicated.loadedMap.containsObject("978-1430219569"));
+        // the writing session reads its own write from the primary, which may be cached
+        assert(replicated.find("978-1430219569") != null);
+        assert(replicated.loadedMap.containsObject("978-1430219569"));
+    }
+
+    public void testSearchByTitle() throws Exception {
+        // clean db
+        bm.deleteAll();
+        // index the titles in a temporary directory
+        bm.enableTitleIndex(Files.createTempDirectory("title-index"));
+        try {
+            // save a new book in db
+            bm.insert(JPAbook);
+            // search it by some words of its title, in any case
+            List<Book> books = bm.searchByTitle("java PERSISTENCE", 10);
+            assert(books.size() == 1 && books.get(0).equals(JPAbook));
+            // delete this book
+            bm.delete(JPAbook);
+            // it is not found anymore
+            assert(bm.searchByTitle("java persistence", 10).isEmpty());
+        } finally {
+            bm.closeTitleIndex();
+        }
+    }
+
+    public void testTitleIndexRecovery() throws Exception {
+        Path directory = Files.createTempDirectory("title-index");
+        TitleIndex index = new TitleIndex(directory);
+        index.put("978-1430219569", "JPA 2: Mastering the Java™ Persistence API");
+        index.put("978-1484234198", "ProJPA 2 in Java EE 8");
+        index.remove("978-1484234198");
+        // the process stops before any flush: the index opened again replays the changes
+        TitleIndex reopened = new TitleIndex(directory);
+        assert(reopened.search("java", 10).equals(Arrays.asList("978-1430219569")));
+        // each update leaves a deleted document...
+        for (int i = 0; i < 100; i++) {
+            reopened.put("978-1430219569", "JPA 2: Mastering the Java™ Persistence API, edition " + i);
+            reopened.flush();
+        }
+        // ...which merges drop, renumbering the current ones
+        reopened.merge();
+        assert(reopened.getDocumentCount() == 1);
+        assert(reopened.search("edition 99", 10).equals(Arrays.asList("978-1430219569")));
+        assert(new TitleIndex(directory).search("java", 10).equals(Arrays.asList("978-1430219569")));
+    }
+
+    public void testFindByPriceRange() throws BookMapperException {
+        // clean db
+        bm.deleteAll();
+        // save two books in db
+        bm.insert(JPAbook);
+        Book cheapJPABook = new Book("978-1484234198",
+                "ProJPA 2 in Java EE 8: An In-Depth Guide to Java Persistence APIs",
+                "Keith",
+                19.99f);
+        bm.insert(cheapJPABook);
+        // without the price index the query is run in database
+        List<Book> books = bm.findByPriceRange(10f, 40f, 10);
+        assert(books.size() == 2 && books.get(0).equals(cheapJPABook));
+        // with the price index the result is the same
+        bm.enablePriceIndex();
+        assert(bm.findByPriceRange(10f, 40f, 10).equals(books));
+        // and follows the writes
+        bm.delete(cheapJPABook);
+        books = bm.findCheapestByAuthor("Keith", 1);
+        assert(books.size() == 1 && books.get(0).equals(JPAbook));
+    }
+
+    public void testIndexesFollowChangeFeed() throws Exception {
+        // clean db
+        bm.deleteAll();
+        bm.insert(JPAbook);
+        // a mapper serving the price and title queries from its indexes
+        BookMapper indexed = BookMapper.createMapper("bookstore");
+        indexed.enablePriceIndex();
+        indexed.enableTitleIndex(Files.createTempDirectory("title-index"));
+        indexed.startChangeFeed(50);
+        try {
+            // another process inserts a book and deletes the other one
+            bm.insert(new Book("978-1484234198", "ProJPA 2 in Java EE 8", "Keith", 19.99f));
+            bm.delete(JPAbook);
+            List<Book> books = indexed.findByPriceRange(0f, 100f, 10);
+            for (int i = 0; i < 100 && !(books.size() == 1 && books.get(0).getId().equals("978-1484234198")); i++) {
+                Thread.sleep(20);
+                books = indexed.findByPriceRange(0f, 100f, 10);
+            }
+            assert(books.size() == 1 && books.get(0).getId().equals("978-1484234198"));
+            books = indexed.searchByTitle("java", 10);
+            assert(books.size() == 1 && books.get(0).getId().equals("978-1484234198"));
+        } finally {
+            indexed.stopChangeFeed();
+            indexed.closeTitleIndex();
+        }
+    }
+
+    public void testPriceStats() throws BookMapperException {
+        // clean db
+        bm.deleteAll();
+        // no book, no price
+        assert(bm.getPriceStats().getCount() == 0);
+        // save two books in db
+        bm.insert(JPAbook);
+        bm.insert(new Book("978-1484234198",
+                "ProJPA 2 in Java EE 8: An In-Depth Guide to Java Persistence APIs",
+                "Keith",
+                19.99f));
+        PriceStats stats = bm.getPriceStats();
+        assert(stats.getCount() == 2 && stats.getMin() == 19.99f && stats.getMax() == 37.49f);
+        // the same aggregate for their author
+        assert(bm.getPriceStatsByAuthor().get("Keith").getCount() == 2);
+        // delete a book, the aggregates follow
+        bm.delete(JPAbook);
+        assert(bm.getPriceStats().getMax() == 19.99f);
+    }
+
+    public void testPriceStatsInPlaceUpdate() throws Exception {
+        // clean db
+        bm.deleteAll();
+        // a mapper with a price index, which keeps the previous prices, and the only writer
+        BookMapper indexed = BookMapper.createMapper("bookstore");
+        indexed.insert(JPAbook);
+        indexed.enablePriceIndex();
+        assert(indexed.getPriceStats().getCount() == 1);
+        assert(indexed.getPriceStatsByAuthor().get("Keith").getCount() == 1);
+        // the cached book is modified in place then written
+        Book book = indexed.find("978-1430219569");
+        book.setPrice(29.99f);
+        indexed.update(book);
+        // the aggregates were updated from the previous price: 37.49 is no longer the maximum
+        PriceStats stats = indexed.getPriceStats();
+        assert(stats.getCount() == 1 && stats.getMin() == 29.99f && stats.getMax() == 29.99f);
+        assert(indexed.getPriceStatsByAuthor().get("Keith").getMax() == 29.99f);
+        // another process inserts a book: without the change feed it is seen once the aggregates are too old
+        indexed.setPriceStatsMaxAge(100);
+        bm.insert(new Book("978-1484234198", "ProJPA 2 in Java EE 8", "Keith", 19.99f));
+        Thread.sleep(150);
+        stats = indexed.getPriceStats();
+        assert(stats.getCount() == 2 && stats.getMin() == 19.99f && stats.getMax() == 29.99f);
+        assert(indexed.getPriceStatsByAuthor().get("Keith").getCount() == 2);
+    }
+
+    public void testTransaction() throws MapperException {
+        // clean db
+        bm.deleteAll();
+        // save a new book in a transaction which is not committed
+        try (Transaction transaction = bm.begin()) {
+            bm.insert(JPAbook);
+            // the transaction sees its own write
+            assert(bm.find("978-1430219569") != null);
+        }
+        // the insert has been rolled back
+        assert(bm.find("978-1430219569") == null);
+        // save it again and commit
+        try (Transaction transaction = bm.begin()) {
+            bm.insert(JPAbook);
+            transaction.commit();
+        }
+        assert(bm.find("978-1430219569") != null);
+    }
+
+    public void testGroupCommit() throws Exception {
+        // clean db
+        bm.deleteAll();
+        // a first group holds the committer while the next works are submitted, which then form one group
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Future<Void> blocker = bm.submitTransaction(new Transaction.Action() {
+            @Override
+            public void run() throws MapperException {
+                try {
+                    submitted.await();
+                } catch (InterruptedException e) {
+                    throw new MapperException("interrupted");
+                }
+            }
+        });
+        Future<Void> first = bm.submitTransaction(new Transaction.Action() {
+            @Override
+            public void run() throws MapperException {
+                bm.insert(new Book("978-1484234198", "ProJPA 2 in Java EE 8", "Keith", 19.99f));
+            }
+        });
+        // this work fails after a first insert, which is rolled back with it
+        Future<Void> failing = bm.submitTransaction(new Transaction.Action() {
+            @Override
+            public void run() throws MapperException {
+                bm.insert(JPAbook);
+                bm.insert(JPAbook);
+            }
+        });
+        Future<Void> last = bm.submitTransaction(new Transaction.Action() {
+            @Override
+            public void run() throws MapperException {
+                bm.insert(new Book("978-1430218196", "Beginning Java EE 6", "Goncalves", 29.99f));
+            }
+        });
+        submitted.countDown();
+        blocker.get();
+        first.get();
+        last.get();
+        try {
+            failing.get();
+            assert(false);
+        } catch (ExecutionException e) {
+            assert(e.getCause() instanceof MapperException);
+        }
+        // the other works of the group are committed
+        assert(bm.find("978-1484234198") != null && bm.find("978-1430218196") != null);
+        assert(bm.find("978-1430219569") == null);
+    }
+
+    public void testJournalCheckpoint() throws Exception {
+        Path file = Files.createTempDirectory("journal").resolve("books.journal");
+        try (WriteJournal journal = new WriteJournal(file)) {
+            journal.replay();
+            journal.append("first".getBytes(StandardCharsets.UTF_8));
+            long applied = journal.append("second".getBytes(StandardCharsets.UTF_8));
+            journal.sync(journal.append("third".getBytes(StandardCharsets.UTF_8)));
+            // the two applied records take most of the journal: they are dropped
+            assert(journal.checkpoint(applied));
+            journal.sync(journal.append("fourth".getBytes(StandardCharsets.UTF_8)));
+        }
+        try (WriteJournal journal = new WriteJournal(file)) {
+            List<byte[]> records = journal.replay();
+            assert(records.size() == 2);
+            assert(new String(records.get(0), StandardCharsets.UTF_8).equals("third"));
+            assert(new String(records.get(1), StandardCharsets.UTF_8).equals("fourth"));
+            // all the records applied: the journal is emptied
+            assert(journal.checkpoint(journal.lastSequence()));
+            assert(Files.size(file) == 0);
+        }
+    }
+
+    public void testFindByPublisher() throws MapperException {
+        // clean db
+        bm.deleteAll();
+        bm.authors().deleteAll();
+        bm.publishers().deleteAll();
+        // save a publisher, an author and two of his books in db
+        bm.publishers().insert(new Publisher(1, "Apress"));
+        bm.authors().insert(new Author("Keith", "Java EE architect"));
+        bm.insert(new Book("978-1430219569", "JPA 2: Mastering the Java™ Persistence API", "Keith", 37.49f, null, 1));
+        bm.insert(new Book("978-1484234198", "ProJPA 2 in Java EE 8", "Keith", 19.99f, null, 1));
+        // both strategies fetch the relationships with the books, sharing the identity maps
+        for (FetchStrategy strategy : FetchStrategy.values()) {
+            List<Book> books = bm.findByPublisher(1, strategy);
+            assert(books.size() == 2);
+            assert(books.get(0).getAuthorEntity() == books.get(1).getAuthorEntity());
+            assert(books.get(0).getPublisher().getName().equals("Apress"));
+        }
+        // one-to-many: the books of the author
+        Author keith = bm.authors().find("Keith");
+        bm.fetchBooks(Arrays.asList(keith));
+        assert(keith.isBooksLoaded() && keith.getBooks().size() == 2);
+        // clean db
+        bm.deleteAll();
+        bm.authors().deleteAll();
+        bm.publishers().deleteAll();
+    }
+
+    public void testFindByQuery() throws BookMapperException {
+        // clean db
+        bm.deleteAll();
+        // save two books of the same author in db
+        bm.insert(JPAbook);
+        bm.insert(new Book("978-1484234198", "ProJPA 2 in Java EE 8", "Keith", 19.99f));
+        // conditions, ordering and limit
+        List<Book> books = bm.findByQuery(new BookQuery().eq(BookField.AUTHOR, "Keith")
+                .between(BookField.PRICE, 10f, 40f).orderBy(BookField.PRICE, false).limit(1));
+        assert(books.size() == 1 && books.get(0).getId().equals("978-1430219569"));
+        // the same shape with other values
+        books = bm.findByQuery(new BookQuery().eq(BookField.AUTHOR, "Keith")
+                .between(BookField.PRICE, 0f, 20f).orderBy(BookField.PRICE, false).limit(10));
+        assert(books.size() == 1 && books.get(0).getId().equals("978-1484234198"));
+        // IN list, and the results go through the identity map
+        books = bm.findByQuery(new BookQuery().in(BookField.ISBN, Arrays.asList("978-1430219569", "978-1484234198", "0")));
+        assert(books.size() == 2 && books.contains(bm.find("978-1430219569")));
+        assert(bm.findByQuery(new BookQuery().in(BookField.ISBN, new HashSet<String>())).isEmpty());
+    }
+
+    public void testConcurrencyLimit() throws BookMapperException {
+        // clean db
+        bm.deleteAll();
+        bm.enableConcurrencyLimit(1, 1);
+        try {
+            // the calls within the limit are admitted and measured
+            bm.insert(JPAbook);
+            assert(bm.find("978-1430219569") != null);
+            ConcurrencyLimiter limiter = bm.getConcurrencyLimiter();
+            assert(limiter.getAdmittedCount() >= 1 && limiter.getInFlight() == 0);
+            // a call over the limit is rejected at once
+            ConcurrencyLimiter.Permit permit = limiter.acquire(ConcurrencyLimiter.Priority.WRITE);
+            try {
+                bm.delete(JPAbook);
+                assert(false);
+            } catch (BookMapperException e) {
+                assert(e.getCause() instanceof OverloadException);
+            } finally {
+                permit.release();
+            }
+        } catch (OverloadException e) {
+            assert(false);
+        } finally {
+            bm.disableConcurrencyLimit();
+        }
+    }
+
+    public void testConcurrencyLimitAdapts() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10, 4.0, 1.0);
+        // the limit grows while it is in use and the calls stay fast
+        for (int i = 0; i < 200; i++) {
+            List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+            for (int j = limiter.getLimit(); j > 0; j--)
+                permits.add(limiter.acquire(ConcurrencyLimiter.Priority.READ));
+            Thread.sleep(1);
+            for (ConcurrencyLimiter.Permit permit : permits)
+                permit.release();
+        }
+        assert(limiter.getLimit() > 2);
+        int grown = limiter.getLimit();
+        long decreases = limiter.getDecreaseCount();
+        // writes slower than the reads are compared with their own baseline: the limit is not cut
+        for (int i = 0; i < 10; i++) {
+            ConcurrencyLimiter.Permit permit = limiter.acquire(ConcurrencyLimiter.Priority.WRITE);
+            Thread.sleep(10);
+            permit.release();
+        }
+        assert(limiter.getDecreaseCount() == decreases && limiter.getLimit() == grown);
+        assert(limiter.getBaselineMillis(ConcurrencyLimiter.Priority.WRITE)
+                > limiter.getBaselineMillis(ConcurrencyLimiter.Priority.READ));
+        // a slow read cuts the limit
+        ConcurrencyLimiter.Permit permit = limiter.acquire(ConcurrencyLimiter.Priority.READ);
+        Thread.sleep(20);
+        permit.release();
+        assert(limiter.getDecreaseCount() == decreases + 1 && limiter.getLimit() < grown);
+        // the read baseline follows a lasting slowdown within two windows, then the reads no longer cut the limit
+        for (int i = 0; i < 2 * ConcurrencyLimiter.BASELINE_WINDOW; i++) {
+            permit = limiter.acquire(ConcurrencyLimiter.Priority.READ);
+            Thread.sleep(5);
+            permit.release();
+        }
+        assert(limiter.getBaselineMillis(ConcurrencyLimiter.Priority.READ) >= 5);
+        decreases = limiter.getDecreaseCount();
+        for (int i = 0; i < 10; i++) {
+            permit = limiter.acquire(ConcurrencyLimiter.Priority.READ);
+            Thread.sleep(5);
+            permit.release();
+        }
+        assert(limiter.getDecreaseCount() == decreases);
+    }
+
+    public void testDeadline() throws BookMapperException {
+        // clean db
+        bm.deleteAll();
+        bm.insert(JPAbook);
+        // a call made after the deadline of the session fails without querying the database
+        long expired = bm.getExpiredCount();
+        try (Deadline deadline = Deadline.start(0)) {
+            bm.update(JPAbook);
+            assert(false);
+        } catch (BookMapperException e) {
+            assert(e.getCause() instanceof QueryTimeoutException);
+        }
+        assert(bm.getExpiredCount() == expired + 1);
+        // the calls within the deadline (and the operation timeouts) run as usual
+        bm.setOperationTimeouts(5000, 5000);
+        try (Deadline deadline = Deadline.start(5000)) {
+            bm.update(JPAbook);
+            assert(deadline.remainingMillis() > 0);
+        } finally {
+            bm.setOperationTimeouts(0, 0);
+        }
+        assert(Deadline.current() == null);
+        assert(bm.find("978-1430219569") != null);
+    }
+
+    public void testQueryTimeout() throws Exception {
+        DB db = DB.createDB("bookstore");
+        db.setOperationTimeouts(1000, 1000);
+        long timedOut = db.getTimedOutCount();
+        long start = System.nanoTime();
+        // a query running far longer than its timeout is stopped while it runs
+        DB.Call call = db.startCall(ConcurrencyLimiter.Priority.READ);
+        PreparedStatement slow = db.prepare("SELECT COUNT(*) FROM SYS.SYSCOLUMNS A, SYS.SYSCOLUMNS B,"
+                + " SYS.SYSCOLUMNS C, SYS.SYSCOLUMNS D");
+        try {
+            call.watch(slow);
+            slow.executeQuery();
+            assert(false);
+        } catch (SQLException e) {
+            assert(call.failure(e) instanceof QueryTimeoutException);
+        } finally {
+            slow.close();
+            call.end();
+        }
+        assert(db.getTimedOutCount() == timedOut + 1);
+        assert(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        // the connection is still usable after the timeout
+        db.setOperationTimeouts(0, 0);
+        try (PreparedStatement count = db.prepare("SELECT COUNT(*) FROM BOOK");
+             ResultSet rs = count.executeQuery()) {
+            assert(rs.next());
+        }
+    }
+
+    public void testCsvParsing() {
+        ByteBuffer bytes = ByteBuffer.wrap(("978-1430219569,\"JPA 2: \"\"Mastering\"\" the Java™ Persistence API\",Keith,37.49\r\n"
+                + "978-1484234198,ProJPA 2 in Java EE 8,,\n"
+                + "\n").getBytes(StandardCharsets.UTF_8));
+        BookCsvLoader.Line line = new BookCsvLoader.Line();
+        // quoted fields with escaped quotes and multi-byte characters, line ended by \r\n
+        int pos = BookCsvLoader.parseLine(bytes, 0, line);
+        assert(line.isbn.equals("978-1430219569") && line.author.equals("Keith") && line.price == 37.49f);
+        assert(line.title.equals("JPA 2: \"Mastering\" the Java™ Persistence API"));
+        // empty fields are missing
+        pos = BookCsvLoader.parseLine(bytes, pos, line);
+        assert(line.isbn.equals("978-1484234198") && line.title.equals("ProJPA 2 in Java EE 8"));
+        assert(line.author == null && line.price == 0f);
+        // an empty line has no book
+        pos = BookCsvLoader.parseLine(bytes, pos, line);
+        assert(line.isbn == null && pos == bytes.limit());
+    }
+
+    public void testCsvPrice() {
+        ByteBuffer bytes = ByteBuffer.wrap("19.99|-5|42|1.5e2|abc".getBytes(StandardCharsets.US_ASCII));
+        assert(BookCsvLoader.parsePrice(bytes, 0, 5) == 19.99f);
+        assert(BookCsvLoader.parsePrice(bytes, 6, 8) == -5f);
+        assert(BookCsvLoader.parsePrice(bytes, 9, 11) == 42f);
+        assert(BookCsvLoader.parsePrice(bytes, 11, 11) == 0f);
+        // other notations are still accepted
+        assert(BookCsvLoader.parsePrice(bytes, 12, 17) == 150f);
+        try {
+            BookCsvLoader.parsePrice(bytes, 18, 21);
+            assert(false);
+        } catch (NumberFormatException e) {
+            assert(true);
+        }
+    }
+
+    public void testStagedReload() throws Exception {
+        // clean db
+        bm.deleteAll();
+        // save a new book in db
+        bm.insert(JPAbook);
+        // an abandoned reload leaves the table unchanged
+        try (BookReload reload = bm.beginReload()) {
+            reload.insertAll(Arrays.asList(new Book("978-1484234198", "ProJPA 2 in Java EE 8", "Keith", 19.99f)));
+        }
+        assert(bm.find("978-1430219569") != null);
+        // a committed reload replaces the whole catalog
+        try (BookReload reload = bm.beginReload()) {
+            reload.insertAll(Arrays.asList(new Book("978-1484234198", "ProJPA 2 in Java EE 8", "Keith", 19.99f)));
+            assert(reload.getStagedCount() == 1);
+            reload.commit();
+        }
+        assert(bm.find("978-1484234198") != null);
+        assert(bm.findByPriceRange(0f, 100f, 10).size() == 1);
+        // the triggers recreated on the new table still log the writes
+        final List<ChangeEvent> received = new ArrayList<>();
+        ChangeFeed feed = new ChangeFeed(DB.createDB("bookstore"), "BOOK_CHANGES", 1000);
+        feed.subscribe(new ChangeListener() {
+            @Override
+            public void onChanges(List<ChangeEvent> changes) {
+                received.addAll(changes);
+            }
+        });
+        feed.start(60000);
+        try {
+            bm.delete(bm.find("978-1484234198"));
+            assert(feed.poll() == 1);
+            assert(received.get(0).getOperation() == ChangeEvent.Operation.DELETE
+                    && received.get(0).getId().equals("978-1484234198"));
+        } finally {
+            feed.stop();
+        }
+        bm.deleteAll();
+        assert(bm.find("978-1484234198") == null);
+    }
+
+    public void testArchive() throws Exception {
+        // clean db
+        bm.deleteAll();
+        bm.publishers().deleteAll();
+        // save two books in db, one with a description and a publisher
+        bm.publishers().insert(new Publisher(1, "Apress"));
+        Book cheapJPABook = new Book("978-1484234198", "ProJPA 2 in Java EE 8", "Keith", 19.99f,
+                "An In-Depth Guide to Java Persistence APIs", 1);
+        bm.insert(JPAbook);
+        bm.insert(cheapJPABook);
+        // export them with two ranges read in parallel
+        BookArchive archive = new BookArchive(bm, 2);
+        Path file = Files.createTempFile("books", ".col");
+        try {
+            assert(archive.exportTo(file) == 2);
+            // the import restores the same books
+            bm.deleteAll();
+            assert(archive.importFrom(file) == 2);
+            for (Book book : Arrays.asList(JPAbook, cheapJPABook)) {
+                Book imported = bm.find((String) book.getId());
+                assert(imported.getTitle().equals(book.getTitle()) && imported.getAuthor().equals(book.getAuthor()));
+                assert(imported.getPrice().equals(book.getPrice()));
+                // the description and the publisher are exported too
+                assert(book.getDescription() == null ? imported.getDescription() == null
+                        : book.getDescription().equals(imported.getDescription()));
+                assert(book.getPublisherId() == null ? imported.getPublisherId() == null
+                        : book.getPublisherId().equals(imported.getPublisherId()));
+            }
+            // importing them twice fails on the existing books
+            try {
+                archive.importFrom(file);
+                assert(false);
+            } catch (BookMapperException e) {
+                assert(bm.findByPriceRange(0f, 100f, 10).size() == 2);
+            }
+            // any other file is rejected
+            Files.write(file, "not a book archive".getBytes(StandardCharsets.UTF_8));
+            try {
+                archive.importFrom(file);
+                assert(false);
+            } catch (BookMapperException e) {
+                assert(e.getMessage().contains("not a book archive"));
+            }
+        } finally {
+            Files.delete(file);
+            bm.deleteAll();
+            bm.publishers().deleteAll();
+        }
+    }
+
+    public void testAddShardResumes() throws Exception {
+        // a new shard with the tables but without the publisher of the books yet
+        DB shard = DB.createDB("bookstore_shard");
+        for (String ddl : new String[] {
+                "CREATE TABLE PUBLISHER (ID INTEGER NOT NULL PRIMARY KEY, NAME VARCHAR(80))",
+                "CREATE TABLE BOOK (ISBN VARCHAR(20) NOT NULL PRIMARY KEY, TITLE VARCHAR(80), AUTHOR VARCHAR(20),"
+                        + " PRICE DOUBLE NOT NULL, DESCRIPTION VARCHAR(4000), PUBLISHER_ID INTEGER REFERENCES PUBLISHER (ID))"}) {
+            try {
+                shard.prepare(ddl).execute();
+            } catch (SQLException e) {
+                // created by a previous run
+            }
+        }
+        shard.prepare("DELETE FROM BOOK").executeUpdate();
+        shard.prepare("DELETE FROM PUBLISHER").executeUpdate();
+        BookMapper sharded = BookMapper.createMapper("bookstore");
+        sharded.deleteAll();
+        sharded.publishers().deleteAll();
+        sharded.publishers().insert(new Publisher(1, "Apress"));
+        for (int i = 0; i < 20; i++)
+            sharded.insert(new Book("978-00000000" + (10 + i), "Book " + i, "Keith", 10 + i, null, 1));
+        // the copy fails on the missing publisher: the ring is unchanged
+        try {
+            sharded.addShard("bookstore_shard");
+            assert(false);
+        } catch (MapperException e) {
+            assert(sharded.findByPriceRange(0f, 100f, 100).size() == 20);
+        }
+        // an interrupted copy may leave stale rows, even of books deleted since then
+        shard.prepare("INSERT INTO PUBLISHER VALUES (1, 'Apress')").executeUpdate();
+        shard.prepare("INSERT INTO BOOK (ISBN, TITLE, AUTHOR, PRICE, PUBLISHER_ID) VALUES ('978-0000000010', 'Book 0', 'Keith', 0, 1)").executeUpdate();
+        shard.prepare("INSERT INTO BOOK (ISBN, TITLE, AUTHOR, PRICE, PUBLISHER_ID) VALUES ('978-0000000099', 'Deleted', 'Keith', 0, 1)").executeUpdate();
+        // the next call finishes the rebalancing without duplicate keys
+        sharded.addShard("bookstore_shard");
+        ResultSet rs = shard.prepare("SELECT COUNT(*) FROM BOOK WHERE PRICE = 0").executeQuery();
+        assert(rs.next() && rs.getInt(1) == 0);
+        rs.close();
+        int rows = 0;
+        for (DB db : sharded.shards()) {
+            rs = db.prepare("SELECT COUNT(*) FROM BOOK").executeQuery();
+            rs.next();
+            rows += rs.getInt(1);
+            rs.close();
+        }
+        assert(rows == 20);
+        for (int i = 0; i < 20; i++)
+            assert(sharded.find("978-00000000" + (10 + i)) != null);
+        // calling it again only checks that every shard holds its own books
+        sharded.addShard("bookstore_shard");
+        // clean db
+        sharded.deleteAll();
+        sharded.publishers().deleteAll();
+        shard.prepare("DELETE FROM PUBLISHER").executeUpdate();
+    }
+
     /* ***********  UPDATE tests *********** */
 
     public void testUpdateExistingBook() throws BookMapperException {
@@ -1,8 +1,13 @@
 package dm;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Test class using Surefire Maven plugin
@@ -96,6 +101,66 @@ public class TestBookWithCache {
         assert(books.containsAll(expectedBooks));
     }
 
+    public void testFindManyCacheManagement() throws BookMapperException {
+        // clean db
+        bm.deleteAll();
+        // save a new book in db
+        bm.insert(JPAbook);
+        // the result of the query is cached
+        assert(bm.findManyByAuthor("Keith").size() == 1);
+        // save another book by the same author in db
+        Book anotherJPABook = new Book("978-1484234198",
+                "ProJPA 2 in Java EE 8: An In-Depth Guide to Java Persistence APIs",
+                "Keith",
+                37.49f);
+        bm.insert(anotherJPABook);
+        // if the cache is well managed then the insert has invalidated the cached result...
+        Set<Book> books = bm.findManyByAuthor("Keith");
+        assert(books.size() == 2 && books.contains(anotherJPABook));
+    }
+
+    public void testQueryCacheVersions() {
+        QueryCache cache = new QueryCache();
+        String pattern = "SELECT isbn FROM BOOK WHERE AUTHOR=?";
+        // a query on an author is read while a book of another author is written
+        long version = cache.version();
+        cache.invalidateCriterion("Schincariol");
+        cache.invalidateId("978-1484234198");
+        cache.put(pattern, "Keith", Arrays.asList("978-1430219569"), version);
+        // the write cannot change this result: it is cached
+        assert(cache.get(pattern, "Keith") != null);
+        // a result read while one of its books or its author is written is not cached
+        version = cache.version();
+        cache.invalidateId("978-1430219569");
+        cache.put(pattern, "Keith", Arrays.asList("978-1430219569"), version);
+        assert(cache.get(pattern, "Keith") == null);
+        version = cache.version();
+        cache.invalidateCriterion("Keith");
+        cache.put(pattern, "Keith", Arrays.asList("978-1430219569"), version);
+        assert(cache.get(pattern, "Keith") == null);
+    }
+
+    public void testProjectionCacheManagement() throws BookMapperException {
+        // clean db
+        bm.deleteAll();
+        // another process saves two books by the same author in db
+        BookMapper other = BookMapper.createMapper("bookstore");
+        other.insert(JPAbook);
+        other.insert(new Book("978-1484234198", "ProJPA 2 in Java EE 8", "Keith", 19.99f));
+        // the summaries hold the projected columns only
+        List<BookSummary> summaries = bm.findSummariesByAuthor("Keith");
+        assert(summaries.size() == 2);
+        Set<String> titles = new HashSet<>();
+        for (BookSummary summary : summaries)
+            titles.add(summary.getIsbn() + " " + summary.getTitle());
+        assert(titles.contains("978-1430219569 JPA 2: Mastering the Java™ Persistence API"));
+        assert(titles.contains("978-1484234198 ProJPA 2 in Java EE 8"));
+        // and no book was loaded in the cache
+        assert(!bm.loadedMap.containsObject("978-1430219569") && !bm.loadedMap.containsObject("978-1484234198"));
+        // an author without books has no summary
+        assert(bm.findSummariesByAuthor("Schincariol").isEmpty());
+    }
+
     public void testFindNotExistingBook() throws BookMapperException {
         // search for a nonexistent book must return null (not an exception)
         Book book1 = (Book) bm.find("XXXXXXXXXXXXXX");
@@ -116,6 +181,384 @@ public class TestBookWithCache {
         assert(savedJPAbook == sameJPABook);
     }
 
+    public void testFindNegativeCacheManagement() throws BookMapperException {
+        // clean db
+        bm.deleteAll();
+        // search a book that is not in db yet, the miss is cached
+        Book noBook = bm.find("978-1430219569");
+        assert(noBook == null);
+        // save this book in db
+        bm.insert(JPAbook);
+        // if the cache is well managed then the insert has invalidated the cached miss...
+        Book savedJPAbook = bm.find("978-1430219569");
+        assert(savedJPAbook != null);
+    }
+
+    public void testNegativeCacheRacingInsert() {
+        NegativeCache<String> misses = new NegativeCache<>();
+        // a lookup starts, then an insert of the key commits before the miss is recorded
+        long readVersion = misses.version();
+        misses.invalidate("978-1430219569");
+        misses.addMiss("978-1430219569", readVersion);
+        assert(!misses.isMissing("978-1430219569"));
+        // a lookup started after the insert records its miss
+        misses.addMiss("978-1430219569", misses.version());
+        assert(misses.isMissing("978-1430219569"));
+        // a clear drops the misses of the lookups running meanwhile
+        readVersion = misses.version();
+        misses.clear();
+        misses.addMiss("978-1484234198", readVersion);
+        assert(misses.size() == 0);
+    }
+
+    public void testKeyFilterWithoutChangeFeed() throws Exception {
+        // clean db
+        bm.deleteAll();
+        // the key filter is loaded without the book
+        assert(bm.find("978-1484234198") == null);
+        // another process inserts the book: without the change feed the filter does not see it,
+        // so a key it does not contain is still looked up in database
+        BookMapper other = BookMapper.createMapper("bookstore");
+        other.insert(JPAbook);
+        assert(bm.exists("978-1430219569"));
+        assert(bm.find("978-1430219569") != null);
+        bm.deleteAll();
+    }
+
+    public void testRefreshAheadCacheManagement() throws Exception {
+        // clean db
+        bm.deleteAll();
+        // save a new book in db and cache it
+        bm.insert(JPAbook);
+        bm.setCachePolicy(new CachePolicy(200, 0.5, 60000));
+        try {
+            Book cachedJPABook = bm.find("978-1430219569");
+            // another process changes the book behind the cache
+            Book bookToUpdate = new Book(JPAbook);
+            bookToUpdate.setAuthor("Schincariol");
+            BookMapper.createMapper("bookstore").update(bookToUpdate);
+            // once stale, the cached book is still served at once...
+            Thread.sleep(150);
+            assert(bm.find("978-1430219569") == cachedJPABook);
+            // ...while it is reloaded in the background
+            Book refreshedJPABook = cachedJPABook;
+            for (int i = 0; i < 100 && refreshedJPABook == cachedJPABook; i++) {
+                Thread.sleep(20);
+                refreshedJPABook = bm.find("978-1430219569");
+            }
+            assert(refreshedJPABook.getAuthor().equals("Schincariol"));
+        } finally {
+            bm.setCachePolicy(null);
+        }
+    }
+
+    public void testChangeFeedFailingListener() throws Exception {
+        // clean db
+        bm.deleteAll();
+        final List<ChangeEvent> received = new CopyOnWriteArrayList<>();
+        ChangeFeed feed = new ChangeFeed(DB.createDB("bookstore"), "BOOK_CHANGES");
+        // a subscriber failing on every change
+        feed.subscribe(new ChangeListener() {
+            @Override
+            public void onChanges(List<ChangeEvent> changes) {
+                throw new IllegalStateException("failing subscriber");
+            }
+        });
+        feed.subscribe(new ChangeListener() {
+            @Override
+            public void onChanges(List<ChangeEvent> changes) {
+                received.addAll(changes);
+            }
+        });
+        feed.start(20);
+        try {
+            // the other subscriber gets the changes, and the background polls go on after the failure
+            bm.insert(JPAbook);
+            for (int i = 0; i < 100 && received.isEmpty(); i++)
+                Thread.sleep(20);
+            bm.delete(JPAbook);
+            for (int i = 0; i < 100 && received.size() < 2; i++)
+                Thread.sleep(20);
+            assert(received.size() == 2 && received.get(1).getOperation() == ChangeEvent.Operation.DELETE);
+            assert(feed.getFailureCount() >= 2 && feed.getLastFailure() instanceof IllegalStateException);
+        } finally {
+            feed.stop();
+        }
+    }
+
+    public void testChangeFeedCacheManagement() throws Exception {
+        // clean db
+        bm.deleteAll();
+        // a feed reading the change log one change at a time
+        final List<ChangeEvent> received = new ArrayList<>();
+        ChangeFeed feed = new ChangeFeed(DB.createDB("bookstore"), "BOOK_CHANGES", 1);
+        feed.subscribe(new ChangeListener() {
+            @Override
+            public void onChanges(List<ChangeEvent> changes) {
+                received.addAll(changes);
+            }
+        });
+        feed.start(60000);
+        try {
+            // the triggers log the writes in order, all of them are read by one poll
+            bm.insert(JPAbook);
+            Book bookToUpdate = new Book(JPAbook);
+            bookToUpdate.setPrice(19.99f);
+            bm.update(bookToUpdate);
+            bm.delete(bookToUpdate);
+            assert(feed.poll() == 3);
+            assert(received.get(0).getOperation() == ChangeEvent.Operation.INSERT
+                    && received.get(1).getOperation() == ChangeEvent.Operation.UPDATE
+                    && received.get(2).getOperation() == ChangeEvent.Operation.DELETE);
+            assert(received.get(2).getId().equals("978-1430219569"));
+            // nothing new, nothing sent
+            assert(feed.poll() == 0);
+            // the changes read and older than the retention are deleted
+            feed.setRetention(1);
+            Thread.sleep(10);
+            assert(feed.purgeExpired() >= 3);
+            // the changes read by every node can be purged
+            assert(feed.purge(feed.getLastSequence()) == 0);
+        } finally {
+            feed.stop();
+        }
+        // the mapper invalidates the books changed by another process
+        bm.insert(JPAbook);
+        Book cachedJPABook = bm.find("978-1430219569");
+        bm.startChangeFeed(50);
+        try {
+            Book bookToUpdate = new Book(JPAbook);
+            bookToUpdate.setAuthor("Schincariol");
+            BookMapper.createMapper("bookstore").update(bookToUpdate);
+            Book changedJPABook = cachedJPABook;
+            for (int i = 0; i < 100 && changedJPABook == cachedJPABook; i++) {
+                Thread.sleep(20);
+                changedJPABook = bm.find("978-1430219569");
+            }
+            assert(changedJPABook.getAuthor().equals("Schincariol"));
+        } finally {
+            bm.stopChangeFeed();
+        }
+    }
+
+    public void testIsbnRegistryCacheManagement() throws Exception {
+        final IsbnRegistry registry = new IsbnRegistry();
+        registry.addObject("978-1430219569", JPAbook);
+        // a writer keeps filling and emptying the table: the entries move (resizes, deletions)
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    for (int i = 0; i < 1000; i++) {
+                        String isbn = isbn13(i);
+                        registry.addObject(isbn, new Book(isbn, "Title " + i, "Keith", 10f));
+                    }
+                    for (int i = 0; i < 1000; i++)
+                        registry.removeObject(isbn13(i));
+                }
+            }
+        });
+        writer.start();
+        try {
+            // the reads take no lock and still never miss a book held by the table
+            for (int i = 0; i < 200000; i++)
+                assert(registry.getObject("978-1430219569") == JPAbook);
+        } finally {
+            writer.interrupt();
+            writer.join();
+        }
+    }
+
+    // valid ISBN-13 from a number
+    private static String isbn13(int n) {
+        String digits = String.format("978%09d", n);
+        int sum = 0;
+        for (int i = 0; i < 12; i++)
+            sum += (digits.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+        return digits + (10 - sum % 10) % 10;
+    }
+
+    public void testKeyFilterCacheManagement() {
+        // a filter sized for 100 keys
+        KeyFilter filter = new KeyFilter(100, 0.01);
+        for (int i = 0; i < 100; i++)
+            filter.add("isbn-" + i);
+        assert(!filter.needsRebuild());
+        // a deleted key stays in the filter: the other keys can never become false negatives
+        for (int i = 0; i < 10; i++)
+            filter.deleted();
+        for (int i = 0; i < 100; i++)
+            assert(filter.mightContain("isbn-" + i));
+        // an overfull filter asks to be rebuilt
+        filter.add("isbn-100");
+        assert(filter.needsRebuild());
+        // the keys added while it is rebuilt also reach the new filter
+        KeyFilter rebuilt = new KeyFilter(1000, 0.01);
+        filter.rebuildInto(rebuilt);
+        filter.add("978-1430219569");
+        assert(rebuilt.mightContain("978-1430219569"));
+    }
+
+    public void testGhostCacheManagement() throws BookMapperException {
+        // clean db
+        bm.deleteAll();
+        // save a new book in db
+        bm.insert(JPAbook);
+        // get a ghost of this book, nothing is loaded yet
+        Book ghostJPABook = bm.ghost("978-1430219569");
+        assert(ghostJPABook.isGhost());
+        // the fields are loaded on first access
+        assert(ghostJPABook.getTitle().equals(JPAbook.getTitle()));
+        // the ghost is the cached instance
+        Book sameJPABook = bm.find("978-1430219569");
+        assert(ghostJPABook == sameJPABook);
+    }
+
+    public void testWriteBehindCacheManagement() throws Exception {
+        // clean db
+        bm.deleteAll();
+        // delay the writes with a journal in a temporary directory
+        bm.enableWriteBehind(Files.createTempDirectory("write-behind").resolve("books.journal"), 1000);
+        try {
+            // save a new book, it is cached before being written in db
+            bm.insert(JPAbook);
+            assert(bm.find("978-1430219569") == JPAbook);
+            // write it in db
+            bm.flushWriteBehind();
+            assert(bm.exists("978-1430219569"));
+        } finally {
+            bm.disableWriteBehind();
+        }
+    }
+
+    public void testWriteBehindRejectedBook() throws Exception {
+        // clean db
+        bm.deleteAll();
+        Path journal = Files.createTempDirectory("write-behind").resolve("books.journal");
+        bm.enableWriteBehind(journal, 60000);
+        try {
+            // an author too long for its column: the database rejects this book
+            Book rejectedBook = new Book("978-1484234198", "ProJPA 2 in Java EE 8", "Keith and many other authors", 19.99f);
+            bm.insert(JPAbook);
+            bm.insert(rejectedBook);
+            // the batch fails, its books are written one by one and the rejected one is set aside
+            bm.flushWriteBehind();
+            assert(bm.exists("978-1430219569"));
+            assert(!bm.exists("978-1484234198"));
+            List<Book> rejected = bm.getRejectedWrites();
+            assert(rejected.size() == 1);
+            assert(rejected.get(0).getId().equals("978-1484234198"));
+            // no book is pending anymore: the journal is emptied
+            assert(Files.size(journal) == 0);
+        } finally {
+            bm.disableWriteBehind();
+        }
+    }
+
+    public void testWriteBehindDelete() throws Exception {
+        // clean db
+        bm.deleteAll();
+        Path journal = Files.createTempDirectory("write-behind").resolve("books.journal");
+        bm.enableWriteBehind(journal, 60000);
+        try {
+            // an insert and an update still pending when the book is deleted
+            bm.insert(JPAbook);
+            Book bookToUpdate = new Book(JPAbook);
+            bookToUpdate.setPrice(19.99f);
+            bm.update(bookToUpdate);
+            bm.delete(bookToUpdate);
+            // no later flush writes the book again
+            bm.flushWriteBehind();
+            assert(!bm.exists("978-1430219569"));
+            assert(Files.size(journal) == 0);
+        } finally {
+            bm.disableWriteBehind();
+        }
+    }
+
+    public void testCompactCacheManagement() throws BookMapperException {
+        // clean db
+        bm.deleteAll();
+        // save two books of the same author in db
+        bm.insert(JPAbook);
+        bm.insert(new Book("978-1484234198",
+                "ProJPA 2 in Java EE 8: An In-Depth Guide to Java Persistence APIs",
+                "Keith",
+                19.99f));
+        bm.setCompactCache(true);
+        try {
+            // the cached books share their author name and still give back their title
+            Book first = bm.find("978-1430219569");
+            Book second = bm.find("978-1484234198");
+            assert(first.getAuthor() == second.getAuthor());
+            assert(first.getTitle().equals(JPAbook.getTitle()));
+            assert(first.toString().contains("title='" + JPAbook.getTitle() + "'"));
+            assert(bm.estimateCacheMemory() > 0);
+        } finally {
+            bm.setCompactCache(false);
+        }
+    }
+
+    public void testSnapshotCacheManagement() throws BookMapperException {
+        // clean db
+        bm.deleteAll();
+        // save a new book in db, then load the snapshot
+        bm.insert(JPAbook);
+        bm.enableSnapshot();
+        try {
+            // the snapshot serves the reads
+            assert(bm.find("978-1430219569") != null);
+            assert(bm.findManyByAuthor("Keith").size() == 1);
+            // and follows the writes
+            Book cheapJPABook = new Book("978-1484234198",
+                    "ProJPA 2 in Java EE 8: An In-Depth Guide to Java Persistence APIs",
+                    "Keith",
+                    19.99f);
+            bm.insert(cheapJPABook);
+            Book cheapest = bm.findCheapestByAuthor("Keith", 1).get(0);
+            assert(cheapest.getId().equals(cheapJPABook.getId()));
+            // the snapshot holds a copy: a change not written does not reach it
+            cheapJPABook.setPrice(9.99f);
+            assert(cheapest != cheapJPABook && cheapest.getPrice().equals(19.99f));
+            // and returns copies: a change made to a result does not reach it either
+            cheapest.setPrice(1.99f);
+            assert(bm.find("978-1484234198").getPrice().equals(19.99f));
+            assert(bm.findByPriceRange(0f, 10f, 10).isEmpty());
+            bm.delete(cheapJPABook);
+            assert(bm.find("978-1484234198") == null);
+            assert(bm.findByPriceRange(0f, 100f, 10).size() == 1);
+        } finally {
+            bm.disableSnapshot();
+        }
+    }
+
+    public void testHotKeysCacheManagement() throws Exception {
+        // clean db
+        bm.deleteAll();
+        // save a new book in db
+        bm.insert(JPAbook);
+        bm.enableHotKeys(10);
+        try {
+            // a book read often becomes hot and is pinned
+            for (int i = 0; i < 20; i++)
+                bm.find("978-1430219569");
+            assert(bm.getHotKeys().containsKey("978-1430219569"));
+            // it is cached again right after its update
+            Book bookToUpdate = new Book(JPAbook);
+            bookToUpdate.setAuthor("Schincariol");
+            bm.update(bookToUpdate);
+            assert(bm.loadedMap.containsObject("978-1430219569"));
+            // the hot set of a previous run is loaded at startup
+            Path hotSet = Files.createTempFile("hot-keys", ".txt");
+            bm.saveHotKeys(hotSet);
+            bm.loadedMap.removeAll();
+            bm.warmUp(hotSet);
+            assert(bm.loadedMap.containsObject("978-1430219569"));
+        } finally {
+            bm.disableHotKeys();
+        }
+    }
+
     /* ***********  UPDATE tests *********** */
 
     public void testUpdateExistingBook() throws BookMapperException {